@@ -0,0 +1,415 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.http.HttpResponseMessage;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops sending requests to a container endpoint which keeps failing or
+ * responding slowly, so that threads fail fast with a
+ * {@link CircuitOpenException} instead of piling up in socket reads. When
+ * set on a {@link Client}, each of a {@link Provider}'s endpoints, i.e. its
+ * RPC and REST endpoint URLs, has its own circuit:
+ * <ul>
+ *   <li>CLOSED: requests are sent, and the outcomes of the most recent ones
+ *   are kept in a window. Once the window holds the minimum number of calls
+ *   and the share of failures, i.e. I/O errors and 5xx responses, or of
+ *   slow calls reaches its threshold, the circuit opens.</li>
+ *   <li>OPEN: requests fail immediately. After the open duration the
+ *   circuit becomes half-open.</li>
+ *   <li>HALF_OPEN: a few probe requests are let through; the circuit closes
+ *   if all of them succeed in time and opens again as soon as one
+ *   doesn't.</li>
+ * </ul>
+ * State transitions are logged and reported to registered
+ * {@link Listener}s, e.g. to feed dashboards. Instances are safe for
+ * concurrent use and should be shared by all Clients talking to the same
+ * containers.
+ */
+public class CircuitBreaker {
+
+  /**
+   * State of an endpoint's circuit.
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * Receives the state transitions of all circuits of a
+   * {@link CircuitBreaker}; called on the thread whose request caused the
+   * transition, so implementations should return quickly.
+   */
+  public interface Listener {
+    void onStateChange(String endpoint, State from, State to);
+  }
+
+  public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+  public static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 0.8;
+  public static final long DEFAULT_SLOW_CALL_DURATION = 5000;
+  public static final int DEFAULT_WINDOW_SIZE = 20;
+  public static final int DEFAULT_MINIMUM_CALLS = 10;
+  public static final long DEFAULT_OPEN_DURATION = 30000;
+  public static final int DEFAULT_HALF_OPEN_PROBES = 3;
+
+  private static final byte FAILED = 1;
+  private static final byte SLOW = 2;
+
+  private static Logger logger = Logger.getLogger("org.opensocial.client");
+
+  private final double failureRateThreshold;
+  private final double slowCallRateThreshold;
+  private final long slowCallDuration;
+  private final int windowSize;
+  private final int minimumCalls;
+  private final long openDuration;
+  private final int halfOpenProbes;
+
+  private final ConcurrentMap<String, Circuit> circuits =
+    new ConcurrentHashMap<String, Circuit>();
+  private final List<Listener> listeners =
+    new CopyOnWriteArrayList<Listener>();
+
+  /**
+   * Creates and returns a new {@link CircuitBreaker} which opens a circuit
+   * when half of the last {@value #DEFAULT_WINDOW_SIZE} calls failed or 80%
+   * took longer than {@value #DEFAULT_SLOW_CALL_DURATION}ms, keeps it open
+   * for {@value #DEFAULT_OPEN_DURATION}ms and then sends
+   * {@value #DEFAULT_HALF_OPEN_PROBES} probes.
+   */
+  public CircuitBreaker() {
+    this(DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_SLOW_CALL_RATE_THRESHOLD,
+        DEFAULT_SLOW_CALL_DURATION, DEFAULT_WINDOW_SIZE,
+        DEFAULT_MINIMUM_CALLS, DEFAULT_OPEN_DURATION,
+        DEFAULT_HALF_OPEN_PROBES);
+  }
+
+  /**
+   * Creates and returns a new {@link CircuitBreaker}.
+   *
+   * @param failureRateThreshold  share of failed calls in the window,
+   *                              greater than 0 and at most 1, at which a
+   *                              circuit opens
+   * @param slowCallRateThreshold share of slow calls in the window, greater
+   *                              than 0 and at most 1, at which a circuit
+   *                              opens
+   * @param slowCallDuration      time in milliseconds, not negative, from
+   *                              which a call is considered slow
+   * @param windowSize            number of most recent calls whose outcome
+   *                              is kept
+   * @param minimumCalls          number of calls the window must hold before
+   *                              a circuit can open
+   * @param openDuration          time in milliseconds, not negative, for
+   *                              which an opened circuit rejects calls
+   * @param halfOpenProbes        number of probe calls which must succeed for
+   *                              a half-open circuit to close
+   */
+  public CircuitBreaker(double failureRateThreshold,
+      double slowCallRateThreshold, long slowCallDuration, int windowSize,
+      int minimumCalls, long openDuration, int halfOpenProbes) {
+    if (!(failureRateThreshold > 0 && failureRateThreshold <= 1) ||
+        !(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1)) {
+      throw new IllegalArgumentException(
+          "thresholds must satisfy 0 < threshold <= 1");
+    }
+    if (slowCallDuration < 0 || openDuration < 0) {
+      throw new IllegalArgumentException("durations must not be negative");
+    }
+    if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+      throw new IllegalArgumentException(
+          "window must satisfy 1 <= minimumCalls <= windowSize");
+    }
+    if (halfOpenProbes < 1) {
+      throw new IllegalArgumentException("halfOpenProbes must be positive");
+    }
+
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallRateThreshold = slowCallRateThreshold;
+    this.slowCallDuration = slowCallDuration;
+    this.windowSize = windowSize;
+    this.minimumCalls = minimumCalls;
+    this.openDuration = openDuration;
+    this.halfOpenProbes = halfOpenProbes;
+  }
+
+  /**
+   * Registers the passed {@link Listener} for state transitions.
+   */
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Unregisters the passed {@link Listener}.
+   */
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Returns the state of the passed endpoint's circuit; endpoints which
+   * haven't been called yet are CLOSED.
+   *
+   * @param endpoint endpoint URL, e.g. a Provider's RPC endpoint
+   */
+  public State getState(String endpoint) {
+    Circuit circuit = circuits.get(endpoint);
+
+    return circuit == null ? State.CLOSED :
+        circuit.getState(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the state of each endpoint's circuit, keyed by endpoint URL.
+   */
+  public Map<String, State> getStates() {
+    long now = System.currentTimeMillis();
+
+    Map<String, State> states = new HashMap<String, State>();
+    for (Map.Entry<String, Circuit> entry : circuits.entrySet()) {
+      states.put(entry.getKey(), entry.getValue().getState(now));
+    }
+
+    return states;
+  }
+
+  /**
+   * Returns true if the passed response, or its absence after an exception,
+   * counts as a failure; by default, exceptions and 5xx status codes do.
+   */
+  protected boolean isFailure(HttpResponseMessage response) {
+    return response == null || response.getStatusCode() >= 500;
+  }
+
+  /**
+   * Asks for permission to call the passed endpoint and returns a token to
+   * pass to {@link #record} once the call completes.
+   *
+   * @throws CircuitOpenException if the endpoint's circuit rejects calls
+   */
+  long acquire(String endpoint) throws CircuitOpenException {
+    return getCircuit(endpoint).acquire(endpoint);
+  }
+
+  /**
+   * Records the outcome of a call permitted by {@link #acquire}.
+   *
+   * @param response HTTP response, or null if the call threw an exception
+   * @param elapsed  duration of the call in nanoseconds
+   */
+  void record(String endpoint, long token, HttpResponseMessage response,
+      long elapsed) {
+    byte outcome = 0;
+    if (isFailure(response)) {
+      outcome |= FAILED;
+    }
+    if (elapsed >= slowCallDuration * 1000000) {
+      outcome |= SLOW;
+    }
+
+    getCircuit(endpoint).record(endpoint, token, outcome);
+  }
+
+  /**
+   * Releases the permit of a call which was cancelled before completing,
+   * without recording an outcome.
+   */
+  void release(String endpoint, long token) {
+    getCircuit(endpoint).release(token);
+  }
+
+  private Circuit getCircuit(String endpoint) {
+    Circuit circuit = circuits.get(endpoint);
+    if (circuit == null) {
+      circuit = new Circuit();
+
+      Circuit existing = circuits.putIfAbsent(endpoint, circuit);
+      if (existing != null) {
+        circuit = existing;
+      }
+    }
+
+    return circuit;
+  }
+
+  private void fireStateChange(String endpoint, State from, State to) {
+    if (logger.isLoggable(Level.INFO)) {
+      logger.info("Circuit of " + endpoint + " changed from " + from + " to " +
+          to);
+    }
+
+    for (Listener listener : listeners) {
+      try {
+        listener.onStateChange(endpoint, from, to);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Circuit breaker listener failed", e);
+      }
+    }
+  }
+
+  /**
+   * Circuit of a single endpoint. Each state transition starts a new
+   * generation; the outcomes of calls permitted in an earlier generation
+   * are ignored, so that e.g. calls sent before a circuit opened don't
+   * count as probes.
+   */
+  private class Circuit {
+
+    private final byte[] window = new byte[windowSize];
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long generation;
+    private long openedAt;
+    private int probes;
+    private int probeSuccesses;
+
+    long acquire(String endpoint) throws CircuitOpenException {
+      State from = null;
+      long token;
+
+      synchronized (this) {
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN && now - openedAt >= openDuration) {
+          from = transition(State.HALF_OPEN, now);
+        }
+
+        if (state == State.OPEN || (state == State.HALF_OPEN &&
+            probes >= halfOpenProbes)) {
+          long retryAfter = state == State.OPEN ?
+              openDuration - (now - openedAt) : 0;
+          throw new CircuitOpenException("Circuit of " + endpoint + " is " +
+              state, endpoint, retryAfter);
+        }
+
+        if (state == State.HALF_OPEN) {
+          probes++;
+        }
+        token = generation;
+      }
+
+      if (from != null) {
+        fireStateChange(endpoint, from, State.HALF_OPEN);
+      }
+
+      return token;
+    }
+
+    void record(String endpoint, long token, byte outcome) {
+      State from;
+      State to;
+
+      synchronized (this) {
+        if (token != generation) {
+          return;
+        }
+
+        from = state;
+        long now = System.currentTimeMillis();
+
+        if (state == State.HALF_OPEN) {
+          if (outcome != 0) {
+            transition(State.OPEN, now);
+          } else if (++probeSuccesses >= halfOpenProbes) {
+            transition(State.CLOSED, now);
+          }
+        } else if (state == State.CLOSED) {
+          add(outcome);
+          if (calls >= minimumCalls &&
+              (failures >= failureRateThreshold * calls ||
+              slowCalls >= slowCallRateThreshold * calls)) {
+            transition(State.OPEN, now);
+          }
+        }
+
+        to = state;
+      }
+
+      if (from != to) {
+        fireStateChange(endpoint, from, to);
+      }
+    }
+
+    synchronized void release(long token) {
+      if (token == generation && state == State.HALF_OPEN) {
+        probes--;
+      }
+    }
+
+    synchronized State getState(long now) {
+      if (state == State.OPEN && now - openedAt >= openDuration) {
+        return State.HALF_OPEN;
+      }
+
+      return state;
+    }
+
+    private void add(byte outcome) {
+      if (calls == window.length) {
+        byte evicted = window[next];
+        if ((evicted & FAILED) != 0) {
+          failures--;
+        }
+        if ((evicted & SLOW) != 0) {
+          slowCalls--;
+        }
+      } else {
+        calls++;
+      }
+
+      window[next] = outcome;
+      next = (next + 1) % window.length;
+      if ((outcome & FAILED) != 0) {
+        failures++;
+      }
+      if ((outcome & SLOW) != 0) {
+        slowCalls++;
+      }
+    }
+
+    private State transition(State to, long now) {
+      State from = state;
+
+      state = to;
+      generation++;
+      if (to == State.OPEN) {
+        openedAt = now;
+      } else if (to == State.HALF_OPEN) {
+        probes = 0;
+        probeSuccesses = 0;
+      } else {
+        next = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+      }
+
+      return from;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request when the {@link CircuitBreaker}
+ * circuit of the request's endpoint is open, or half-open with all probes
+ * already in flight.
+ */
+public class CircuitOpenException extends IOException {
+
+  private static final long serialVersionUID = 5040165342418907553L;
+
+  private final String endpoint;
+  private final long retryAfter;
+
+  public CircuitOpenException(String message, String endpoint,
+      long retryAfter) {
+    super(message);
+    this.endpoint = endpoint;
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Returns the URL of the endpoint whose circuit rejected the request.
+   */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Returns the time in milliseconds after which the circuit lets probe
+   * requests through, or 0 if it is already half-open.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+}
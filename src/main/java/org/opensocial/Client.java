@@ -17,19 +17,44 @@ package org.opensocial;
 
 import net.oauth.http.HttpMessage;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.opensocial.StageEvent.Stage;
 import org.opensocial.auth.AuthScheme;
+import org.opensocial.auth.PayloadAuthScheme;
+import org.opensocial.cache.PersonCache;
 import org.opensocial.http.HttpClient;
 import org.opensocial.http.HttpClientImpl;
 import org.opensocial.http.HttpResponseMessage;
+import org.opensocial.http.JsonPayloadWriter;
+import org.opensocial.http.Payload;
+import org.opensocial.models.Model;
+import org.opensocial.parsers.Parser;
 import org.opensocial.providers.Provider;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -44,15 +69,183 @@ import java.util.logging.Logger;
  * </pre>
  * The send method either returns a single {@link Response} or a {@link Map} of
  * Response objects mapped to ID strings. The data returned from the container
- * can be extracted from these objects.
+ * can be extracted from these objects. The sendAsync methods submit the same
+ * requests to an {@link Executor} and return a {@link RequestFuture} instead
+ * of blocking the calling thread.
+ * <p>
+ * A Client is thread-safe: a single instance, along with its connection
+ * pools and caches, can and should be shared by all threads sending requests
+ * to the same container. A Client configured through a {@link Builder} is
+ * immutable, and its setters throw an {@link IllegalStateException}:
+ * <pre>
+ *   Client client = new Client.Builder(provider, authScheme)
+ *       .setRpcParallelism(8)
+ *       .setPersonCache(new PersonCache(10000, 60000))
+ *       .build();
+ * </pre>
+ * The Client uses an immutable copy of a mutable {@link Provider}, and the
+ * {@link AuthScheme} must be safe for concurrent use, which the schemes in
+ * org.opensocial.auth are.
  *
  * @author Jason Cooper
  */
 public class Client {
 
-  private Provider provider;
-  private AuthScheme authScheme;
-  private HttpClient httpClient;
+  /**
+   * Configures an immutable {@link Client}. A Builder is not thread-safe, but
+   * the Clients it builds are.
+   */
+  public static class Builder {
+
+    private Provider provider;
+    private final AuthScheme authScheme;
+    private HttpClient httpClient;
+    private Executor executor;
+    private int restParallelism = 1;
+    private int rpcParallelism = 4;
+    private Parser parser;
+    private PersonCache personCache;
+    private RateLimiter rateLimiter;
+    private RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+    private HedgingPolicy hedgingPolicy;
+    private StageListener stageListener;
+
+    /**
+     * Creates a new {@link Builder} for a {@link Client} associated with the
+     * passed {@link Provider} and {@link AuthScheme}. Unless the Provider is
+     * already immutable, the Client uses an immutable copy of it; Clients
+     * whose requests a {@link RequestCoalescer} should batch together must
+     * therefore share an immutable Provider, see {@link Provider.Builder}.
+     *
+     * @param provider   Provider to associate with new Client
+     * @param authScheme AuthScheme to associate with new Client
+     */
+    public Builder(Provider provider, AuthScheme authScheme) {
+      this.provider = provider;
+      this.authScheme = authScheme;
+    }
+
+    /**
+     * Sets the {@link HttpClient} to use; defaults to a new
+     * {@link HttpClientImpl}.
+     */
+    public Builder setHttpClient(HttpClient httpClient) {
+      this.httpClient = httpClient;
+      return this;
+    }
+
+    /**
+     * @see Client#setExecutor(Executor)
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * @see Client#setRestParallelism(int)
+     */
+    public Builder setRestParallelism(int restParallelism) {
+      checkParallelism("restParallelism", restParallelism);
+      this.restParallelism = restParallelism;
+      return this;
+    }
+
+    /**
+     * @see Client#setRpcParallelism(int)
+     */
+    public Builder setRpcParallelism(int rpcParallelism) {
+      checkParallelism("rpcParallelism", rpcParallelism);
+      this.rpcParallelism = rpcParallelism;
+      return this;
+    }
+
+    /**
+     * @see Client#setParser(Parser)
+     */
+    public Builder setParser(Parser parser) {
+      this.parser = parser;
+      return this;
+    }
+
+    /**
+     * @see Client#setPersonCache(PersonCache)
+     */
+    public Builder setPersonCache(PersonCache personCache) {
+      this.personCache = personCache;
+      return this;
+    }
+
+    /**
+     * @see Client#setRateLimiter(RateLimiter)
+     */
+    public Builder setRateLimiter(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+      return this;
+    }
+
+    /**
+     * @see Client#setRetryPolicy(RetryPolicy)
+     */
+    public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /**
+     * @see Client#setCircuitBreaker(CircuitBreaker)
+     */
+    public Builder setCircuitBreaker(CircuitBreaker circuitBreaker) {
+      this.circuitBreaker = circuitBreaker;
+      return this;
+    }
+
+    /**
+     * @see Client#setHedgingPolicy(HedgingPolicy)
+     */
+    public Builder setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+      this.hedgingPolicy = hedgingPolicy;
+      return this;
+    }
+
+    /**
+     * @see Client#setStageListener(StageListener)
+     */
+    public Builder setStageListener(StageListener stageListener) {
+      this.stageListener = stageListener;
+      return this;
+    }
+
+    /**
+     * Returns a new, immutable {@link Client} with this configuration.
+     */
+    public Client build() {
+      if (!provider.isImmutable()) {
+        // Leaves the caller's Provider mutable
+        provider = new Provider.Builder(provider).build();
+      }
+
+      return new Client(this);
+    }
+  }
+
+  private final Provider provider;
+  private final AuthScheme authScheme;
+  private final HttpClient httpClient;
+  private final boolean immutable;
+  private volatile Executor executor;
+  private volatile int restParallelism = 1;
+  private volatile int rpcParallelism = 4;
+  private volatile Parser parser;
+  private volatile PersonCache personCache;
+  private volatile RateLimiter rateLimiter;
+  private volatile RetryPolicy retryPolicy;
+  private volatile CircuitBreaker circuitBreaker;
+  private volatile HedgingPolicy hedgingPolicy;
+  private volatile StageListener stageListener;
+
+  private final ConcurrentMap<FlightKey, RequestFuture<Response>> inFlight;
 
   private static Logger logger = Logger.getLogger("org.opensocial.client");
 
@@ -80,6 +273,45 @@ public class Client {
     this.provider = provider;
     this.authScheme = authScheme;
     this.httpClient = httpClient;
+    this.inFlight = new ConcurrentHashMap<FlightKey, RequestFuture<Response>>();
+    this.immutable = false;
+  }
+
+  private Client(Builder builder) {
+    this.provider = builder.provider;
+    this.authScheme = builder.authScheme;
+    this.httpClient = builder.httpClient == null ? new HttpClientImpl() :
+        builder.httpClient;
+    this.executor = builder.executor;
+    this.restParallelism = builder.restParallelism;
+    this.rpcParallelism = builder.rpcParallelism;
+    this.parser = builder.parser;
+    this.personCache = builder.personCache;
+    this.rateLimiter = builder.rateLimiter;
+    this.retryPolicy = builder.retryPolicy;
+    this.circuitBreaker = builder.circuitBreaker;
+    this.hedgingPolicy = builder.hedgingPolicy;
+    this.stageListener = builder.stageListener;
+    this.inFlight = new ConcurrentHashMap<FlightKey, RequestFuture<Response>>();
+    this.immutable = true;
+  }
+
+  private Client(Client client, AuthScheme authScheme) {
+    this.provider = client.provider;
+    this.authScheme = authScheme;
+    this.httpClient = client.httpClient;
+    this.executor = client.executor;
+    this.restParallelism = client.restParallelism;
+    this.rpcParallelism = client.rpcParallelism;
+    this.parser = client.parser;
+    this.personCache = client.personCache;
+    this.rateLimiter = client.rateLimiter;
+    this.retryPolicy = client.retryPolicy;
+    this.circuitBreaker = client.circuitBreaker;
+    this.hedgingPolicy = client.hedgingPolicy;
+    this.stageListener = client.stageListener;
+    this.inFlight = client.inFlight;
+    this.immutable = true;
   }
 
   /**
@@ -96,9 +328,295 @@ public class Client {
     return authScheme;
   }
 
+  /**
+   * Returns an immutable {@link Client} which sends requests on behalf of the
+   * passed {@link AuthScheme}, typically a single user's credentials, e.g.
+   * {@link org.opensocial.auth.OAuth3LeggedScheme#forToken}. The returned
+   * Client shares this Client's {@link Provider}, {@link HttpClient} with its
+   * connections, {@link Executor}, {@link Parser}, {@link PersonCache},
+   * {@link RateLimiter}, {@link RetryPolicy}, {@link CircuitBreaker},
+   * {@link HedgingPolicy}, {@link StageListener} and settings, so that
+   * binding a user only costs a couple of objects:
+   * <pre>
+   *   Response response = client.withAuthScheme(
+   *       scheme.forToken(userToken)).send(PeopleService.getViewer());
+   * </pre>
+   * Since the {@link PersonCache} is shared, it should only be set if all
+   * users may see the same profile data.
+   *
+   * @param  authScheme AuthScheme to sign requests with
+   * @return            Client bound to the passed AuthScheme
+   */
+  public Client withAuthScheme(AuthScheme authScheme) {
+    return new Client(this, authScheme);
+  }
+
+  /**
+   * Returns the {@link Executor} used to run asynchronous requests; if none
+   * was set, a shared pool of daemon threads is returned.
+   */
+  public Executor getExecutor() {
+    Executor executor = this.executor;
+    if (executor == null) {
+      return DefaultExecutorHolder.EXECUTOR;
+    }
+
+    return executor;
+  }
+
+  /**
+   * Returns the shared pool of daemon threads used for work that callers wait
+   * on while possibly running on the associated {@link Executor} themselves,
+   * which could otherwise starve if that executor has no thread to spare.
+   */
+  static Executor getInternalExecutor() {
+    return DefaultExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * Returns true if this Client was configured through a {@link Builder} and
+   * its setters can't be used.
+   */
+  public boolean isImmutable() {
+    return immutable;
+  }
+
+  /**
+   * Sets the {@link Executor} used to run requests submitted through the
+   * sendAsync methods and the helpers sending REST requests or RPC batches
+   * concurrently, see {@link #setRestParallelism(int)} and
+   * {@link #setRpcParallelism(int)}; pass null to revert to the shared
+   * default pool. The calling thread always sends its share of concurrent
+   * requests itself, but the executor should still be able to start threads
+   * on demand like the default one, since a bounded pool that is busy limits
+   * the parallelism of every request waiting on it. Timeouts, hedged requests
+   * and coalesced batches run on the shared default pool regardless.
+   *
+   * @param executor Executor to run asynchronous requests on
+   */
+  public void setExecutor(Executor executor) {
+    checkMutable();
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the maximum number of REST requests executed concurrently when a
+   * {@link Map} of requests is sent to a provider without an RPC endpoint.
+   */
+  public int getRestParallelism() {
+    return restParallelism;
+  }
+
+  /**
+   * Sets the maximum number of REST requests executed concurrently when a
+   * {@link Map} of requests is sent to a provider without an RPC endpoint; 1,
+   * the default, executes the requests one after another on the calling
+   * thread. Concurrent requests run on the associated {@link Executor}, so the
+   * {@link Provider}'s preRequest and postRequest hooks must be thread-safe.
+   *
+   * @param restParallelism maximum number of concurrent REST requests
+   */
+  public void setRestParallelism(int restParallelism) {
+    checkMutable();
+    checkParallelism("restParallelism", restParallelism);
+
+    this.restParallelism = restParallelism;
+  }
+
+  /**
+   * Returns the maximum number of RPC batches sent concurrently when a
+   * {@link Map} of requests exceeds the {@link Provider}'s batch limits.
+   */
+  public int getRpcParallelism() {
+    return rpcParallelism;
+  }
+
+  /**
+   * Sets the maximum number of RPC batches sent concurrently when a
+   * {@link Map} of requests exceeds the {@link Provider}'s maximum batch size
+   * or payload size and is split into several batches; defaults to 4.
+   *
+   * @param rpcParallelism maximum number of concurrent RPC batches
+   * @see   Provider#setMaxRpcBatchSize(int)
+   * @see   Provider#setMaxRpcPayloadSize(int)
+   */
+  public void setRpcParallelism(int rpcParallelism) {
+    checkMutable();
+    checkParallelism("rpcParallelism", rpcParallelism);
+
+    this.rpcParallelism = rpcParallelism;
+  }
+
+  /**
+   * Returns the {@link Parser} used to parse JSON responses, or null if the
+   * default {@link org.opensocial.parsers.JsonParser} is used.
+   */
+  public Parser getParser() {
+    return parser;
+  }
+
+  /**
+   * Sets the {@link Parser} used to parse JSON responses; pass null to revert
+   * to the default {@link org.opensocial.parsers.JsonParser}, which parses
+   * each response into a tree before building the {@link Response}. A
+   * {@link org.opensocial.parsers.StreamingJsonParser} builds the same
+   * Response objects with less memory, which is preferable for large friend
+   * lists. Parsers implementing
+   * {@link org.opensocial.parsers.StreamingParser} read each response body
+   * directly; others are passed it as a String. The parser is shared by
+   * concurrent requests and must be thread-safe.
+   *
+   * @param parser Parser to use for JSON responses
+   */
+  public void setParser(Parser parser) {
+    checkMutable();
+    this.parser = parser;
+  }
+
+  /**
+   * Returns the {@link PersonCache} used to answer profile requests, or null
+   * if profiles are not cached.
+   */
+  public PersonCache getPersonCache() {
+    return personCache;
+  }
+
+  /**
+   * Sets the {@link PersonCache} used to answer requests for a single user's
+   * profile without contacting the container; profiles returned for
+   * PeopleService.getUser and getFriends requests are added to it. Pass null
+   * to disable caching, the default.
+   *
+   * @param personCache PersonCache to use
+   */
+  public void setPersonCache(PersonCache personCache) {
+    checkMutable();
+    this.personCache = personCache;
+  }
+
+  /**
+   * Returns the {@link RateLimiter} pacing the requests sent to the
+   * associated {@link Provider}, or null if requests are not paced.
+   */
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * Sets the {@link RateLimiter} which paces the HTTP requests sent to the
+   * associated {@link Provider} and adapts to the container's throttling
+   * responses; each RPC batch or REST request takes one permit. A single
+   * RateLimiter should be shared by all Clients talking to the same
+   * containers. Pass null to send requests unpaced, the default.
+   *
+   * @param rateLimiter RateLimiter to use
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    checkMutable();
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Returns the {@link RetryPolicy} used to retry transient failures, or null
+   * if failed requests are not retried.
+   */
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Sets the {@link RetryPolicy} used to retry requests which fail with an
+   * I/O error or a transient error status such as 503; only idempotent
+   * requests and RPC batches made up of idempotent requests are retried,
+   * see {@link Request#isIdempotent()}. Pass null to disable retries, the
+   * default.
+   *
+   * @param retryPolicy RetryPolicy to use
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    checkMutable();
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * Returns the {@link CircuitBreaker} guarding the associated
+   * {@link Provider}'s endpoints, or null if requests are always sent.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Sets the {@link CircuitBreaker} which stops sending requests to the
+   * associated {@link Provider}'s RPC or REST endpoint while it keeps failing
+   * or responding slowly; requests then fail fast with a
+   * {@link CircuitOpenException}, which is never retried. The circuit is
+   * consulted before the {@link RateLimiter}, and requests failing because
+   * their own timeout elapsed, see {@link #send(Request, long, TimeUnit)},
+   * are not held against the endpoint. A single CircuitBreaker should be
+   * shared by all Clients talking to the same containers. Pass null to
+   * always send requests, the default.
+   *
+   * @param circuitBreaker CircuitBreaker to use
+   */
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    checkMutable();
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Returns the {@link HedgingPolicy} used to hedge slow requests, or null if
+   * requests are never hedged.
+   */
+  public HedgingPolicy getHedgingPolicy() {
+    return hedgingPolicy;
+  }
+
+  /**
+   * Sets the {@link HedgingPolicy} used to send a second copy of idempotent
+   * requests which haven't been answered after a delay, using whichever
+   * response arrives first; see {@link Request#isIdempotent()}. Requests
+   * are hedged per RPC batch or REST request, and each attempt made by the
+   * {@link RetryPolicy} is hedged separately. Pass null to disable hedging,
+   * the default.
+   *
+   * @param hedgingPolicy HedgingPolicy to use
+   */
+  public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+    checkMutable();
+    this.hedgingPolicy = hedgingPolicy;
+  }
+
+  /**
+   * Returns the {@link StageListener} notified of the timing of each request
+   * stage, or null if requests are not instrumented.
+   */
+  public StageListener getStageListener() {
+    return stageListener;
+  }
+
+  /**
+   * Sets the {@link StageListener} notified of the timing of each stage of
+   * every request: payload serialization, signing, the HTTP exchange,
+   * reading the response and parsing it; see {@link StageEvent.Stage}. Use
+   * {@link LatencyHistograms} to aggregate latencies per provider and
+   * method. Pass null to disable instrumentation, the default.
+   *
+   * @param stageListener StageListener to notify
+   */
+  public void setStageListener(StageListener stageListener) {
+    checkMutable();
+    this.stageListener = stageListener;
+  }
+
   /**
    * Submits the passed {@link Request} to the associated {@link Provider} and
-   * returns the container's response data as a {@link Response} object.
+   * returns the container's response data as a {@link Response} object. If
+   * an identical read-only (GET) request is already in flight on another
+   * thread, no new request is sent; the calling thread waits for the
+   * pending request instead and receives the same Response object, which
+   * should therefore be treated as read-only. Requests sent with a timeout
+   * may wait for a pending request but are never waited for.
    *
    * @param  request Request object (typically returned from static methods in
    *                 service classes) encapsulating all request data including
@@ -114,6 +632,149 @@ public class Client {
    *                          to fail
    */
   public Response send(Request request) throws RequestException, IOException {
+    if (!isDeduplicable(request)) {
+      return sendSingle(request);
+    }
+
+    FlightKey key = new FlightKey(this, buildRequestKey(request));
+    if (Deadline.current() != null) {
+      // A request bound by a deadline may fail because of it, which must
+      // not be passed on to callers without one; it may still join a flight
+      RequestFuture<Response> leader = inFlight.get(key);
+      if (leader != null) {
+        return leader.getResult();
+      }
+
+      return sendSingle(request);
+    }
+
+    RequestFuture<Response> flight = new RequestFuture<Response>();
+    RequestFuture<Response> leader = inFlight.putIfAbsent(key, flight);
+    if (leader != null) {
+      return leader.getResult();
+    }
+
+    try {
+      Response response = sendSingle(request);
+      flight.complete(response);
+
+      return response;
+    } catch (RequestException e) {
+      flight.fail(e);
+      throw e;
+    } catch (IOException e) {
+      flight.fail(e);
+      throw e;
+    } catch (RuntimeException e) {
+      flight.fail(e);
+      throw e;
+    } catch (Error e) {
+      flight.fail(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  /**
+   * Submits the passed {@link Request} as {@link #send(Request)} does, but
+   * gives up once the passed timeout has elapsed. The timeout covers the
+   * whole call: waiting for a thread of the associated {@link Executor},
+   * signing, rate limiting, retries, the network exchange and parsing; each
+   * HTTP request only gets the remaining time as its connect and read
+   * timeouts. When the timeout elapses, the request is cancelled, which
+   * interrupts its thread and releases its connection, and a
+   * {@link DeadlineExceededException} is thrown.
+   *
+   * @param  request Request object encapsulating all request data
+   * @param  timeout maximum time to wait for the response
+   * @param  unit    unit of the timeout
+   * @return         Response object encapsulating the response data returned
+   *                 by the container
+   *
+   * @throws RequestException          if the passed request cannot be
+   *                                   serialized, the container returns an
+   *                                   error code, or the response cannot be
+   *                                   parsed
+   * @throws DeadlineExceededException if the timeout elapsed first
+   * @throws IOException               if an I/O error causes request
+   *                                   transmission to fail
+   */
+  public Response send(final Request request, long timeout, TimeUnit unit)
+      throws RequestException, IOException {
+    return sendWithin(new Callable<Response>() {
+      public Response call() throws Exception {
+        return send(request);
+      }
+    }, new Deadline(timeout, unit));
+  }
+
+  /**
+   * Submits the passed {@link Map} of {@link Request}s as {@link #send(Map)}
+   * does, but gives up once the passed timeout has elapsed; see
+   * {@link #send(Request, long, TimeUnit)}.
+   *
+   * @param  requests Map of Request objects to ID strings
+   * @param  timeout  maximum time to wait for the responses
+   * @param  unit     unit of the timeout
+   * @return          Map of Response objects to the associated ID strings in
+   *                  the passed Map of Request objects
+   *
+   * @throws RequestException          if a request cannot be serialized, the
+   *                                   container returns an error code, or a
+   *                                   response cannot be parsed
+   * @throws DeadlineExceededException if the timeout elapsed first
+   * @throws IOException               if an I/O error causes request
+   *                                   transmission to fail
+   */
+  public Map<String, Response> send(final Map<String, Request> requests,
+      long timeout, TimeUnit unit) throws RequestException, IOException {
+    return sendWithin(new Callable<Map<String, Response>>() {
+      public Map<String, Response> call() throws Exception {
+        return send(requests);
+      }
+    }, new Deadline(timeout, unit));
+  }
+
+  /**
+   * Runs the passed task on the shared default pool with the passed
+   * {@link Deadline} bound to it, and waits for its result until the
+   * deadline passes, cancelling the task then.
+   */
+  private <V> V sendWithin(final Callable<V> task, final Deadline deadline)
+      throws RequestException, IOException {
+    RequestFuture<V> future = new RequestFuture<V>(new Callable<V>() {
+      public V call() throws Exception {
+        deadline.check();
+
+        Deadline previous = Deadline.bind(deadline);
+        try {
+          return task.call();
+        } finally {
+          Deadline.bind(previous);
+        }
+      }
+    });
+
+    try {
+      getInternalExecutor().execute(future);
+
+      return future.get(deadline.remaining(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      throw deadline.expired();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting " +
+          "for response");
+    } catch (ExecutionException e) {
+      throw RequestFuture.unwrap(e);
+    } finally {
+      future.cancel(true);
+    }
+  }
+
+  private Response sendSingle(Request request) throws RequestException,
+      IOException {
     final String KEY = "key";
 
     Map<String, Request> requests = new HashMap<String, Request>();
@@ -129,8 +790,10 @@ public class Client {
    * {@link Provider} and returns the container's response data as a Map of
    * {@link Response} objects mapped to the same IDs as the passed requests. If
    * the associated provider supports the OpenSocial RPC protocol, only one
-   * HTTP request is sent; otherwise, one HTTP request is executed per
-   * container request.
+   * HTTP request is sent unless the requests exceed the provider's batch
+   * limits, in which case they are split into several batches sent
+   * concurrently; otherwise, one HTTP request is executed per container
+   * request, up to {@link #getRestParallelism()} of them at once.
    *
    * @param  requests Map of Request objects (typically returned from static
    *                  methods in service classes) to ID strings; each object
@@ -154,20 +817,219 @@ public class Client {
       throw new RequestException("Request queue is empty");
     }
 
+    return dispatch(requests, restParallelism);
+  }
+
+  /**
+   * Fetches every entry of the paged collection requested by the passed
+   * {@link Request}, e.g. the result of PeopleService.getFriends(), and
+   * returns them in a single {@link Response}. The first page is fetched to
+   * learn the collection's totalResults; all remaining pages are then
+   * requested at once, as one RPC batch (split according to the
+   * {@link Provider}'s batch limits) or as concurrent REST requests limited
+   * by the client's REST parallelism, and their entries are appended in
+   * order. If the container does not report totalResults, the remaining
+   * pages are fetched one after another until a page comes back empty or
+   * shorter than the page size the container actually uses.
+   *
+   * @param  request  Request object for a paged collection; not modified
+   * @param  pageSize number of entries to request per page
+   * @return          Response object holding the entries of all pages
+   *
+   * @throws RequestException if a page request cannot be serialized, the
+   *                          container returns an error code, or a response
+   *                          cannot be parsed
+   * @throws IOException      if an I/O error causes a page request to fail
+   * @see                     #setRestParallelism(int)
+   */
+  public Response fetchAll(Request request, int pageSize) throws
+      RequestException, IOException {
+    return fetchAll(request, pageSize, restParallelism);
+  }
+
+  /**
+   * Fetches every entry of the paged collection requested by the passed
+   * {@link Request} as {@link #fetchAll(Request, int)} does, running at most
+   * the passed number of REST page requests concurrently.
+   *
+   * @param  request     Request object for a paged collection; not modified
+   * @param  pageSize    number of entries to request per page
+   * @param  parallelism maximum number of concurrent REST page requests;
+   *                     ignored by providers with an RPC endpoint
+   * @return             Response object holding the entries of all pages
+   *
+   * @throws RequestException if a page request cannot be serialized, the
+   *                          container returns an error code, or a response
+   *                          cannot be parsed
+   * @throws IOException      if an I/O error causes a page request to fail
+   */
+  public Response fetchAll(Request request, int pageSize, int parallelism)
+      throws RequestException, IOException {
+    if (pageSize < 1 || parallelism < 1) {
+      throw new IllegalArgumentException(
+          "pageSize and parallelism must be positive");
+    }
+
+    String startParameter = request.getRestQueryStringParameters().get(
+        "startIndex");
+    int startIndex = startParameter == null ? 0 :
+      Integer.parseInt(startParameter);
+
+    Response first = send(buildPageRequest(request, startIndex, pageSize));
+    int received = first.getEntries().size();
+
+    Response response = new Response();
+    response.setStartIndex(new Long(startIndex));
+    if (first.getStatusLink() != null) {
+      response.setStatusLink(first.getStatusLink());
+    }
+    if (first.isFiltered() != null) {
+      response.setIsFiltered(first.isFiltered());
+    }
+    response.getEntries().addAll(first.getEntries());
+
+    if (first.getTotalResults() == null) {
+      // No way to know the remaining pages up front. Containers may cap the
+      // page size, in which case itemsPerPage reports the size actually
+      // used; failing that, the first page's size is taken as the cap
+      int expected = pageSize;
+      if (first.getItemsPerPage() != null &&
+          first.getItemsPerPage() < expected) {
+        expected = first.getItemsPerPage().intValue();
+      } else if (received < expected) {
+        expected = received;
+      }
+
+      int index = startIndex + received;
+      while (received > 0 && received >= expected) {
+        Response page = send(buildPageRequest(request, index, pageSize));
+        received = page.getEntries().size();
+        index += received;
+        response.getEntries().addAll(page.getEntries());
+      }
+
+      return response;
+    }
+
+    long totalResults = first.getTotalResults();
+    response.setTotalResults(totalResults);
+
+    if (received > 0 && startIndex + received < totalResults) {
+      // Containers may cap the page size, so step by the size actually used
+      Map<String, Request> pages = new LinkedHashMap<String, Request>();
+      for (long index = startIndex + received; index < totalResults;
+          index += received) {
+        pages.put("page" + index, buildPageRequest(request, (int) index,
+            received));
+      }
+
+      Map<String, Response> responses = dispatch(pages, parallelism);
+      for (String id : pages.keySet()) {
+        Response page = responses.get(id);
+        if (page != null) {
+          response.getEntries().addAll(page.getEntries());
+        }
+      }
+    }
+
+    return response;
+  }
+
+  private void checkMutable() {
+    if (immutable) {
+      throw new IllegalStateException(
+          "Client was configured through a Builder and is immutable");
+    }
+  }
+
+  private static void checkParallelism(String name, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(name + " must be positive");
+    }
+  }
+
+  private boolean isDeduplicable(Request request) {
+    return "GET".equals(request.getRestMethod()) &&
+        request.getCustomPayloadSource() == null;
+  }
+
+  /**
+   * Returns a string identifying everything about the passed {@link Request}
+   * which may affect the container's response: the HTTP and RPC methods, the
+   * URL template with its components filled in, the query string and RPC
+   * parameters in sorted order, and the model class.
+   */
+  String buildRequestKey(Request request) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(request.getRestMethod()).append(' ');
+    builder.append(request.getRpcMethod()).append(' ');
+
+    if (request.getRestUrlTemplate() != null) {
+      builder.append('/');
+      UrlTemplate.compile(request.getRestUrlTemplate()).expand(request,
+          builder);
+    }
+
+    builder.append(' ');
+    builder.append(JSONValue.toJSONString(new TreeMap<String, String>(
+        request.getRestQueryStringParameters())));
+    builder.append(JSONValue.toJSONString(new TreeMap<String, String>(
+        request.getRpcQueryStringParameters())));
+    builder.append(JSONValue.toJSONString(new TreeMap<String, Object>(
+        request.getRpcPayloadParameters())));
+    builder.append(' ').append(request.getContentType());
+    builder.append(' ').append(request.getModelClass().getName());
+
+    return builder.toString();
+  }
+
+  private Map<String, Response> dispatch(Map<String, Request> requests,
+      int restParallelism) throws RequestException, IOException {
+    PersonCache personCache = this.personCache;
+    if (personCache == null) {
+      return submitRequests(requests, restParallelism);
+    }
+
+    Map<String, Response> cached = new HashMap<String, Response>();
+    Map<String, Request> remaining = new LinkedHashMap<String, Request>();
+    for (Map.Entry<String, Request> entry : requests.entrySet()) {
+      Response response = personCache.lookup(provider, entry.getValue());
+      if (response != null) {
+        cached.put(entry.getKey(), response);
+      } else {
+        remaining.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    if (remaining.isEmpty()) {
+      return cached;
+    }
+
+    Map<String, Response> responses = submitRequests(remaining,
+        restParallelism);
+    for (Map.Entry<String, Request> entry : remaining.entrySet()) {
+      personCache.store(provider, entry.getValue(),
+          responses.get(entry.getKey()));
+    }
+    responses.putAll(cached);
+
+    return responses;
+  }
+
+  private Map<String, Response> submitRequests(
+      Map<String, Request> requests, int restParallelism) throws
+      RequestException, IOException {
     Map<String, Response> responses = new HashMap<String, Response>();
 
     if (provider.getRpcEndpoint() != null) {
       responses = submitRpc(requests);
     } else if (provider.getRestEndpoint() != null) {
-      for (Map.Entry<String, Request> entry : requests.entrySet()) {
-        Request request = entry.getValue();
-
-        provider.preRequest(request);
-
-        Response response = submitRestRequest(request);
-        responses.put(entry.getKey(), response);
-
-        provider.postRequest(request, response);
+      if (restParallelism > 1 && requests.size() > 1) {
+        responses = submitRestConcurrently(requests, restParallelism);
+      } else {
+        for (Map.Entry<String, Request> entry : requests.entrySet()) {
+          responses.put(entry.getKey(), submitRest(entry.getValue()));
+        }
       }
     } else {
       throw new RequestException("Provider has no REST or RPC endpoint set");
@@ -176,8 +1038,175 @@ public class Client {
     return responses;
   }
 
+  /**
+   * Submits the passed {@link Request} asynchronously and returns immediately
+   * with a {@link RequestFuture} which completes with the container's
+   * response data.
+   *
+   * @param  request Request object encapsulating all request data
+   * @return         RequestFuture which completes with the Response object
+   * @see            #send(Request)
+   */
+  public RequestFuture<Response> sendAsync(Request request) {
+    return sendAsync(request, null);
+  }
+
+  /**
+   * Submits the passed {@link Request} asynchronously and invokes the passed
+   * {@link RequestCallback} when the container's response has been parsed or
+   * the request fails.
+   *
+   * @param  request  Request object encapsulating all request data
+   * @param  callback callback to invoke on completion; may be null
+   * @return          RequestFuture which completes with the Response object
+   * @see             #send(Request)
+   */
+  public RequestFuture<Response> sendAsync(final Request request,
+      RequestCallback<? super Response> callback) {
+    return submit(new Callable<Response>() {
+      public Response call() throws Exception {
+        return send(request);
+      }
+    }, callback);
+  }
+
+  /**
+   * Submits the passed {@link Map} of {@link Request}s asynchronously and
+   * returns immediately with a {@link RequestFuture} which completes with the
+   * Map of {@link Response} objects.
+   *
+   * @param  requests Map of Request objects to ID strings
+   * @return          RequestFuture which completes with the Map of Response
+   *                  objects
+   * @see             #send(Map)
+   */
+  public RequestFuture<Map<String, Response>> sendAsync(
+      Map<String, Request> requests) {
+    return sendAsync(requests, null);
+  }
+
+  /**
+   * Submits the passed {@link Map} of {@link Request}s asynchronously and
+   * invokes the passed {@link RequestCallback} when all responses have been
+   * parsed or the requests fail.
+   *
+   * @param  requests Map of Request objects to ID strings
+   * @param  callback callback to invoke on completion; may be null
+   * @return          RequestFuture which completes with the Map of Response
+   *                  objects
+   * @see             #send(Map)
+   */
+  public RequestFuture<Map<String, Response>> sendAsync(
+      final Map<String, Request> requests,
+      RequestCallback<? super Map<String, Response>> callback) {
+    return submit(new Callable<Map<String, Response>>() {
+      public Map<String, Response> call() throws Exception {
+        return send(requests);
+      }
+    }, callback);
+  }
+
+  /**
+   * Returns a {@link PageCursor} over every entry of the paged collection
+   * requested by the passed {@link Request}, e.g. the result of
+   * PeopleService.getFriends(). The collection is fetched in pages of the
+   * passed size starting at the request's startIndex parameter, or 0 if not
+   * set; the first page is requested immediately and each following page is
+   * requested asynchronously as soon as the previous one is received.
+   *
+   * @param  request  Request object for a paged collection; not modified
+   * @param  pageSize number of entries to request per page
+   * @return          PageCursor returning each entry of the collection
+   */
+  public <T extends Model> PageCursor<T> openCursor(Request request,
+      int pageSize) {
+    return new PageCursor<T>(this, request, pageSize);
+  }
+
+  private <V> RequestFuture<V> submit(Callable<V> task,
+      RequestCallback<? super V> callback) {
+    RequestFuture<V> future = new RequestFuture<V>(task);
+    if (callback != null) {
+      future.addCallback(callback);
+    }
+
+    getExecutor().execute(future);
+
+    return future;
+  }
+
   private Map<String, Response> submitRpc(Map<String, Request> requests) throws
       RequestException, IOException {
+    List<Map<String, Request>> batches = splitRpcBatch(requests);
+    if (batches.size() == 1) {
+      return submitRpcBatch(requests);
+    }
+
+    Map<String, Callable<Map<String, Response>>> tasks =
+      new LinkedHashMap<String, Callable<Map<String, Response>>>();
+    for (final Map<String, Request> batch : batches) {
+      tasks.put("batch" + tasks.size(),
+          new Callable<Map<String, Response>>() {
+            public Map<String, Response> call() throws Exception {
+              return submitRpcBatch(batch);
+            }
+          });
+    }
+
+    Map<String, Response> responses = new HashMap<String, Response>();
+    for (Map<String, Response> batchResponses :
+        invokeAll(tasks, rpcParallelism).values()) {
+      if (batchResponses != null) {
+        responses.putAll(batchResponses);
+      }
+    }
+
+    return responses;
+  }
+
+  /**
+   * Splits the passed requests into batches which respect the associated
+   * {@link Provider}'s maximum RPC batch size and payload size; a request
+   * which exceeds the payload size on its own is placed in a batch by itself.
+   */
+  List<Map<String, Request>> splitRpcBatch(Map<String, Request> requests) {
+    int maxCount = provider.getMaxRpcBatchSize();
+    int maxBytes = provider.getMaxRpcPayloadSize();
+
+    List<Map<String, Request>> batches = new ArrayList<Map<String, Request>>();
+    if (requests.size() < 2 || (maxCount <= 0 && maxBytes <= 0)) {
+      batches.add(requests);
+      return batches;
+    }
+
+    Map<String, Request> batch = new HashMap<String, Request>();
+    int batchBytes = 2;
+
+    for (Map.Entry<String, Request> entry : requests.entrySet()) {
+      int entryBytes = 0;
+      if (maxBytes > 0) {
+        entryBytes = utf8Length(JSONValue.toJSONString(buildRpcRequest(
+            entry.getKey(), entry.getValue()))) + 1;
+      }
+
+      boolean full = (maxCount > 0 && batch.size() >= maxCount) ||
+          (maxBytes > 0 && batchBytes + entryBytes - 1 > maxBytes);
+      if (full && batch.size() > 0) {
+        batches.add(batch);
+        batch = new HashMap<String, Request>();
+        batchBytes = 2;
+      }
+
+      batch.put(entry.getKey(), entry.getValue());
+      batchBytes += entryBytes;
+    }
+    batches.add(batch);
+
+    return batches;
+  }
+
+  private Map<String, Response> submitRpcBatch(Map<String, Request> requests)
+      throws RequestException, IOException {
     Map<String, String> requestHeaders = new HashMap<String, String>();
 
     if (requests.size() == 1 &&
@@ -188,19 +1217,158 @@ public class Client {
       requestHeaders.put(HttpMessage.CONTENT_TYPE, provider.getContentType());
     }
 
-    HttpMessage message = authScheme.getHttpMessage(provider, "POST",
-        buildRpcUrl(requests), requestHeaders, buildRpcPayload(requests));
+    boolean idempotent = true;
+    StringBuilder methods = new StringBuilder();
+    for (Request request : requests.values()) {
+      idempotent &= request.isIdempotent();
+      if (methods.length() > 0) {
+        methods.append(',');
+      }
+      methods.append(request.getRpcMethod());
+    }
+
+    String operation = methods.toString();
+
+    long start = System.nanoTime();
+    Payload payload = buildRpcPayloadSource(requests);
+    fireStage(Stage.BUILD_PAYLOAD, operation, start, payload, null);
 
-    HttpResponseMessage responseMessage = httpClient.execute(message);
+    HttpResponseMessage responseMessage = exchange("POST",
+        provider.getRpcEndpoint(), buildRpcUrl(requests), requestHeaders,
+        payload, idempotent, operation);
 
-    logger.finest(buildLogRecord(requests, responseMessage));
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest(buildLogRecord(requests, responseMessage));
+    }
 
+    start = System.nanoTime();
     Map<String, Response> responses = Response.parseRpcResponse(requests,
-        responseMessage, provider.getVersion());
+        responseMessage, provider.getVersion(), parser);
+    fireStage(Stage.PARSE, operation, start, null, responseMessage);
 
     return responses;
   }
 
+  private Request buildPageRequest(Request request, int startIndex,
+      int count) {
+    Request page = request.copy();
+    page.setStartIndexParameter(startIndex);
+    page.setCountParameter(count);
+
+    return page;
+  }
+
+  private Map<String, Response> submitRestConcurrently(
+      Map<String, Request> requests, int parallelism) throws RequestException,
+      IOException {
+    Map<String, Callable<Response>> tasks =
+      new LinkedHashMap<String, Callable<Response>>();
+    for (Map.Entry<String, Request> entry : requests.entrySet()) {
+      final Request request = entry.getValue();
+
+      tasks.put(entry.getKey(), new Callable<Response>() {
+        public Response call() throws Exception {
+          return submitRest(request);
+        }
+      });
+    }
+
+    return invokeAll(tasks, parallelism);
+  }
+
+  /**
+   * Runs the passed tasks, at most parallelism of them at once, and returns
+   * their results mapped to the same keys. The calling thread works through
+   * the tasks itself alongside up to parallelism - 1 helpers started on the
+   * associated {@link Executor}, so the tasks complete even if the executor
+   * has no thread to spare, e.g. when this is itself called from a task
+   * running on it. Once a task fails, no further tasks are started, those
+   * already running are waited for, and the first failure in iteration order
+   * is rethrown.
+   */
+  private <T> Map<String, T> invokeAll(Map<String, Callable<T>> tasks,
+      int parallelism) throws RequestException, IOException {
+    final Deadline deadline = Deadline.current();
+    final AtomicBoolean failed = new AtomicBoolean();
+    final List<RequestFuture<T>> queue = new ArrayList<RequestFuture<T>>();
+    Map<String, RequestFuture<T>> futures =
+      new LinkedHashMap<String, RequestFuture<T>>();
+
+    for (Map.Entry<String, Callable<T>> entry : tasks.entrySet()) {
+      final Callable<T> task = entry.getValue();
+      RequestFuture<T> future = new RequestFuture<T>(new Callable<T>() {
+        public T call() throws Exception {
+          try {
+            return task.call();
+          } catch (Exception e) {
+            failed.set(true);
+            throw e;
+          }
+        }
+      });
+      futures.put(entry.getKey(), future);
+      queue.add(future);
+    }
+
+    final AtomicInteger next = new AtomicInteger();
+    Runnable worker = new Runnable() {
+      public void run() {
+        Deadline previous = Deadline.bind(deadline);
+        try {
+          int i;
+          while (!failed.get() && (i = next.getAndIncrement()) < queue.size()) {
+            queue.get(i).run();
+          }
+        } finally {
+          Deadline.bind(previous);
+        }
+      }
+    };
+
+    try {
+      int helpers = Math.min(parallelism, queue.size()) - 1;
+      for (int i = 0; i < helpers; i++) {
+        try {
+          getExecutor().execute(worker);
+        } catch (RejectedExecutionException e) {
+          break;
+        }
+      }
+
+      worker.run();
+
+      // After a failure, claims the tasks no worker has started
+      int i;
+      while ((i = next.getAndIncrement()) < queue.size()) {
+        queue.get(i).cancel(false);
+      }
+
+      Map<String, T> results = new HashMap<String, T>();
+      for (Map.Entry<String, RequestFuture<T>> entry : futures.entrySet()) {
+        if (!entry.getValue().isCancelled()) {
+          results.put(entry.getKey(), entry.getValue().getResult());
+        }
+      }
+
+      return results;
+    } finally {
+      for (RequestFuture<T> future : futures.values()) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private Response submitRest(Request request) throws RequestException,
+      IOException {
+    provider.preRequest(request);
+
+    Response response = submitRestRequest(request);
+
+    provider.postRequest(request, response);
+
+    return response;
+  }
+
   private Response submitRestRequest(Request request) throws RequestException,
       IOException{
     Map<String, String> requestHeaders = new HashMap<String, String>();
@@ -210,20 +1378,250 @@ public class Client {
       requestHeaders.put(HttpMessage.CONTENT_TYPE, provider.getContentType());
     }
 
-    HttpMessage message = authScheme.getHttpMessage(provider,
-        request.getRestMethod(), buildRestUrl(request), requestHeaders,
-        buildRestPayload(request));
+    String operation = request.getRestMethod() + " " +
+        request.getRestUrlTemplate();
 
-    HttpResponseMessage responseMessage = httpClient.execute(message);
+    long start = System.nanoTime();
+    Payload payload = buildRestPayloadSource(request);
+    fireStage(Stage.BUILD_PAYLOAD, operation, start, payload, null);
 
-    logger.finest(buildLogRecord(request, responseMessage));
+    HttpResponseMessage responseMessage = exchange(request.getRestMethod(),
+        provider.getRestEndpoint(), buildRestUrl(request), requestHeaders,
+        payload, request.isIdempotent(), operation);
 
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest(buildLogRecord(request, responseMessage));
+    }
+
+    start = System.nanoTime();
     Response response = Response.parseRestResponse(request, responseMessage,
-        provider.getVersion());
+        provider.getVersion(), parser);
+    fireStage(Stage.PARSE, operation, start, null, responseMessage);
+
+    return response;
+  }
+
+  /**
+   * Signs and executes an HTTP request with the passed method, URL, headers
+   * and payload, hedging and retrying it according to the associated
+   * {@link HedgingPolicy} and {@link RetryPolicy} if it is idempotent; each
+   * copy is signed anew and passes the {@link CircuitBreaker} of the passed
+   * endpoint. Latencies are tracked per operation, e.g. the RPC methods. All
+   * copies are bound by the calling thread's {@link Deadline}, if any.
+   */
+  private HttpResponseMessage exchange(final String method,
+      final String endpoint, final String url,
+      final Map<String, String> headers, final Payload payload,
+      boolean idempotent, final String operation) throws RequestException,
+      IOException {
+    final Deadline deadline = Deadline.current();
+    final Exchange attempt = new Exchange() {
+      public HttpResponseMessage execute() throws RequestException,
+          IOException {
+        long start = System.nanoTime();
+        HttpMessage message = buildHttpMessage(method, url, headers,
+            payload);
+        fireStage(Stage.SIGN, operation, start, payload, null);
+
+        return Client.this.execute(endpoint, operation, message, deadline);
+      }
+    };
+
+    Exchange exchange = attempt;
+    final HedgingPolicy hedgingPolicy = this.hedgingPolicy;
+    if (hedgingPolicy != null && idempotent) {
+      exchange = new Exchange() {
+        public HttpResponseMessage execute() throws RequestException,
+            IOException {
+          return hedgingPolicy.execute(operation, attempt,
+              getInternalExecutor());
+        }
+      };
+    }
+
+    RetryPolicy retryPolicy = this.retryPolicy;
+    if (retryPolicy != null && idempotent) {
+      return retryPolicy.execute(exchange);
+    }
+
+    return exchange.execute();
+  }
+
+  private HttpResponseMessage execute(String endpoint, String operation,
+      HttpMessage message, Deadline deadline) throws IOException {
+    RateLimiter rateLimiter = this.rateLimiter;
+    CircuitBreaker circuitBreaker = this.circuitBreaker;
+    if (rateLimiter == null && circuitBreaker == null) {
+      return transmit(operation, message, deadline);
+    }
+
+    // The circuit is consulted first so that rejected requests don't spend
+    // rate limiter permits
+    long token = 0;
+    boolean admitted = false;
+    try {
+      if (circuitBreaker != null) {
+        token = circuitBreaker.acquire(endpoint);
+      }
+      try {
+        if (rateLimiter != null) {
+          rateLimiter.acquire(provider);
+        }
+        admitted = true;
+      } finally {
+        if (!admitted && circuitBreaker != null) {
+          circuitBreaker.release(endpoint, token);
+        }
+      }
+    } finally {
+      if (!admitted) {
+        closeBody(message);
+      }
+    }
+
+    HttpResponseMessage response = null;
+    if (circuitBreaker == null) {
+      response = transmit(operation, message, deadline);
+    } else {
+      long start = System.nanoTime();
+      IOException failure = null;
+      try {
+        response = transmit(operation, message, deadline);
+      } catch (IOException e) {
+        failure = e;
+        throw e;
+      } finally {
+        if (response == null && (Thread.currentThread().isInterrupted() ||
+            isDeadlineExceeded(failure, deadline))) {
+          // Cancelled, e.g. a hedged request which lost the race, or out of
+          // the caller's time, which says nothing about the endpoint
+          circuitBreaker.release(endpoint, token);
+        } else {
+          circuitBreaker.record(endpoint, token, response,
+              System.nanoTime() - start);
+        }
+      }
+    }
+
+    if (rateLimiter != null) {
+      rateLimiter.update(provider, response);
+    }
 
     return response;
   }
 
+  /**
+   * Returns true if the passed failure was caused by the passed
+   * {@link Deadline} passing rather than by the endpoint, i.e. it is a
+   * {@link DeadlineExceededException}, or a socket timeout once the
+   * deadline, which bounds the socket timeouts, has passed.
+   */
+  private static boolean isDeadlineExceeded(IOException failure,
+      Deadline deadline) {
+    if (failure instanceof DeadlineExceededException) {
+      return true;
+    }
+
+    return failure instanceof SocketTimeoutException && deadline != null &&
+        deadline.remaining() <= 0;
+  }
+
+  /**
+   * Executes the passed message on the associated {@link HttpClient}, with
+   * the time remaining until the passed {@link Deadline}, if any, as its
+   * connect and read timeouts, and reports the EXECUTE and READ stages.
+   */
+  private HttpResponseMessage transmit(String operation, HttpMessage message,
+      Deadline deadline) throws IOException {
+    long start = System.nanoTime();
+    HttpResponseMessage response = null;
+
+    try {
+      if (deadline == null) {
+        response = httpClient.execute(message);
+      } else {
+        try {
+          deadline.check();
+        } catch (DeadlineExceededException e) {
+          closeBody(message);
+          throw e;
+        }
+
+        Integer timeout = deadline.remainingMillis();
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(HttpClient.CONNECT_TIMEOUT, timeout);
+        parameters.put(HttpClient.READ_TIMEOUT, timeout);
+
+        response = HttpResponseMessage.valueOf(httpClient.execute(message,
+            parameters));
+      }
+
+      return response;
+    } finally {
+      StageListener stageListener = this.stageListener;
+      if (stageListener != null) {
+        long duration = System.nanoTime() - start;
+        long readTime = response == null ? -1 : response.getReadTime();
+
+        fireStage(stageListener, new StageEvent(Stage.EXECUTE, provider,
+            operation, readTime < 0 ? duration : duration - readTime, -1,
+            responseBytes(response), statusCode(response)));
+        if (readTime >= 0) {
+          fireStage(stageListener, new StageEvent(Stage.READ, provider,
+              operation, readTime, -1, responseBytes(response),
+              statusCode(response)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the body of a message which won't be passed on to the associated
+   * {@link HttpClient}, e.g. a stream opened on a {@link Payload} file.
+   */
+  private static void closeBody(HttpMessage message) {
+    try {
+      InputStream body = message.getBody();
+      if (body != null) {
+        body.close();
+      }
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  /**
+   * Reports a stage which started at the passed time, in nanoseconds, to the
+   * associated {@link StageListener}, if any.
+   */
+  private void fireStage(Stage stage, String operation, long start,
+      Payload payload, HttpResponseMessage response) {
+    StageListener stageListener = this.stageListener;
+    if (stageListener == null) {
+      return;
+    }
+
+    fireStage(stageListener, new StageEvent(stage, provider, operation,
+        System.nanoTime() - start, payload == null ? -1 : payload.getLength(),
+        responseBytes(response), statusCode(response)));
+  }
+
+  private void fireStage(StageListener stageListener, StageEvent event) {
+    try {
+      stageListener.onStage(event);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Stage listener failed", e);
+    }
+  }
+
+  private static long responseBytes(HttpResponseMessage response) {
+    return response == null ? -1 : response.getResponseLength();
+  }
+
+  private static int statusCode(HttpResponseMessage response) {
+    return response == null ? -1 : response.getStatusCode();
+  }
+
   String buildRpcUrl(Map<String, Request> requests) {
     StringBuilder builder = new StringBuilder(provider.getRpcEndpoint());
 
@@ -240,55 +1638,66 @@ public class Client {
     return builder.toString();
   }
 
-  byte[] buildRpcPayload(Map<String, Request> requests) {
-    if (requests.size() == 1 &&
-        requests.values().iterator().next().getCustomPayload() != null) {
-      return requests.values().iterator().next().getCustomPayload();
-    }
-
-    JSONArray requestArray = new JSONArray();
-    for (Map.Entry<String, Request> requestEntry : requests.entrySet()) {
-      JSONObject request = new JSONObject();
-      request.put("id", requestEntry.getKey());
-      request.put("method", requestEntry.getValue().getRpcMethod());
+  byte[] buildRpcPayload(Map<String, Request> requests) throws IOException {
+    return buildRpcPayloadSource(requests).toByteArray();
+  }
 
-      JSONObject requestParams = new JSONObject();
-      for (Map.Entry<String, Object> parameter :
-          requestEntry.getValue().getRpcPayloadParameters().entrySet()) {
-        requestParams.put(parameter.getKey(), parameter.getValue());
+  private Payload buildRpcPayloadSource(Map<String, Request> requests) {
+    if (requests.size() == 1) {
+      Payload payload =
+        requests.values().iterator().next().getCustomPayloadSource();
+      if (payload != null) {
+        return payload;
       }
-
-      request.put("params", requestParams);
-      requestArray.add(request);
     }
 
-    try {
-      return requestArray.toJSONString().getBytes("UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      return null;
+    List<Map<String, Object>> batch =
+      new ArrayList<Map<String, Object>>(requests.size());
+    for (Map.Entry<String, Request> requestEntry : requests.entrySet()) {
+      batch.add(buildRpcRequest(requestEntry.getKey(),
+          requestEntry.getValue()));
     }
+
+    return JsonPayloadWriter.write(batch, provider.getSignBodyHash());
   }
 
-  String buildRestUrl(Request request) {
-    StringBuilder builder = new StringBuilder(provider.getRestEndpoint());
-    String[] components = request.getRestUrlTemplate().split("/");
+  private Map<String, Object> buildRpcRequest(String id, Request request) {
+    Map<String, Object> rpcRequest = new LinkedHashMap<String, Object>();
+    rpcRequest.put("id", id);
+    rpcRequest.put("method", request.getRpcMethod());
+    rpcRequest.put("params", request.getRpcPayloadParameters());
 
-    for (String component : components) {
-      if (component.startsWith("{") && component.endsWith("}")) {
-        String tag = component.substring(1, component.length()-1);
+    return rpcRequest;
+  }
 
-        if (request.getComponent(tag) != null) {
-          builder.append(request.getComponent(tag));
-          builder.append("/");
-        }
+  private static int utf8Length(String value) {
+    int length = 0;
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+        i++;
       } else {
-        builder.append(component);
-        builder.append("/");
+        length += 3;
       }
     }
 
-    // Remove trailing forward slash
-    builder.deleteCharAt(builder.length() - 1);
+    return length;
+  }
+
+  String buildRestUrl(Request request) {
+    String endpoint = provider.getRestEndpoint();
+    UrlTemplate template = UrlTemplate.compile(request.getRestUrlTemplate());
+
+    StringBuilder builder = new StringBuilder(endpoint.length() +
+        template.estimateLength() + 64);
+    builder.append(endpoint);
+    template.expand(request, builder);
 
     // Append query string parameters
     Map<String, String> parameters = request.getRestQueryStringParameters();
@@ -297,9 +1706,15 @@ public class Client {
     return builder.toString();
   }
 
-  byte[] buildRestPayload(Request request) {
-    if (request.getCustomPayload() != null) {
-      return request.getCustomPayload();
+  byte[] buildRestPayload(Request request) throws IOException {
+    Payload payload = buildRestPayloadSource(request);
+
+    return payload == null ? null : payload.toByteArray();
+  }
+
+  private Payload buildRestPayloadSource(Request request) {
+    if (request.getCustomPayloadSource() != null) {
+      return request.getCustomPayloadSource();
     }
 
     Map<String, Object> parameters = request.getRestPayloadParameters();
@@ -307,69 +1722,68 @@ public class Client {
       return null;
     }
 
-    JSONObject payload = new JSONObject();
-    for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
-      payload.put(parameter.getKey(), parameter.getValue());
-    }
+    return JsonPayloadWriter.write(parameters, provider.getSignBodyHash());
+  }
 
-    try {
-      return payload.toJSONString().getBytes("UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      return null;
+  /**
+   * Returns the signed {@link HttpMessage} for the passed payload, handing
+   * the payload itself to auth schemes which support it so that it is
+   * neither copied nor hashed again.
+   */
+  private HttpMessage buildHttpMessage(String method, String url,
+      Map<String, String> headers, Payload payload) throws RequestException,
+      IOException {
+    if (payload != null && authScheme instanceof PayloadAuthScheme) {
+      return ((PayloadAuthScheme) authScheme).getStreamingHttpMessage(
+          provider, method, url, headers, payload);
     }
+
+    return authScheme.getHttpMessage(provider, method, url, headers,
+        payload == null ? null : payload.toByteArray());
   }
 
+
   private void appendQueryString(StringBuilder builder,
       Map<String, String> parameters) {
     if (parameters != null && parameters.size() > 0) {
-      boolean runOnce = false;
+      char separator = '?';
 
       for (Map.Entry<String, String> parameter: parameters.entrySet()) {
-        if (!runOnce) {
-          builder.append("?");
-          runOnce = true;
-        } else {
-          builder.append("&");
-        }
+        builder.append(separator);
+        separator = '&';
 
-        try {
-          builder.append(URLEncoder.encode(parameter.getKey(), "UTF-8"));
-          builder.append("=");
-          builder.append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-          // Ignore
-        }
+        UrlTemplate.appendEncoded(builder, parameter.getKey());
+        builder.append('=');
+        UrlTemplate.appendEncoded(builder, parameter.getValue());
       }
     }
   }
 
   private String buildLogRecord(Map<String, Request> requests,
-      HttpResponseMessage message) {
+      HttpResponseMessage message) throws IOException {
     String payload = null;
 
-    byte[] bytes = buildRpcPayload(requests);
-    if (bytes != null) {
-      try {
+    // Never read file payloads just to log them
+    Request first = requests.values().iterator().next();
+    if (requests.size() > 1 || first.getCustomPayloadSource() == null ||
+        first.getCustomPayload() != null) {
+      byte[] bytes = buildRpcPayload(requests);
+      if (bytes != null) {
         payload = new String(bytes, "UTF-8");
-      } catch (UnsupportedEncodingException e) {
-        // Ignore
       }
     }
 
     return buildLogRecord(payload, message);
   }
 
-  private String buildLogRecord(Request request, HttpResponseMessage message) {
+  private String buildLogRecord(Request request, HttpResponseMessage message)
+      throws IOException {
     String payload = null;
 
-    if (request.getCustomPayload() == null) {
+    if (request.getCustomPayloadSource() == null) {
       byte[] bytes = buildRestPayload(request);
       if (bytes != null) {
-        try {
-          payload = new String(bytes, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-          // Ignore
-        }
+        payload = new String(bytes, "UTF-8");
       }
     }
 
@@ -392,4 +1806,62 @@ public class Client {
 
     return builder.toString();
   }
+
+  /**
+   * A single attempt at an HTTP request and response.
+   */
+  interface Exchange {
+    HttpResponseMessage execute() throws RequestException, IOException;
+  }
+
+  /**
+   * Identifies an in-flight request by its canonical key together with the
+   * provider and auth scheme it is sent with, so that requests made on
+   * behalf of different users are never shared.
+   */
+  private static class FlightKey {
+
+    private final Provider provider;
+    private final AuthScheme authScheme;
+    private final String key;
+
+    FlightKey(Client client, String key) {
+      this.provider = client.provider;
+      this.authScheme = client.authScheme;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof FlightKey)) {
+        return false;
+      }
+
+      FlightKey other = (FlightKey) o;
+      return provider == other.provider && authScheme == other.authScheme &&
+          key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * System.identityHashCode(provider) +
+          System.identityHashCode(authScheme)) + key.hashCode();
+    }
+  }
+
+  private static class DefaultExecutorHolder {
+
+    static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                "opensocial-client-" + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+          }
+        });
+  }
 }
@@ -0,0 +1,102 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which a request sent with a timeout must complete. The
+ * deadline of the request being sent is bound to the sending thread, and to
+ * the threads it hands work to, so that each HTTP request is only given the
+ * time which remains as its connect and read timeouts.
+ */
+final class Deadline {
+
+  private static final ThreadLocal<Deadline> CURRENT =
+    new ThreadLocal<Deadline>();
+
+  private final long timeout;
+  private final long expiry;
+
+  /**
+   * Creates a new {@link Deadline} expiring after the passed timeout.
+   */
+  Deadline(long timeout, TimeUnit unit) {
+    this.timeout = unit.toMillis(timeout);
+    this.expiry = System.nanoTime() + unit.toNanos(timeout);
+  }
+
+  /**
+   * Returns the deadline bound to the calling thread, or null if there is
+   * none.
+   */
+  static Deadline current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Binds the passed deadline, which may be null, to the calling thread and
+   * returns the previously bound one, to be restored once done.
+   */
+  static Deadline bind(Deadline deadline) {
+    Deadline previous = CURRENT.get();
+    if (deadline == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(deadline);
+    }
+
+    return previous;
+  }
+
+  /**
+   * Returns the remaining time in nanoseconds, which is negative once the
+   * deadline has passed.
+   */
+  long remaining() {
+    return expiry - System.nanoTime();
+  }
+
+  /**
+   * Returns the remaining time in milliseconds, rounded up so that it is
+   * only 0 once the deadline has passed, and capped to an int.
+   */
+  int remainingMillis() {
+    long remaining = remaining();
+    if (remaining <= 0) {
+      return 0;
+    }
+
+    return (int) Math.min(Integer.MAX_VALUE, (remaining + 999999) / 1000000);
+  }
+
+  /**
+   * Throws a {@link DeadlineExceededException} if the deadline has passed.
+   */
+  void check() throws DeadlineExceededException {
+    if (remaining() <= 0) {
+      throw expired();
+    }
+  }
+
+  /**
+   * Returns a new exception reporting this deadline as exceeded.
+   */
+  DeadlineExceededException expired() {
+    return new DeadlineExceededException("Request did not complete within " +
+        timeout + "ms");
+  }
+}
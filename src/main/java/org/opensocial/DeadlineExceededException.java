@@ -0,0 +1,32 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a request sent with a timeout, e.g. through
+ * {@link Client#send(Request, long, java.util.concurrent.TimeUnit)}, did not
+ * complete before its deadline; the request has been cancelled.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+  private static final long serialVersionUID = -6720994418265019340L;
+
+  public DeadlineExceededException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,298 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.http.HttpResponseMessage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts the tail latency of idempotent requests by hedging: if no response
+ * has arrived after a delay, a second, separately signed copy of the
+ * request is sent and whichever response arrives first is used, while the
+ * other copy is cancelled. The delay is either fixed or a percentile of the
+ * latencies recently observed for the same method, e.g. the 95th percentile
+ * so that only the slowest 5% of requests are hedged.
+ * <p>
+ * The extra load is capped by a budget shared by all requests sent through
+ * this policy: every request adds a fraction of a hedge, up to a small
+ * reserve, and every hedge takes one, so that a ratio of 0.05 never adds
+ * more than 5% of requests. When set on a {@link Client}, only idempotent
+ * requests are hedged, see {@link Request#isIdempotent()}, and both copies
+ * run on the Client's shared default pool, which starts threads on demand,
+ * so that a waiting caller never starves them. Instances are safe for
+ * concurrent use.
+ * Typical usage:
+ * <pre>
+ *   client.setHedgingPolicy(new HedgingPolicy(0.95, 200, 0.05));
+ * </pre>
+ */
+public class HedgingPolicy {
+
+  public static final int DEFAULT_BUDGET_RESERVE = 10;
+
+  /**
+   * Number of most recent latencies kept per method.
+   */
+  private static final int SAMPLES = 128;
+
+  /**
+   * Number of latencies which must be observed for a method before its
+   * percentile replaces the initial delay, and after which the percentile is
+   * recomputed.
+   */
+  private static final int MIN_SAMPLES = 16;
+
+  private final long delay;
+  private final double percentile;
+  private final double maxExtraLoad;
+
+  private double budget;
+
+  private final ConcurrentMap<String, Latencies> latencies =
+    new ConcurrentHashMap<String, Latencies>();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  /**
+   * Creates and returns a new {@link HedgingPolicy} which hedges requests
+   * after a fixed delay.
+   *
+   * @param delay        time in milliseconds to wait for a response before
+   *                     sending a second request
+   * @param maxExtraLoad maximum share of requests which may be hedged, e.g.
+   *                     0.05 for 5%
+   */
+  public HedgingPolicy(long delay, double maxExtraLoad) {
+    this(0, delay, maxExtraLoad);
+  }
+
+  /**
+   * Creates and returns a new {@link HedgingPolicy} which hedges requests
+   * once they take longer than a percentile of the latencies observed for
+   * the same method.
+   *
+   * @param percentile   percentile of observed latencies, from 0 to 1, after
+   *                     which a second request is sent, e.g. 0.95
+   * @param initialDelay time in milliseconds to wait for a response until
+   *                     enough latencies of a method have been observed
+   * @param maxExtraLoad maximum share of requests which may be hedged, e.g.
+   *                     0.05 for 5%
+   */
+  public HedgingPolicy(double percentile, long initialDelay,
+      double maxExtraLoad) {
+    if (percentile < 0 || percentile > 1) {
+      throw new IllegalArgumentException("percentile must be from 0 to 1");
+    }
+    if (initialDelay < 0) {
+      throw new IllegalArgumentException("delay must not be negative");
+    }
+    if (maxExtraLoad < 0) {
+      throw new IllegalArgumentException("maxExtraLoad must not be negative");
+    }
+
+    this.percentile = percentile;
+    this.delay = initialDelay;
+    this.maxExtraLoad = maxExtraLoad;
+  }
+
+  /**
+   * Returns the time in milliseconds after which requests for the passed
+   * method are hedged.
+   *
+   * @param method RPC method, e.g. people.get, or REST method and URL
+   *               template
+   */
+  public long getDelay(String method) {
+    if (percentile <= 0) {
+      return delay;
+    }
+
+    Latencies methodLatencies = latencies.get(method);
+    return methodLatencies == null ? delay : methodLatencies.getDelay();
+  }
+
+  /**
+   * Returns the number of requests sent through the policy.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Returns the number of hedged requests, i.e. second copies sent.
+   */
+  public long getHedges() {
+    return hedges.get();
+  }
+
+  /**
+   * Returns the number of hedged requests whose response was used.
+   */
+  public long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  /**
+   * Executes the passed exchange on the passed {@link Executor}, hedging it
+   * if it is still pending after the delay of the passed method and the
+   * budget allows. Returns the first response, or throws the failure of the
+   * last exchange if all failed.
+   */
+  HttpResponseMessage execute(final String method,
+      final Client.Exchange exchange, Executor executor)
+      throws RequestException, IOException {
+    requests.incrementAndGet();
+    deposit();
+
+    Callable<HttpResponseMessage> task = new Callable<HttpResponseMessage>() {
+      public HttpResponseMessage call() throws Exception {
+        long start = System.nanoTime();
+        HttpResponseMessage response = exchange.execute();
+        record(method, (System.nanoTime() - start) / 1000000);
+
+        return response;
+      }
+    };
+
+    CompletionService<HttpResponseMessage> service =
+      new ExecutorCompletionService<HttpResponseMessage>(executor);
+    List<Future<HttpResponseMessage>> futures =
+      new ArrayList<Future<HttpResponseMessage>>(2);
+
+    try {
+      futures.add(service.submit(task));
+
+      Future<HttpResponseMessage> done = service.poll(getDelay(method),
+          TimeUnit.MILLISECONDS);
+      if (done == null) {
+        if (withdraw()) {
+          hedges.incrementAndGet();
+          futures.add(service.submit(task));
+        }
+        done = service.take();
+      }
+
+      ExecutionException failure = null;
+      for (int pending = futures.size(); ; pending--) {
+        try {
+          HttpResponseMessage response = done.get();
+          if (done != futures.get(0)) {
+            hedgeWins.incrementAndGet();
+          }
+
+          return response;
+        } catch (ExecutionException e) {
+          failure = e;
+        }
+
+        if (pending == 1) {
+          throw RequestFuture.unwrap(failure);
+        }
+        done = service.take();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting " +
+          "for response");
+    } finally {
+      for (Future<HttpResponseMessage> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private void record(String method, long latency) {
+    if (percentile <= 0) {
+      return;
+    }
+
+    Latencies methodLatencies = latencies.get(method);
+    if (methodLatencies == null) {
+      methodLatencies = new Latencies();
+
+      Latencies existing = latencies.putIfAbsent(method, methodLatencies);
+      if (existing != null) {
+        methodLatencies = existing;
+      }
+    }
+
+    methodLatencies.add(latency);
+  }
+
+  private synchronized void deposit() {
+    budget = Math.min(DEFAULT_BUDGET_RESERVE, budget + maxExtraLoad);
+  }
+
+  private synchronized boolean withdraw() {
+    if (budget < 1) {
+      return false;
+    }
+
+    budget -= 1;
+    return true;
+  }
+
+  /**
+   * Most recent latencies of a single method, with their percentile
+   * recomputed every {@value #MIN_SAMPLES} samples.
+   */
+  private class Latencies {
+
+    private final long[] samples = new long[SAMPLES];
+    private int count;
+    private int next;
+    private int sinceUpdate;
+    private long cached = -1;
+
+    synchronized void add(long latency) {
+      samples[next] = latency;
+      next = (next + 1) % samples.length;
+      if (count < samples.length) {
+        count++;
+      }
+
+      if (++sinceUpdate >= MIN_SAMPLES) {
+        long[] sorted = new long[count];
+        System.arraycopy(samples, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+
+        cached = sorted[Math.min(count - 1, (int) (percentile * count))];
+        sinceUpdate = 0;
+      }
+    }
+
+    synchronized long getDelay() {
+      return cached < 0 ? delay : cached;
+    }
+  }
+}
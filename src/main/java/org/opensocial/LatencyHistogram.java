@@ -0,0 +1,175 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.StageEvent.Stage;
+
+/**
+ * Immutable snapshot of the latencies of one stage of the requests for one
+ * provider and method, collected by {@link LatencyHistograms}. Latencies are
+ * counted in buckets whose bounds double from one microsecond, so that
+ * percentiles are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+  private final String provider;
+  private final String method;
+  private final Stage stage;
+  private final long[] buckets;
+  private final long count;
+  private final long totalTime;
+  private final long maxTime;
+  private final long requestBytes;
+  private final long responseBytes;
+
+  LatencyHistogram(String provider, String method, Stage stage,
+      long[] buckets, long totalTime, long maxTime, long requestBytes,
+      long responseBytes) {
+    this.provider = provider;
+    this.method = method;
+    this.stage = stage;
+    this.buckets = buckets;
+    this.totalTime = totalTime;
+    this.maxTime = maxTime;
+    this.requestBytes = requestBytes;
+    this.responseBytes = responseBytes;
+
+    long total = 0;
+    for (long bucket : buckets) {
+      total += bucket;
+    }
+    this.count = total;
+  }
+
+  /**
+   * Returns the provider's name, or its RPC or REST endpoint if it has none.
+   */
+  public String getProvider() {
+    return provider;
+  }
+
+  /**
+   * Returns the RPC methods, or the REST method and URL template.
+   *
+   * @see StageEvent#getMethod()
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * Returns the stage whose latencies were collected.
+   */
+  public Stage getStage() {
+    return stage;
+  }
+
+  /**
+   * Returns the number of recorded events.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the sum of all recorded latencies in nanoseconds.
+   */
+  public long getTotalTime() {
+    return totalTime;
+  }
+
+  /**
+   * Returns the mean latency in nanoseconds, or 0 if nothing was recorded.
+   */
+  public long getMeanTime() {
+    return count == 0 ? 0 : totalTime / count;
+  }
+
+  /**
+   * Returns the highest recorded latency in nanoseconds.
+   */
+  public long getMaxTime() {
+    return maxTime;
+  }
+
+  /**
+   * Returns an upper bound in nanoseconds of the passed percentile of the
+   * recorded latencies, e.g. 0.99 for the 99th percentile, or 0 if nothing
+   * was recorded.
+   *
+   * @param percentile percentile from 0 to 1
+   */
+  public long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(percentile * count);
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min(maxTime, getUpperBound(i));
+      }
+    }
+
+    return maxTime;
+  }
+
+  /**
+   * Returns the total size in bytes of the request bodies of the recorded
+   * events, where known.
+   */
+  public long getRequestBytes() {
+    return requestBytes;
+  }
+
+  /**
+   * Returns the total size in bytes of the response bodies of the recorded
+   * events, where known.
+   */
+  public long getResponseBytes() {
+    return responseBytes;
+  }
+
+  /**
+   * Returns the exclusive upper bound in nanoseconds of the passed bucket.
+   */
+  static long getUpperBound(int bucket) {
+    return 1000L << (bucket + 1);
+  }
+
+  /**
+   * Returns the bucket of the passed latency in nanoseconds, out of the
+   * passed number of buckets.
+   */
+  static int getBucket(long latency, int buckets) {
+    long micros = latency / 1000;
+    if (micros <= 1) {
+      return 0;
+    }
+
+    return Math.min(buckets - 1, 63 - Long.numberOfLeadingZeros(micros));
+  }
+
+  @Override
+  public String toString() {
+    return provider + " " + method + " " + stage + ": count=" + count +
+        ", mean=" + getMeanTime() / 1000 + "us, p50=" +
+        getPercentile(0.5) / 1000 + "us, p99=" + getPercentile(0.99) / 1000 +
+        "us, max=" + maxTime / 1000 + "us";
+  }
+}
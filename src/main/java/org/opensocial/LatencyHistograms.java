@@ -0,0 +1,186 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.StageEvent.Stage;
+import org.opensocial.providers.Provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link StageListener} which keeps a latency histogram per provider,
+ * method and stage in memory, e.g. to be exported to a dashboard. Recording
+ * is lock-free; snapshots are taken with {@link #getHistograms()}. Typical
+ * usage:
+ * <pre>
+ *   LatencyHistograms histograms = new LatencyHistograms();
+ *   client.setStageListener(histograms);
+ *   ...
+ *   for (LatencyHistogram histogram : histograms.getHistograms()) {
+ *     System.out.println(histogram);
+ *   }
+ * </pre>
+ */
+public class LatencyHistograms implements StageListener {
+
+  /**
+   * Number of buckets, covering latencies up to about 70 minutes.
+   */
+  private static final int BUCKETS = 32;
+
+  private final ConcurrentMap<Key, Recorder> recorders =
+    new ConcurrentHashMap<Key, Recorder>();
+
+  public void onStage(StageEvent event) {
+    Key key = new Key(getKey(event.getProvider()), event.getMethod(),
+        event.getStage());
+
+    Recorder recorder = recorders.get(key);
+    if (recorder == null) {
+      recorder = new Recorder();
+
+      Recorder existing = recorders.putIfAbsent(key, recorder);
+      if (existing != null) {
+        recorder = existing;
+      }
+    }
+
+    recorder.record(event);
+  }
+
+  /**
+   * Returns a snapshot of the histogram of the passed provider, method and
+   * stage, or null if no such event was recorded.
+   *
+   * @param provider provider name, or its RPC or REST endpoint if it has
+   *                 none
+   * @param method   RPC methods, or REST method and URL template
+   * @param stage    request stage
+   */
+  public LatencyHistogram getHistogram(String provider, String method,
+      Stage stage) {
+    Key key = new Key(provider, method, stage);
+    Recorder recorder = recorders.get(key);
+
+    return recorder == null ? null : recorder.snapshot(key);
+  }
+
+  /**
+   * Returns snapshots of all histograms.
+   */
+  public List<LatencyHistogram> getHistograms() {
+    List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+    for (Key key : recorders.keySet()) {
+      Recorder recorder = recorders.get(key);
+      if (recorder != null) {
+        histograms.add(recorder.snapshot(key));
+      }
+    }
+
+    return histograms;
+  }
+
+  /**
+   * Discards all recorded latencies.
+   */
+  public void reset() {
+    recorders.clear();
+  }
+
+  private static String getKey(Provider provider) {
+    if (provider.getName() != null) {
+      return provider.getName();
+    } else if (provider.getRpcEndpoint() != null) {
+      return provider.getRpcEndpoint();
+    }
+
+    return String.valueOf(provider.getRestEndpoint());
+  }
+
+  private static class Key {
+
+    private final String provider;
+    private final String method;
+    private final Stage stage;
+
+    Key(String provider, String method, Stage stage) {
+      this.provider = provider;
+      this.method = String.valueOf(method);
+      this.stage = stage;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+      return provider.equals(other.provider) &&
+          method.equals(other.method) && stage == other.stage;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * provider.hashCode() + method.hashCode()) +
+          stage.hashCode();
+    }
+  }
+
+  private static class Recorder {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+
+    void record(StageEvent event) {
+      long duration = Math.max(0, event.getDuration());
+
+      buckets.incrementAndGet(LatencyHistogram.getBucket(duration, BUCKETS));
+      totalTime.addAndGet(duration);
+
+      long max = maxTime.get();
+      while (duration > max && !maxTime.compareAndSet(max, duration)) {
+        max = maxTime.get();
+      }
+
+      if (event.getRequestBytes() > 0) {
+        requestBytes.addAndGet(event.getRequestBytes());
+      }
+      if (event.getResponseBytes() > 0) {
+        responseBytes.addAndGet(event.getResponseBytes());
+      }
+    }
+
+    LatencyHistogram snapshot(Key key) {
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = buckets.get(i);
+      }
+
+      return new LatencyHistogram(key.provider, key.method, key.stage,
+          counts, totalTime.get(), maxTime.get(), requestBytes.get(),
+          responseBytes.get());
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.models.Model;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over every entry of a paged collection, e.g. a user's friends or
+ * activities, returned by {@link Client#openCursor(Request, int)}. Pages are
+ * requested by setting the startIndex and count parameters on copies of the
+ * original {@link Request}; as soon as a page is received, the next page is
+ * requested asynchronously so that it is transferred while the caller is
+ * still processing the current one. Typical usage:
+ * <pre>
+ *   PageCursor&lt;Person&gt; friends = client.openCursor(
+ *       PeopleService.getFriends(), 100);
+ *   try {
+ *     while (friends.hasNext()) {
+ *       Person friend = friends.next();
+ *       ...
+ *     }
+ *   } finally {
+ *     friends.close();
+ *   }
+ * </pre>
+ * The end of the collection is detected using the totalResults value
+ * returned by the container or, if absent, by a page holding fewer entries
+ * than requested. Instances are not safe for concurrent use.
+ *
+ * @param <T> type of the collection entries, e.g. Person
+ */
+public class PageCursor<T extends Model> {
+
+  private final Client client;
+  private final Request request;
+  private final int pageSize;
+
+  private RequestFuture<Response> pending;
+  private int pendingStartIndex;
+  private Iterator<Model> page;
+  private Long totalResults;
+
+  PageCursor(Client client, Request request, int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be positive");
+    }
+
+    this.client = client;
+    this.request = request;
+    this.pageSize = pageSize;
+    this.page = Collections.<Model>emptyList().iterator();
+
+    String startIndex = request.getRestQueryStringParameters().get(
+        "startIndex");
+    fetch(startIndex == null ? 0 : Integer.parseInt(startIndex));
+  }
+
+  /**
+   * Returns true if the collection has more entries, blocking until the next
+   * page is received if all entries of the current page have been returned.
+   *
+   * @throws RequestException if the container returns an error code for a
+   *                          page request or its response cannot be parsed
+   * @throws IOException      if an I/O error causes a page request to fail
+   */
+  public boolean hasNext() throws RequestException, IOException {
+    while (!page.hasNext()) {
+      if (pending == null) {
+        return false;
+      }
+
+      RequestFuture<Response> future = pending;
+      int startIndex = pendingStartIndex;
+      pending = null;
+
+      Response response = future.getResult();
+      List<Model> entries = response.getEntries();
+      if (response.getTotalResults() != null) {
+        totalResults = response.getTotalResults();
+      }
+
+      int nextStartIndex = startIndex + entries.size();
+      if (hasMorePages(response, nextStartIndex)) {
+        fetch(nextStartIndex);
+      }
+
+      page = entries.iterator();
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the next entry of the collection, blocking until the next page is
+   * received if necessary.
+   *
+   * @throws NoSuchElementException if the collection has no more entries
+   * @throws RequestException       if the container returns an error code
+   *                                for a page request or its response cannot
+   *                                be parsed
+   * @throws IOException            if an I/O error causes a page request to
+   *                                fail
+   */
+  public T next() throws RequestException, IOException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    return (T) page.next();
+  }
+
+  /**
+   * Returns the total number of entries in the collection as reported by the
+   * container, or null if no page has been received yet or the container did
+   * not report it.
+   */
+  public Long getTotalResults() {
+    return totalResults;
+  }
+
+  /**
+   * Cancels the request for the next page, if any; no further pages are
+   * requested after this method is called.
+   */
+  public void close() {
+    if (pending != null) {
+      pending.cancel(true);
+      pending = null;
+    }
+
+    page = Collections.<Model>emptyList().iterator();
+  }
+
+  private boolean hasMorePages(Response response, int nextStartIndex) {
+    int received = response.getEntries().size();
+    if (received == 0) {
+      return false;
+    }
+
+    if (totalResults != null) {
+      return nextStartIndex < totalResults;
+    }
+
+    // Containers may cap the page size, in which case itemsPerPage reports
+    // the size actually used
+    int expected = pageSize;
+    if (response.getItemsPerPage() != null &&
+        response.getItemsPerPage() < expected) {
+      expected = response.getItemsPerPage().intValue();
+    }
+
+    return received >= expected;
+  }
+
+  private void fetch(int startIndex) {
+    Request pageRequest = request.copy();
+    pageRequest.setStartIndexParameter(startIndex);
+    pageRequest.setCountParameter(pageSize);
+
+    pending = client.sendAsync(pageRequest);
+    pendingStartIndex = startIndex;
+  }
+}
@@ -0,0 +1,42 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request when a fail-fast {@link RateLimiter}
+ * has no permit available for the request's provider.
+ */
+public class RateLimitException extends IOException {
+
+  private static final long serialVersionUID = -3527043377436592286L;
+
+  private final long retryAfter;
+
+  public RateLimitException(String message, long retryAfter) {
+    super(message);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Returns the time in milliseconds after which a permit is expected to be
+   * available.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+}
@@ -0,0 +1,338 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.http.HttpResponseMessage;
+import org.opensocial.providers.Provider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Paces the HTTP requests sent to each {@link Provider} using a token bucket
+ * which allows short bursts on top of a steady rate. When set on a
+ * {@link Client}, every HTTP request, i.e. every RPC batch or REST request,
+ * takes one permit from the bucket of the Provider it is sent to; Providers
+ * are told apart by name, or by endpoint if they have none, so all Clients
+ * sharing a RateLimiter also share each container's budget.
+ * <p>
+ * The rate adapts to the container's feedback: a 429 Too Many Requests or
+ * 503 Service Unavailable response, or an X-RateLimit-Remaining header of 0,
+ * halves the current rate, at most once per second, and a Retry-After
+ * header stops all requests until the time given. Afterwards the rate grows
+ * back linearly, reaching the configured rate again after the recovery time
+ * if no further throttling occurs.
+ * <p>
+ * A RateLimiter either makes callers wait for a permit or fails fast by
+ * throwing a {@link RateLimitException}. Instances are safe for concurrent
+ * use. Typical usage:
+ * <pre>
+ *   Client client = new Client.Builder(provider, authScheme)
+ *       .setRateLimiter(new RateLimiter(10, 20, true))
+ *       .build();
+ * </pre>
+ */
+public class RateLimiter {
+
+  public static final long DEFAULT_RECOVERY_TIME = 30000;
+
+  private static final int MIN_RATE_DIVISOR = 64;
+  private static final long DECREASE_INTERVAL = 1000000000L;
+  private static final String RETRY_AFTER = "Retry-After";
+  private static final String RATE_LIMIT_REMAINING = "X-RateLimit-Remaining";
+
+  private final double permitsPerSecond;
+  private final int burst;
+  private final boolean wait;
+  private final long recoveryTime;
+
+  private final ConcurrentMap<String, Bucket> buckets =
+    new ConcurrentHashMap<String, Bucket>();
+
+  /**
+   * Creates and returns a new {@link RateLimiter} whose rate recovers from
+   * throttling within {@value #DEFAULT_RECOVERY_TIME}ms.
+   *
+   * @param permitsPerSecond steady number of requests per second allowed for
+   *                         each provider
+   * @param burst            maximum number of requests which can be sent at
+   *                         once after a quiet period
+   * @param wait             true to make callers wait for a permit, false to
+   *                         throw a {@link RateLimitException} instead
+   */
+  public RateLimiter(double permitsPerSecond, int burst, boolean wait) {
+    this(permitsPerSecond, burst, wait, DEFAULT_RECOVERY_TIME);
+  }
+
+  /**
+   * Creates and returns a new {@link RateLimiter}.
+   *
+   * @param permitsPerSecond steady number of requests per second allowed for
+   *                         each provider
+   * @param burst            maximum number of requests which can be sent at
+   *                         once after a quiet period
+   * @param wait             true to make callers wait for a permit, false to
+   *                         throw a {@link RateLimitException} instead
+   * @param recoveryTime     time in milliseconds in which a throttled rate
+   *                         grows back to the configured rate
+   */
+  public RateLimiter(double permitsPerSecond, int burst, boolean wait,
+      long recoveryTime) {
+    if (!(permitsPerSecond > 0)) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive");
+    }
+    if (burst < 1) {
+      throw new IllegalArgumentException("burst must be positive");
+    }
+    if (recoveryTime < 1) {
+      throw new IllegalArgumentException("recoveryTime must be positive");
+    }
+
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.wait = wait;
+    this.recoveryTime = recoveryTime;
+  }
+
+  /**
+   * Returns the configured number of requests per second per provider.
+   */
+  public double getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  /**
+   * Returns the maximum number of requests sent at once.
+   */
+  public int getBurst() {
+    return burst;
+  }
+
+  /**
+   * Returns true if callers wait for permits rather than failing fast.
+   */
+  public boolean isWaiting() {
+    return wait;
+  }
+
+  /**
+   * Returns the current, possibly throttled, number of requests per second
+   * allowed for the passed {@link Provider}.
+   */
+  public double getRate(Provider provider) {
+    return getBucket(provider).getRate(System.nanoTime());
+  }
+
+  /**
+   * Takes a permit to send a request to the passed {@link Provider}, waiting
+   * until one is available or throwing a {@link RateLimitException} if
+   * callers should fail fast.
+   *
+   * @throws RateLimitException   if failing fast and no permit is available
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  public void acquire(Provider provider) throws IOException {
+    Bucket bucket = getBucket(provider);
+    long delay = bucket.reserve(System.nanoTime(), wait);
+
+    if (delay > 0 && !wait) {
+      throw new RateLimitException("Rate limit of " + getKey(provider) +
+          " exceeded", (delay + 999999) / 1000000);
+    }
+
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for a permit");
+      }
+    }
+  }
+
+  /**
+   * Takes a permit to send a request to the passed {@link Provider} if one
+   * is available right away, regardless of whether this RateLimiter makes
+   * callers wait.
+   *
+   * @return true if a permit was taken
+   */
+  public boolean tryAcquire(Provider provider) {
+    return getBucket(provider).reserve(System.nanoTime(), false) == 0;
+  }
+
+  /**
+   * Adapts the passed {@link Provider}'s rate to the passed response;
+   * called by the {@link Client} after each HTTP request.
+   *
+   * @param provider Provider the request was sent to
+   * @param response HTTP response returned by the container
+   */
+  public void update(Provider provider, HttpResponseMessage response) {
+    if (response == null) {
+      return;
+    }
+
+    int statusCode = response.getStatusCode();
+    boolean throttled = statusCode == 429 || statusCode == 503 ||
+        "0".equals(trim(response.getHeader(RATE_LIMIT_REMAINING)));
+
+    long retryAfter = -1;
+    if (statusCode == 429 || statusCode == 503) {
+      retryAfter = parseRetryAfter(response.getHeader(RETRY_AFTER),
+          System.currentTimeMillis());
+    }
+
+    if (throttled || retryAfter > 0) {
+      getBucket(provider).throttle(System.nanoTime(), retryAfter);
+    }
+  }
+
+  /**
+   * Returns the delay in milliseconds given by the passed Retry-After header
+   * value, either in seconds or as an HTTP date, or -1 if it is absent or
+   * malformed.
+   */
+  static long parseRetryAfter(String value, long now) {
+    value = trim(value);
+    if (value == null || value.length() == 0) {
+      return -1;
+    }
+
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      // Not a number of seconds; try an HTTP date
+    }
+
+    SimpleDateFormat format = new SimpleDateFormat(
+        "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    try {
+      return Math.max(0, format.parse(value).getTime() - now);
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  private static String trim(String value) {
+    return value == null ? null : value.trim();
+  }
+
+  private Bucket getBucket(Provider provider) {
+    String key = getKey(provider);
+
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = new Bucket(System.nanoTime());
+
+      Bucket existing = buckets.putIfAbsent(key, bucket);
+      if (existing != null) {
+        bucket = existing;
+      }
+    }
+
+    return bucket;
+  }
+
+  private static String getKey(Provider provider) {
+    if (provider.getName() != null) {
+      return provider.getName();
+    } else if (provider.getRpcEndpoint() != null) {
+      return provider.getRpcEndpoint();
+    }
+
+    return String.valueOf(provider.getRestEndpoint());
+  }
+
+  /**
+   * Token bucket of a single provider; times are in nanoseconds and the
+   * number of tokens goes negative when waiting callers reserve permits
+   * ahead of time, which keeps them in arrival order.
+   */
+  private class Bucket {
+
+    private double rate = permitsPerSecond;
+    private double tokens = burst;
+    private long updated;
+    private long blockedUntil;
+    private long lastDecrease;
+
+    Bucket(long now) {
+      updated = now;
+      lastDecrease = now - DECREASE_INTERVAL;
+    }
+
+    synchronized double getRate(long now) {
+      refill(now);
+
+      return rate;
+    }
+
+    /**
+     * Returns the time to wait before sending, reserving a permit if it is
+     * available right away or if the caller is willing to wait for it.
+     */
+    synchronized long reserve(long now, boolean wait) {
+      refill(now);
+
+      long delay = Math.max(0, blockedUntil - now);
+      if (tokens < 1) {
+        delay = Math.max(delay, (long) ((1 - tokens) / rate * 1e9));
+      }
+
+      if (delay == 0 || wait) {
+        tokens -= 1;
+      }
+
+      return delay;
+    }
+
+    synchronized void throttle(long now, long retryAfter) {
+      refill(now);
+
+      if (now - lastDecrease >= DECREASE_INTERVAL) {
+        rate = Math.max(permitsPerSecond / MIN_RATE_DIVISOR, rate / 2);
+        tokens = Math.min(tokens, 0);
+        lastDecrease = now;
+      }
+
+      if (retryAfter > 0) {
+        blockedUntil = Math.max(blockedUntil, now + retryAfter * 1000000);
+      }
+    }
+
+    private void refill(long now) {
+      long elapsed = now - updated;
+      if (elapsed <= 0) {
+        return;
+      }
+      updated = now;
+
+      tokens = Math.min(burst, tokens + elapsed / 1e9 * rate);
+
+      if (rate < permitsPerSecond) {
+        rate = Math.min(permitsPerSecond, rate + permitsPerSecond *
+            elapsed / (recoveryTime * 1e6));
+      }
+    }
+  }
+}
@@ -15,9 +15,13 @@
 
 package org.opensocial;
 
+import org.opensocial.http.ByteArrayPayload;
+import org.opensocial.http.FilePayload;
+import org.opensocial.http.Payload;
 import org.opensocial.models.Model;
 import org.opensocial.providers.Provider;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -53,7 +57,8 @@ public class Request {
   private String restMethod;
   private String restUrlTemplate;
   private String contentType;
-  private byte[] customPayload;
+  private Payload customPayload;
+  private Boolean idempotent;
 
   private Map<String, String> components;
   private Map<String, Object> rpcPayloadParameters;
@@ -115,13 +120,41 @@ public class Request {
   }
 
   /**
-   * Returns the request's custom payload if provided; if not null, this value
-   * overrides the JSON payload generated by the {@link Client}.
+   * Returns the request's custom payload if provided as a byte array; if not
+   * null, this value overrides the JSON payload generated by the
+   * {@link Client}. Returns null if the custom payload was set as a file, see
+   * {@link #getCustomPayloadSource()}.
    */
   public byte[] getCustomPayload() {
+    if (customPayload instanceof ByteArrayPayload) {
+      return ((ByteArrayPayload) customPayload).toByteArray();
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the request's custom payload, however it was provided, or null if
+   * the {@link Client} generates the payload.
+   */
+  public Payload getCustomPayloadSource() {
     return customPayload;
   }
 
+  /**
+   * Returns true if sending this request more than once has the same effect
+   * as sending it once, so that a {@link Client}'s {@link RetryPolicy} may
+   * repeat it after a transient failure. Unless set explicitly, only
+   * requests using the HTTP GET method are considered idempotent.
+   */
+  public boolean isIdempotent() {
+    if (idempotent != null) {
+      return idempotent.booleanValue();
+    }
+
+    return "GET".equals(restMethod);
+  }
+
   /**
    * Returns the request component with the specified name, e.g. guid or
    * groupId, or null if no request component with the specified name exists.
@@ -279,7 +312,35 @@ public class Request {
    * @param payload custom request payload to set
    */
   public void setCustomPayload(byte[] payload) {
-    this.customPayload = payload;
+    this.customPayload = payload == null ? null :
+      new ByteArrayPayload(payload);
+  }
+
+  /**
+   * Sets the payload to pass in the corresponding HTTP request's body to the
+   * content of the passed file, e.g. an image or video to upload. The file
+   * is streamed to the container rather than loaded into memory, provided
+   * the {@link Client}'s {@link org.opensocial.auth.AuthScheme} implements
+   * {@link org.opensocial.auth.PayloadAuthScheme}, and must not change until
+   * the request has been sent.
+   *
+   * @param file file whose content to send as the request payload
+   * @see        #setCustomPayload(byte[])
+   */
+  public void setCustomPayload(File file) {
+    this.customPayload = file == null ? null : new FilePayload(file);
+  }
+
+  /**
+   * Marks this request as safe, or unsafe, to send more than once, e.g. to
+   * allow retrying an activities.create request whose activity the
+   * container is known to deduplicate.
+   *
+   * @param idempotent true if the request may be repeated
+   * @see              #isIdempotent()
+   */
+  public void setIdempotent(boolean idempotent) {
+    this.idempotent = Boolean.valueOf(idempotent);
   }
 
   /**
@@ -462,4 +523,38 @@ public class Request {
   public void setModelClass(Class<? extends Model> modelClass) {
     this.modelClass = modelClass;
   }
+
+  /**
+   * Returns a copy of this request with its own parameter maps, so that
+   * parameters such as startIndex can be changed on the copy without
+   * affecting the original; parameter values and any custom payload are
+   * shared.
+   */
+  Request copy() {
+    Request copy = new Request(restUrlTemplate, rpcMethod, restMethod);
+    copy.contentType = contentType;
+    copy.customPayload = customPayload;
+    copy.idempotent = idempotent;
+    copy.modelClass = modelClass;
+    copy.components.putAll(components);
+
+    if (rpcPayloadParameters != null) {
+      copy.rpcPayloadParameters =
+        new HashMap<String, Object>(rpcPayloadParameters);
+    }
+    if (restPayloadParameters != null) {
+      copy.restPayloadParameters =
+        new HashMap<String, Object>(restPayloadParameters);
+    }
+    if (rpcQueryStringParameters != null) {
+      copy.rpcQueryStringParameters =
+        new HashMap<String, String>(rpcQueryStringParameters);
+    }
+    if (restQueryStringParameters != null) {
+      copy.restQueryStringParameters =
+        new HashMap<String, String>(restQueryStringParameters);
+    }
+
+    return copy;
+  }
 }
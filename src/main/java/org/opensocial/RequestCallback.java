@@ -0,0 +1,42 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+/**
+ * Completion callback for requests submitted asynchronously through one of
+ * the {@link Client}'s sendAsync methods. Exactly one of the two methods is
+ * invoked once the request completes, on the thread that completed it.
+ *
+ * @param <V> type of the result delivered on success, i.e. {@link Response}
+ *            or a Map of Response objects
+ */
+public interface RequestCallback<V> {
+
+  /**
+   * Invoked with the result of the request after it completes successfully.
+   *
+   * @param result value returned by the corresponding send method
+   */
+  public void onSuccess(V result);
+
+  /**
+   * Invoked if the request fails or is cancelled; the passed cause is
+   * typically a {@link RequestException} or an {@link java.io.IOException}.
+   *
+   * @param cause exception that prevented the request from completing
+   */
+  public void onFailure(Throwable cause);
+}
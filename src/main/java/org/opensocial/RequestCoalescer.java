@@ -0,0 +1,317 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.auth.AuthScheme;
+import org.opensocial.providers.Provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front-end for one or more {@link Client}s which coalesces individual
+ * requests submitted by independent threads into RPC batches. Requests are
+ * collected until the batching window elapses or the maximum batch size is
+ * reached, then sent as a single RPC request per {@link Provider} and
+ * {@link AuthScheme} pair; each caller receives its own {@link Response}.
+ * Typical usage:
+ * <pre>
+ *   RequestCoalescer coalescer = new RequestCoalescer(client, 10, 50);
+ *   Response response = coalescer.send(PeopleService.getUser(guid));
+ * </pre>
+ * Requests for providers without an RPC endpoint, and requests which cannot
+ * share a batch because they carry a custom payload, content type or RPC
+ * query string parameters, are passed straight through to the client.
+ * Instances are safe for concurrent use.
+ *
+ * @see Client#send(Map)
+ */
+public class RequestCoalescer {
+
+  private final Client client;
+  private final long window;
+  private final int maxBatchSize;
+
+  private final Map<BatchKey, Batch> batches;
+
+  /**
+   * Creates and returns a new {@link RequestCoalescer} which submits batches
+   * through the passed {@link Client}.
+   *
+   * @param client       Client to send coalesced batches through
+   * @param window       time in milliseconds to wait for further requests
+   *                     after the first request of a batch is submitted
+   * @param maxBatchSize number of requests after which a batch is sent
+   *                     without waiting for the window to elapse
+   */
+  public RequestCoalescer(Client client, long window, int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be positive");
+    }
+
+    this.client = client;
+    this.window = window;
+    this.maxBatchSize = maxBatchSize;
+    this.batches = new HashMap<BatchKey, Batch>();
+  }
+
+  /**
+   * Submits the passed {@link Request} as part of the next batch and blocks
+   * until its {@link Response} is available.
+   *
+   * @param  request Request object encapsulating all request data
+   * @return         Response object encapsulating the response data returned
+   *                 by the container for the passed request
+   *
+   * @throws RequestException if the batch cannot be serialized, the container
+   *                          returns an error code, or the response cannot
+   *                          be parsed
+   * @throws IOException      if an I/O error causes batch transmission to
+   *                          fail
+   */
+  public Response send(Request request) throws RequestException, IOException {
+    return sendAsync(client, request).getResult();
+  }
+
+  /**
+   * Submits the passed {@link Request} as part of the next batch sent through
+   * the passed {@link Client} and blocks until its {@link Response} is
+   * available. Requests submitted through different clients share a batch
+   * if the clients share both {@link Provider} and {@link AuthScheme}.
+   *
+   * @param  client  Client to send the request through
+   * @param  request Request object encapsulating all request data
+   * @return         Response object encapsulating the response data returned
+   *                 by the container for the passed request
+   *
+   * @throws RequestException if the batch cannot be serialized, the container
+   *                          returns an error code, or the response cannot
+   *                          be parsed
+   * @throws IOException      if an I/O error causes batch transmission to
+   *                          fail
+   */
+  public Response send(Client client, Request request) throws
+      RequestException, IOException {
+    return sendAsync(client, request).getResult();
+  }
+
+  /**
+   * Submits the passed {@link Request} as part of the next batch and returns
+   * immediately with a {@link RequestFuture} which completes with its
+   * {@link Response}.
+   *
+   * @param  request Request object encapsulating all request data
+   * @return         RequestFuture which completes with the Response object
+   */
+  public RequestFuture<Response> sendAsync(Request request) {
+    return sendAsync(client, request);
+  }
+
+  /**
+   * Submits the passed {@link Request} as part of the next batch sent through
+   * the passed {@link Client} and returns immediately with a
+   * {@link RequestFuture} which completes with its {@link Response}.
+   *
+   * @param  client  Client to send the request through
+   * @param  request Request object encapsulating all request data
+   * @return         RequestFuture which completes with the Response object
+   */
+  public RequestFuture<Response> sendAsync(Client client, Request request) {
+    if (!isCoalescable(client, request)) {
+      return client.sendAsync(request);
+    }
+
+    RequestFuture<Response> future = new RequestFuture<Response>();
+    Batch full = null;
+
+    synchronized (batches) {
+      BatchKey key = new BatchKey(client);
+      Batch batch = batches.get(key);
+
+      if (batch == null) {
+        batch = new Batch(key, client);
+        batches.put(key, batch);
+        schedule(batch);
+      }
+
+      batch.add(request, future);
+      if (batch.size() >= maxBatchSize) {
+        batches.remove(key);
+        full = batch;
+      }
+    }
+
+    if (full != null) {
+      dispatch(full);
+    }
+
+    return future;
+  }
+
+  /**
+   * Sends all pending batches immediately without waiting for their windows
+   * to elapse.
+   */
+  public void flush() {
+    List<Batch> pending;
+    synchronized (batches) {
+      pending = new ArrayList<Batch>(batches.values());
+      batches.clear();
+    }
+
+    for (Batch batch : pending) {
+      dispatch(batch);
+    }
+  }
+
+  private boolean isCoalescable(Client client, Request request) {
+    return client.getProvider().getRpcEndpoint() != null &&
+        request.getCustomPayloadSource() == null &&
+        request.getContentType() == null &&
+        request.getRpcQueryStringParameters().isEmpty();
+  }
+
+  private void schedule(final Batch batch) {
+    Scheduler.SCHEDULER.schedule(new Runnable() {
+      public void run() {
+        synchronized (batches) {
+          if (batches.get(batch.key) != batch) {
+            // Already sent because it reached the maximum size or was flushed
+            return;
+          }
+          batches.remove(batch.key);
+        }
+
+        dispatch(batch);
+      }
+    }, Math.max(window, 0), TimeUnit.MILLISECONDS);
+  }
+
+  private void dispatch(final Batch batch) {
+    try {
+      Client.getInternalExecutor().execute(new Runnable() {
+        public void run() {
+          batch.send();
+        }
+      });
+    } catch (RuntimeException e) {
+      batch.fail(e);
+    }
+  }
+
+  private static class BatchKey {
+
+    private final Provider provider;
+    private final AuthScheme authScheme;
+
+    BatchKey(Client client) {
+      this.provider = client.getProvider();
+      this.authScheme = client.getAuthScheme();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BatchKey)) {
+        return false;
+      }
+
+      BatchKey other = (BatchKey) o;
+      return provider == other.provider && authScheme == other.authScheme;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(provider) +
+          System.identityHashCode(authScheme);
+    }
+  }
+
+  private static class Batch {
+
+    private final BatchKey key;
+    private final Client client;
+    private final Map<String, Request> requests;
+    private final Map<String, RequestFuture<Response>> futures;
+
+    Batch(BatchKey key, Client client) {
+      this.key = key;
+      this.client = client;
+      this.requests = new LinkedHashMap<String, Request>();
+      this.futures = new LinkedHashMap<String, RequestFuture<Response>>();
+    }
+
+    void add(Request request, RequestFuture<Response> future) {
+      String id = "r" + requests.size();
+
+      requests.put(id, request);
+      futures.put(id, future);
+    }
+
+    int size() {
+      return requests.size();
+    }
+
+    void send() {
+      Map<String, Request> live = new HashMap<String, Request>();
+      for (Map.Entry<String, Request> entry : requests.entrySet()) {
+        if (!futures.get(entry.getKey()).isCancelled()) {
+          live.put(entry.getKey(), entry.getValue());
+        }
+      }
+
+      if (live.isEmpty()) {
+        return;
+      }
+
+      try {
+        Map<String, Response> responses = client.send(live);
+
+        for (String id : live.keySet()) {
+          futures.get(id).complete(responses.get(id));
+        }
+      } catch (Throwable t) {
+        fail(t);
+      }
+    }
+
+    void fail(Throwable cause) {
+      for (RequestFuture<Response> future : futures.values()) {
+        future.fail(cause);
+      }
+    }
+  }
+
+  private static class Scheduler {
+
+    static final ScheduledExecutorService SCHEDULER =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "opensocial-coalescer");
+          thread.setDaemon(true);
+
+          return thread;
+        }
+      });
+  }
+}
@@ -0,0 +1,177 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pending result of a request submitted through one of the {@link Client}'s
+ * sendAsync methods. In addition to the standard Future methods, callers can
+ * register {@link RequestCallback}s which are invoked when the request
+ * completes, or block on {@link #getResult()} which rethrows the same checked
+ * exceptions as the synchronous send methods.
+ *
+ * @param <V> type of the request result, i.e. {@link Response} or a Map of
+ *            Response objects
+ */
+public class RequestFuture<V> extends FutureTask<V> {
+
+  private static Logger logger = Logger.getLogger("org.opensocial.client");
+
+  private List<RequestCallback<? super V>> callbacks;
+
+  /**
+   * Creates and returns a new {@link RequestFuture} which will execute the
+   * passed {@link Callable} when run.
+   *
+   * @param callable task computing the request result
+   */
+  public RequestFuture(Callable<V> callable) {
+    super(callable);
+
+    callbacks = new ArrayList<RequestCallback<? super V>>();
+  }
+
+  /**
+   * Creates and returns a new {@link RequestFuture} whose result is supplied
+   * through {@link #complete(Object)} or {@link #fail(Throwable)} rather than
+   * by running a task.
+   */
+  RequestFuture() {
+    this(new Callable<V>() {
+      public V call() throws Exception {
+        throw new IllegalStateException("Result is set externally");
+      }
+    });
+  }
+
+  /**
+   * Registers a callback to be invoked when the request completes. If the
+   * request has already completed, the callback is invoked immediately on
+   * the calling thread.
+   *
+   * @param callback callback to invoke on completion
+   */
+  public void addCallback(RequestCallback<? super V> callback) {
+    synchronized (callbacks) {
+      if (!isDone()) {
+        callbacks.add(callback);
+        return;
+      }
+    }
+
+    invoke(callback);
+  }
+
+  /**
+   * Waits for the request to complete and returns its result, rethrowing any
+   * {@link RequestException} or {@link IOException} raised while executing
+   * the request.
+   *
+   * @throws RequestException if the request could not be serialized, the
+   *                          container returned an error code, or the
+   *                          response could not be parsed
+   * @throws IOException      if an I/O error caused request transmission to
+   *                          fail or the waiting thread was interrupted
+   */
+  public V getResult() throws RequestException, IOException {
+    try {
+      return get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting " +
+          "for response");
+    } catch (CancellationException e) {
+      throw new RequestException("Request was cancelled");
+    } catch (ExecutionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  void complete(V result) {
+    set(result);
+  }
+
+  void fail(Throwable cause) {
+    setException(cause);
+  }
+
+  @Override
+  protected void done() {
+    List<RequestCallback<? super V>> pending;
+    synchronized (callbacks) {
+      pending = new ArrayList<RequestCallback<? super V>>(callbacks);
+      callbacks.clear();
+    }
+
+    for (RequestCallback<? super V> callback : pending) {
+      invoke(callback);
+    }
+  }
+
+  private void invoke(RequestCallback<? super V> callback) {
+    try {
+      V result;
+      try {
+        result = get();
+      } catch (ExecutionException e) {
+        callback.onFailure(e.getCause());
+        return;
+      } catch (CancellationException e) {
+        callback.onFailure(e);
+        return;
+      } catch (InterruptedException e) {
+        // Cannot happen since the task is done; restore the flag regardless
+        Thread.currentThread().interrupt();
+        callback.onFailure(e);
+        return;
+      }
+
+      callback.onSuccess(result);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Request callback threw an exception", e);
+    }
+  }
+
+  static RequestException unwrap(ExecutionException e) throws IOException {
+    Throwable cause = e.getCause();
+
+    if (cause instanceof RequestException) {
+      return (RequestException) cause;
+    } else if (cause instanceof IOException) {
+      throw (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+
+    RequestException exception = new RequestException(
+        "Request failed: " + cause);
+    exception.initCause(cause);
+
+    return exception;
+  }
+}
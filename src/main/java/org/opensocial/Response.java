@@ -19,6 +19,7 @@ import org.opensocial.http.HttpResponseMessage;
 import org.opensocial.models.Model;
 import org.opensocial.parsers.JsonParser;
 import org.opensocial.parsers.Parser;
+import org.opensocial.parsers.StreamingParser;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -50,7 +51,16 @@ public class Response {
   static Map<String, Response> parseRpcResponse(
       Map<String, Request> requests, HttpResponseMessage responseMessage,
       String version) {
-    Parser parser = getParser(responseMessage.getResponse());
+    return parseRpcResponse(requests, responseMessage, version, null);
+  }
+
+  static Map<String, Response> parseRpcResponse(
+      Map<String, Request> requests, HttpResponseMessage responseMessage,
+      String version, Parser jsonParser) {
+    Parser parser = getParser(responseMessage, jsonParser);
+    if (parser == null) {
+      return new HashMap<String, Response>();
+    }
 
     Map<String, Class<? extends Model>> modelClasses =
         new HashMap<String, Class<? extends Model>>();
@@ -59,6 +69,11 @@ public class Response {
       modelClasses.put(requestEntry.getKey(), request.getModelClass());
     }
 
+    if (parser instanceof StreamingParser) {
+      return ((StreamingParser) parser).getResponseMap(
+          responseMessage.getResponseReader(), modelClasses, version);
+    }
+
     return parser.getResponseMap(responseMessage.getResponse(), modelClasses,
         version);
   }
@@ -76,19 +91,45 @@ public class Response {
    *                         provider that returned the response data, e.g.
    *                         "0.9"
    * @return                 new Response object encapsulating parsed response
-   *                         data
+   *                         data; empty if the provider returned no body
    */
   static Response parseRestResponse(Request request,
       HttpResponseMessage responseMessage, String version) {
-    Parser parser = getParser(responseMessage.getResponse());
+    return parseRestResponse(request, responseMessage, version, null);
+  }
+
+  /**
+   * Parses the raw response data received from a provider using the passed
+   * {@link Parser} for JSON-encoded data and returns the parsed data as a
+   * {@link Response}.
+   *
+   * @param  jsonParser Parser to use for JSON-encoded responses, or null to
+   *                    use a {@link JsonParser}
+   * @see               #parseRestResponse(Request, HttpResponseMessage, String)
+   */
+  static Response parseRestResponse(Request request,
+      HttpResponseMessage responseMessage, String version,
+      Parser jsonParser) {
+    Parser parser = getParser(responseMessage, jsonParser);
+    if (parser == null) {
+      return new Response();
+    }
+
+    if (parser instanceof StreamingParser) {
+      return ((StreamingParser) parser).getResponseObject(
+          responseMessage.getResponseReader(), request.getModelClass(),
+          version);
+    }
 
     return parser.getResponseObject(responseMessage.getResponse(),
         request.getModelClass(), version);
   }
 
-  private static Parser getParser(String responseBody) {
-    if (responseBody.startsWith("{") || responseBody.startsWith("[")) {
-      return new JsonParser();
+  private static Parser getParser(HttpResponseMessage responseMessage,
+      Parser jsonParser) {
+    int first = responseMessage.getFirstCharacter();
+    if (first == '{' || first == '[') {
+      return jsonParser != null ? jsonParser : new JsonParser();
     }
 
     return null;
@@ -0,0 +1,289 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.http.HttpResponseMessage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Retries HTTP requests which failed transiently, i.e. with an I/O error
+ * such as a connection reset or with a 429, 502, 503 or 504 status code.
+ * When set on a {@link Client}, only requests which are safe to repeat are
+ * retried: REST requests whose {@link Request} is idempotent and RPC batches
+ * made up of idempotent requests only. By default these are the requests
+ * using the GET method, so that e.g. activities.create or mediaItems.create
+ * requests are never sent twice unless marked with
+ * {@link Request#setIdempotent(boolean)}.
+ * <p>
+ * The delay before each retry is chosen with decorrelated jitter: a random
+ * time between the base delay and three times the previous delay, capped at
+ * the maximum delay, which spreads retries from many clients over time. A
+ * Retry-After header sent by the container extends the delay; if it
+ * exceeds the maximum delay, the response is returned without retrying.
+ * <p>
+ * Retries are limited by a budget shared by all requests sent through this
+ * policy: every request adds a fraction of a retry to the budget, up to a
+ * fixed reserve, and every retry takes one. When a container is down, the
+ * budget runs dry and requests fail after their first attempt instead of
+ * multiplying the load. Instances are safe for concurrent use and should be
+ * shared, e.g. by the Clients of a single container. Typical usage:
+ * <pre>
+ *   client.setRetryPolicy(new RetryPolicy());
+ * </pre>
+ */
+public class RetryPolicy {
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final long DEFAULT_BASE_DELAY = 100;
+  public static final long DEFAULT_MAX_DELAY = 5000;
+  public static final double DEFAULT_BUDGET_RATIO = 0.2;
+  public static final int DEFAULT_BUDGET_RESERVE = 10;
+
+  private final int maxAttempts;
+  private final long baseDelay;
+  private final long maxDelay;
+  private final double budgetRatio;
+  private final int budgetReserve;
+
+  private final Random random = new Random();
+
+  private double budget;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong budgetRejections = new AtomicLong();
+  private final AtomicLong exhausted = new AtomicLong();
+  private final AtomicLongArray attempts;
+  private final AtomicLongArray failures;
+
+  /**
+   * Creates and returns a new {@link RetryPolicy} making up to
+   * {@value #DEFAULT_MAX_ATTEMPTS} attempts per request with delays between
+   * {@value #DEFAULT_BASE_DELAY}ms and {@value #DEFAULT_MAX_DELAY}ms, and
+   * allowing retries for a fifth of the requests.
+   */
+  public RetryPolicy() {
+    this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY,
+        DEFAULT_BUDGET_RATIO, DEFAULT_BUDGET_RESERVE);
+  }
+
+  /**
+   * Creates and returns a new {@link RetryPolicy}.
+   *
+   * @param maxAttempts   maximum number of attempts per request, including
+   *                      the first one
+   * @param baseDelay     minimum delay in milliseconds before a retry
+   * @param maxDelay      maximum delay in milliseconds before a retry
+   * @param budgetRatio   number of retries each request adds to the budget,
+   *                      e.g. 0.2 to allow one retry per five requests
+   * @param budgetReserve maximum number of retries the budget holds, which
+   *                      is also its initial balance
+   */
+  public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+      double budgetRatio, int budgetReserve) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be positive");
+    }
+    if (baseDelay < 0 || maxDelay < baseDelay) {
+      throw new IllegalArgumentException(
+          "delays must satisfy 0 <= baseDelay <= maxDelay");
+    }
+    if (budgetRatio < 0 || budgetReserve < 0) {
+      throw new IllegalArgumentException("budget must not be negative");
+    }
+
+    this.maxAttempts = maxAttempts;
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.budgetRatio = budgetRatio;
+    this.budgetReserve = budgetReserve;
+    this.budget = budgetReserve;
+
+    attempts = new AtomicLongArray(maxAttempts);
+    failures = new AtomicLongArray(maxAttempts);
+  }
+
+  /**
+   * Returns the maximum number of attempts per request.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Returns the minimum delay in milliseconds before a retry.
+   */
+  public long getBaseDelay() {
+    return baseDelay;
+  }
+
+  /**
+   * Returns the maximum delay in milliseconds before a retry.
+   */
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  /**
+   * Returns a snapshot of the retry statistics.
+   */
+  public RetryStats getStats() {
+    long[] attemptCounts = new long[maxAttempts];
+    long[] failureCounts = new long[maxAttempts];
+    for (int i = 0; i < maxAttempts; i++) {
+      attemptCounts[i] = attempts.get(i);
+      failureCounts[i] = failures.get(i);
+    }
+
+    return new RetryStats(requests.get(), retries.get(),
+        budgetRejections.get(), exhausted.get(), attemptCounts,
+        failureCounts);
+  }
+
+  /**
+   * Returns true if the passed response indicates a transient failure which
+   * may succeed when retried.
+   */
+  protected boolean isRetryable(HttpResponseMessage response) {
+    if (response == null) {
+      return false;
+    }
+
+    int statusCode = response.getStatusCode();
+
+    return statusCode == 429 || statusCode == 502 || statusCode == 503 ||
+        statusCode == 504;
+  }
+
+  /**
+   * Returns true if the passed exception indicates a transient failure which
+   * may not recur when the request is retried; interruptions, rejections by
+   * a fail-fast {@link RateLimiter} and by an open {@link CircuitBreaker}
+   * are not retried.
+   */
+  protected boolean isRetryable(IOException e) {
+    if (e instanceof RateLimitException || e instanceof CircuitOpenException) {
+      return false;
+    }
+    if (e instanceof InterruptedIOException &&
+        !(e instanceof SocketTimeoutException)) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Executes the passed exchange, repeating it while it fails transiently
+   * and attempts and budget remain. Returns the last response, which may
+   * still be a failed one, or throws the last exception.
+   */
+  HttpResponseMessage execute(Client.Exchange exchange)
+      throws RequestException, IOException {
+    requests.incrementAndGet();
+    deposit();
+
+    long delay = baseDelay;
+    for (int attempt = 1; ; attempt++) {
+      attempts.incrementAndGet(attempt - 1);
+
+      HttpResponseMessage response = null;
+      IOException failure = null;
+      try {
+        response = exchange.execute();
+        if (!isRetryable(response)) {
+          return response;
+        }
+      } catch (IOException e) {
+        if (!isRetryable(e)) {
+          throw e;
+        }
+        failure = e;
+      }
+
+      failures.incrementAndGet(attempt - 1);
+
+      delay = nextDelay(delay);
+      if (response != null) {
+        long retryAfter = RateLimiter.parseRetryAfter(
+            response.getHeader("Retry-After"), System.currentTimeMillis());
+        delay = Math.max(delay, retryAfter);
+      }
+
+      if (attempt >= maxAttempts || delay > maxDelay) {
+        exhausted.incrementAndGet();
+      } else if (!withdraw()) {
+        budgetRejections.incrementAndGet();
+      } else {
+        retries.incrementAndGet();
+        sleep(delay);
+        continue;
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+      return response;
+    }
+  }
+
+  /**
+   * Returns the delay before the next retry given the previous delay, using
+   * decorrelated jitter.
+   */
+  long nextDelay(long previousDelay) {
+    long upper = Math.min(maxDelay, Math.max(baseDelay, previousDelay * 3));
+
+    double fraction;
+    synchronized (random) {
+      fraction = random.nextDouble();
+    }
+
+    return baseDelay + (long) (fraction * (upper - baseDelay));
+  }
+
+  private synchronized void deposit() {
+    budget = Math.min(budgetReserve, budget + budgetRatio);
+  }
+
+  private synchronized boolean withdraw() {
+    if (budget < 1) {
+      return false;
+    }
+
+    budget -= 1;
+    return true;
+  }
+
+  private static void sleep(long delay) throws InterruptedIOException {
+    if (delay <= 0) {
+      return;
+    }
+
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+}
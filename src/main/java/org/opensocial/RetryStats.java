@@ -0,0 +1,99 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of {@link RetryPolicy} statistics. Attempts are
+ * numbered from 1, the first attempt of each request.
+ */
+public class RetryStats {
+
+  private final long requests;
+  private final long retries;
+  private final long budgetRejections;
+  private final long exhausted;
+  private final long[] attempts;
+  private final long[] failures;
+
+  RetryStats(long requests, long retries, long budgetRejections,
+      long exhausted, long[] attempts, long[] failures) {
+    this.requests = requests;
+    this.retries = retries;
+    this.budgetRejections = budgetRejections;
+    this.exhausted = exhausted;
+    this.attempts = attempts;
+    this.failures = failures;
+  }
+
+  /**
+   * Returns the number of requests sent through the policy.
+   */
+  public long getRequests() {
+    return requests;
+  }
+
+  /**
+   * Returns the number of retries made.
+   */
+  public long getRetries() {
+    return retries;
+  }
+
+  /**
+   * Returns the number of transient failures which were not retried because
+   * the retry budget was exhausted.
+   */
+  public long getBudgetRejections() {
+    return budgetRejections;
+  }
+
+  /**
+   * Returns the number of requests which still failed after their last
+   * allowed attempt, or whose Retry-After exceeded the maximum delay.
+   */
+  public long getExhausted() {
+    return exhausted;
+  }
+
+  /**
+   * Returns the number of times the passed attempt was made, e.g. 2 for the
+   * number of first retries.
+   *
+   * @param attempt attempt number, from 1 to the maximum number of attempts
+   */
+  public long getAttempts(int attempt) {
+    return attempts[attempt - 1];
+  }
+
+  /**
+   * Returns the number of times the passed attempt failed transiently.
+   *
+   * @param attempt attempt number, from 1 to the maximum number of attempts
+   */
+  public long getFailures(int attempt) {
+    return failures[attempt - 1];
+  }
+
+  @Override
+  public String toString() {
+    return "requests=" + requests + ", retries=" + retries +
+        ", budgetRejections=" + budgetRejections + ", exhausted=" +
+        exhausted + ", attempts=" + Arrays.toString(attempts) +
+        ", failures=" + Arrays.toString(failures);
+  }
+}
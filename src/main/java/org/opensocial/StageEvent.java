@@ -0,0 +1,143 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import org.opensocial.providers.Provider;
+
+/**
+ * Timing of a single stage of a request sent by a {@link Client}, reported
+ * to its {@link StageListener}. Events of an RPC batch name all RPC methods
+ * of the batch, separated by commas, e.g. "people.get,activities.get";
+ * events of a REST request name its HTTP method and URL template, e.g.
+ * "GET people/{guid}/{selector}/{pid}". Sizes and status codes which don't
+ * apply to a stage, or are unknown, are -1.
+ */
+public class StageEvent {
+
+  /**
+   * Stage of the request pipeline, in the order they run. SIGN, EXECUTE and
+   * READ are reported for every attempt, e.g. for retried or hedged
+   * requests.
+   */
+  public enum Stage {
+
+    /**
+     * Serialization of the request body.
+     */
+    BUILD_PAYLOAD,
+
+    /**
+     * Construction of the signed HTTP message by the
+     * {@link org.opensocial.auth.AuthScheme}.
+     */
+    SIGN,
+
+    /**
+     * HTTP exchange up to the response headers, or up to the complete
+     * response if the HttpClient doesn't time reads separately.
+     */
+    EXECUTE,
+
+    /**
+     * Reading and decompressing the response body.
+     */
+    READ,
+
+    /**
+     * Parsing the response body into {@link Response}s.
+     */
+    PARSE
+  }
+
+  private final Stage stage;
+  private final Provider provider;
+  private final String method;
+  private final long duration;
+  private final long requestBytes;
+  private final long responseBytes;
+  private final int statusCode;
+
+  StageEvent(Stage stage, Provider provider, String method, long duration,
+      long requestBytes, long responseBytes, int statusCode) {
+    this.stage = stage;
+    this.provider = provider;
+    this.method = method;
+    this.duration = duration;
+    this.requestBytes = requestBytes;
+    this.responseBytes = responseBytes;
+    this.statusCode = statusCode;
+  }
+
+  /**
+   * Returns the completed stage.
+   */
+  public Stage getStage() {
+    return stage;
+  }
+
+  /**
+   * Returns the {@link Provider} the request was sent to.
+   */
+  public Provider getProvider() {
+    return provider;
+  }
+
+  /**
+   * Returns the RPC methods, or the REST method and URL template, of the
+   * request.
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * Returns the duration of the stage in nanoseconds.
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  /**
+   * Returns the size in bytes of the request body, or -1 if there is none or
+   * it doesn't apply to the stage.
+   */
+  public long getRequestBytes() {
+    return requestBytes;
+  }
+
+  /**
+   * Returns the size in bytes of the response body as read, i.e. after
+   * decompression, or -1 if it doesn't apply to the stage.
+   */
+  public long getResponseBytes() {
+    return responseBytes;
+  }
+
+  /**
+   * Returns the HTTP status code of the response, or -1 if it doesn't apply
+   * to the stage or the exchange failed without a response.
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  @Override
+  public String toString() {
+    return stage + " " + method + " " + duration + "ns, requestBytes=" +
+        requestBytes + ", responseBytes=" + responseBytes + ", statusCode=" +
+        statusCode;
+  }
+}
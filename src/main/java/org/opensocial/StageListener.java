@@ -0,0 +1,34 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+/**
+ * Receives a timed {@link StageEvent} for each stage of every request a
+ * {@link Client} sends, e.g. to find out whether slow calls spend their
+ * time signing, on the network or parsing. Listeners are called on the
+ * thread running the stage, possibly by many threads at once, and should
+ * return quickly; see {@link LatencyHistograms} for an aggregating
+ * implementation.
+ */
+public interface StageListener {
+
+  /**
+   * Called when a stage of a request has completed.
+   *
+   * @param event timing and sizes of the stage
+   */
+  void onStage(StageEvent event);
+}
@@ -0,0 +1,151 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RESTful URL template such as people/{guid}/{selector}/{pid}, compiled once
+ * into a list of literal and placeholder segments so that expanding it for
+ * each {@link Request} needs neither splitting nor scanning the template.
+ * Compiled templates are cached by template string; since templates come
+ * from the service classes, the cache stays small, but it stops growing
+ * after {@value #MAX_CACHED_TEMPLATES} templates regardless.
+ */
+final class UrlTemplate {
+
+  static final int MAX_CACHED_TEMPLATES = 256;
+
+  private static final Map<String, UrlTemplate> CACHE =
+    new ConcurrentHashMap<String, UrlTemplate>();
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private final String[] literals;
+  private final String[] placeholders;
+  private final int length;
+
+  private UrlTemplate(String template) {
+    List<String> literals = new ArrayList<String>();
+    List<String> placeholders = new ArrayList<String>();
+
+    for (String component : template.split("/")) {
+      if (component.startsWith("{") && component.endsWith("}")) {
+        literals.add(null);
+        placeholders.add(component.substring(1, component.length() - 1));
+      } else {
+        literals.add(component + "/");
+        placeholders.add(null);
+      }
+    }
+
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.placeholders = placeholders.toArray(new String[placeholders.size()]);
+    this.length = template.length();
+  }
+
+  /**
+   * Returns the compiled form of the passed template string.
+   */
+  static UrlTemplate compile(String template) {
+    UrlTemplate compiled = CACHE.get(template);
+    if (compiled == null) {
+      compiled = new UrlTemplate(template);
+      if (CACHE.size() < MAX_CACHED_TEMPLATES) {
+        CACHE.put(template, compiled);
+      }
+    }
+
+    return compiled;
+  }
+
+  /**
+   * Returns an estimate of the expanded template's length, useful to size
+   * the buffer passed to {@link #expand(Request, StringBuilder)}.
+   */
+  int estimateLength() {
+    return length + 16 * placeholders.length;
+  }
+
+  /**
+   * Appends this template to the passed builder, replacing each placeholder
+   * with the passed {@link Request}'s component of the same name followed
+   * by a forward slash; placeholders for which the request has no component
+   * are dropped along with their slash. The last character appended, i.e.
+   * the trailing slash, is removed.
+   */
+  void expand(Request request, StringBuilder builder) {
+    for (int i = 0; i < literals.length; i++) {
+      if (literals[i] != null) {
+        builder.append(literals[i]);
+      } else {
+        String value = request.getComponent(placeholders[i]);
+        if (value != null) {
+          builder.append(value).append('/');
+        }
+      }
+    }
+
+    // Remove trailing forward slash
+    builder.setLength(builder.length() - 1);
+  }
+
+  /**
+   * Appends the passed value to the passed builder encoded as
+   * application/x-www-form-urlencoded using UTF-8, producing the same
+   * output as {@link java.net.URLEncoder#encode(String, String)} without
+   * allocating anything for values which need no encoding.
+   */
+  static void appendEncoded(StringBuilder builder, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+          (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' ||
+          c == '_') {
+        builder.append(c);
+      } else if (c == ' ') {
+        builder.append('+');
+      } else if (c < 0x80) {
+        appendEscaped(builder, c);
+      } else if (c < 0x800) {
+        appendEscaped(builder, 0xc0 | (c >> 6));
+        appendEscaped(builder, 0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length() &&
+          Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        appendEscaped(builder, 0xf0 | (codePoint >> 18));
+        appendEscaped(builder, 0x80 | ((codePoint >> 12) & 0x3f));
+        appendEscaped(builder, 0x80 | ((codePoint >> 6) & 0x3f));
+        appendEscaped(builder, 0x80 | (codePoint & 0x3f));
+      } else if (c >= '\uD800' && c <= '\uDFFF') {
+        // Unpaired surrogates are encoded as '?' by the UTF-8 encoder
+        appendEscaped(builder, '?');
+      } else {
+        appendEscaped(builder, 0xe0 | (c >> 12));
+        appendEscaped(builder, 0x80 | ((c >> 6) & 0x3f));
+        appendEscaped(builder, 0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private static void appendEscaped(StringBuilder builder, int b) {
+    builder.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+  }
+}
@@ -15,13 +15,12 @@
 
 package org.opensocial.auth;
 
-import net.oauth.OAuth;
-import net.oauth.OAuthAccessor;
-import net.oauth.OAuthConsumer;
 import net.oauth.OAuthMessage;
 import net.oauth.http.HttpMessage;
 
 import org.opensocial.RequestException;
+import org.opensocial.http.ByteArrayPayload;
+import org.opensocial.http.Payload;
 import org.opensocial.providers.Provider;
 
 import java.io.IOException;
@@ -32,12 +31,15 @@ import java.util.Map;
  * using a shared secret; this scheme is also known as Signed Fetch and Phone
  * Home. For reference:
  * http://sites.google.com/site/oauthgoog/2leggedoauth/2opensocialrestapi
+ * <p>
+ * Instances are immutable and can be shared by concurrent requests.
  *
  * @author Jason Cooper
  */
-public class OAuth2LeggedScheme extends OAuthScheme implements AuthScheme {
+public class OAuth2LeggedScheme extends OAuthScheme implements
+    PayloadAuthScheme {
 
-  private String requesterId;
+  private final String requesterId;
 
   /**
    * Creates and returns a new {@link OAuth2LeggedScheme} configured with the
@@ -73,25 +75,27 @@ public class OAuth2LeggedScheme extends OAuthScheme implements AuthScheme {
   public HttpMessage getHttpMessage(Provider provider, String method,
       String url, Map<String, String> headers, byte[] body) throws
       RequestException, IOException {
+    return getStreamingHttpMessage(provider, method, url, headers,
+        body == null ? null : new ByteArrayPayload(body));
+  }
+
+  public HttpMessage getStreamingHttpMessage(Provider provider, String method,
+      String url, Map<String, String> headers, Payload body) throws
+      RequestException, IOException {
     if (consumerKey == null || consumerSecret == null) {
       return null;
     }
 
     url = appendRequesterIdToQueryString(url);
     OAuthMessage message = new OAuthMessage(method, url, null,
-        byteArrayToStream(body));
+        payloadToStream(body));
 
     for (Map.Entry<String, String> header : headers.entrySet()) {
       message.getHeaders().add(header);
     }
 
-    OAuthConsumer consumer =
-      new OAuthConsumer(null, consumerKey, consumerSecret, null);
-    consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.HMAC_SHA1);
-
-    OAuthAccessor accessor = new OAuthAccessor(consumer);
-
-    return getHttpMessage(message, accessor, body, provider.getSignBodyHash());
+    return getHttpMessage(message, getSigner(null, null), body,
+        provider.getSignBodyHash());
   }
 
   public String getRequesterId() {
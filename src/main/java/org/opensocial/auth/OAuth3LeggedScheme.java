@@ -25,8 +25,10 @@ import net.oauth.client.OAuthClient;
 import net.oauth.http.HttpMessage;
 
 import org.opensocial.RequestException;
+import org.opensocial.http.ByteArrayPayload;
 import org.opensocial.http.HttpClient;
 import org.opensocial.http.HttpClientImpl;
+import org.opensocial.http.Payload;
 import org.opensocial.providers.Provider;
 
 import java.io.IOException;
@@ -44,13 +46,17 @@ import java.util.Map.Entry;
  * tokens and an appropriate authorization URL for the 3-Legged OAuth "dance."
  * For reference:
  * http://sites.google.com/site/oauthgoog/2leggedoauth/2opensocialrestapi
+ * <p>
+ * Once an access token is set, requests can be signed concurrently; setting
+ * a new access token affects requests signed afterwards. {@link Token}s
+ * should not be modified after being passed to an instance.
  *
  * @author Christoph Renner
  * @author Jason Cooper
  *
  */
-public class OAuth3LeggedScheme extends OAuthScheme implements AuthScheme,
-    Serializable {
+public class OAuth3LeggedScheme extends OAuthScheme implements
+    PayloadAuthScheme, Serializable {
 
   public static class Token implements Serializable {
     public String token;
@@ -65,8 +71,8 @@ public class OAuth3LeggedScheme extends OAuthScheme implements AuthScheme,
   }
 
   private Provider provider;
-  private Token accessToken;
-  private Token requestToken;
+  private volatile Token accessToken;
+  private volatile Token requestToken;
   private HttpClient httpClient;
 
   protected OAuth3LeggedScheme() {
@@ -123,16 +129,49 @@ public class OAuth3LeggedScheme extends OAuthScheme implements AuthScheme,
       String url, Map<String, String> headers, byte[] body,
       Collection<? extends Entry> parameters) throws
       RequestException, IOException {
-    OAuthAccessor accessor = getOAuthAccessor(accessToken.token,
-        accessToken.secret);
+    return getStreamingHttpMessage(provider, method, url, headers,
+        body == null ? null : new ByteArrayPayload(body), parameters);
+  }
+
+  public HttpMessage getStreamingHttpMessage(Provider provider, String method,
+      String url, Map<String, String> headers, Payload body) throws
+      RequestException, IOException {
+    return getStreamingHttpMessage(provider, method, url, headers, body, null);
+  }
+
+  public HttpMessage getStreamingHttpMessage(Provider provider, String method,
+      String url, Map<String, String> headers, Payload body,
+      Collection<? extends Entry> parameters) throws
+      RequestException, IOException {
+    Token token = accessToken;
+    OAuthSigner signer = getSigner(token.token, token.secret);
     OAuthMessage message = new OAuthMessage(method, url, parameters,
-        byteArrayToStream(body));
+        payloadToStream(body));
 
     for (Map.Entry<String, String> header : headers.entrySet()) {
       message.getHeaders().add(header);
     }
 
-    return getHttpMessage(message, accessor, body, provider.getSignBodyHash());
+    return getHttpMessage(message, signer, body, provider.getSignBodyHash());
+  }
+
+  /**
+   * Returns a new {@link OAuth3LeggedScheme} which signs requests with the
+   * passed access token and shares this instance's {@link Provider},
+   * consumer key and secret and {@link HttpClient}. Creating one costs a
+   * couple of small objects, so a single scheme and
+   * {@link org.opensocial.Client} can serve any number of users, e.g.
+   * through {@link org.opensocial.Client#withAuthScheme(AuthScheme)}.
+   *
+   * @param  token access token of the user to sign requests for
+   * @return       OAuth3LeggedScheme bound to the passed token
+   */
+  public OAuth3LeggedScheme forToken(Token token) {
+    OAuth3LeggedScheme scheme = new OAuth3LeggedScheme(provider, consumerKey,
+        consumerSecret, httpClient);
+    scheme.accessToken = token;
+
+    return scheme;
   }
 
   /**
@@ -15,7 +15,7 @@
 
 package org.opensocial.auth;
 
-import net.oauth.OAuthAccessor;
+import net.oauth.OAuth;
 import net.oauth.OAuthException;
 import net.oauth.OAuthMessage;
 import net.oauth.ParameterStyle;
@@ -23,19 +23,22 @@ import net.oauth.http.HttpMessage;
 
 import org.apache.commons.codec.binary.Base64;
 import org.opensocial.RequestException;
+import org.opensocial.http.ByteArrayPayload;
+import org.opensocial.http.Payload;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
 
 abstract class OAuthScheme implements Serializable {
 
   protected String consumerKey;
   protected String consumerSecret;
 
+  private transient volatile OAuthSigner signer;
+
   protected OAuthScheme() {
   }
 
@@ -52,6 +55,28 @@ abstract class OAuthScheme implements Serializable {
     return consumerSecret;
   }
 
+  /**
+   * Returns the signer for this scheme's consumer key and secret and the
+   * passed token and token secret, which are null for 2-legged requests.
+   * The signer is kept for as long as the credentials don't change, so that
+   * its key and {@link javax.crypto.Mac} instances are reused.
+   */
+  OAuthSigner getSigner(String token, String tokenSecret) {
+    OAuthSigner current = signer;
+    if (current == null || !current.matches(consumerKey, consumerSecret,
+        token, tokenSecret)) {
+      current = new OAuthSigner(consumerKey, consumerSecret, token,
+          tokenSecret);
+      signer = current;
+    }
+
+    return current;
+  }
+
+  protected InputStream payloadToStream(Payload payload) throws IOException {
+    return payload == null ? null : payload.openStream();
+  }
+
   protected InputStream byteArrayToStream(byte[] bytes) {
     InputStream stream = null;
 
@@ -62,32 +87,31 @@ abstract class OAuthScheme implements Serializable {
     return stream;
   }
 
-  protected HttpMessage getHttpMessage(OAuthMessage message,
-      OAuthAccessor accessor, byte[] body, boolean signBodyHash) throws
-      IOException, RequestException {
+  HttpMessage getHttpMessage(OAuthMessage message, OAuthSigner signer,
+      byte[] body, boolean signBodyHash) throws IOException, RequestException {
+    return getHttpMessage(message, signer,
+        body == null ? null : new ByteArrayPayload(body), signBodyHash);
+  }
+
+  HttpMessage getHttpMessage(OAuthMessage message, OAuthSigner signer,
+      Payload body, boolean signBodyHash) throws IOException, RequestException {
     if (body != null) {
       if (signBodyHash) {
-        try {
-          MessageDigest md = MessageDigest.getInstance("SHA-1");
-
-          byte[] hash = md.digest(body);
-          byte[] encodedHash = new Base64().encode(hash);
-
-          message.addParameter("oauth_body_hash",
-              new String(encodedHash, "UTF-8"));
-        } catch (java.security.NoSuchAlgorithmException e) {
-          // Ignore exception
-        } catch (java.io.UnsupportedEncodingException e) {
-          // Ignore exception
-        }
+        byte[] encodedHash = new Base64().encode(body.getSha1());
+
+        message.addParameter("oauth_body_hash",
+            new String(encodedHash, "UTF-8"));
       } else if (message.getHeader(HttpMessage.CONTENT_TYPE).equals(
           "application/x-www-form-urlencoded")){
-        message.addParameter(byteArrayToString(body), "");
+        message.addParameter(byteArrayToString(body.toByteArray()), "");
       }
+
+      message.getHeaders().add(new OAuth.Parameter(
+          HttpMessage.CONTENT_LENGTH, String.valueOf(body.getLength())));
     }
 
     try {
-      message.addRequiredParameters(accessor);
+      signer.sign(message);
     } catch (OAuthException e) {
       throw new RequestException(
           "OAuth error thrown while signing request " + e.getMessage());
@@ -0,0 +1,178 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.auth;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.signature.OAuthSignatureMethod;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Immutable HMAC-SHA1 signing state for one consumer key and secret and,
+ * optionally, one token and token secret. Unlike net.oauth, which creates a
+ * new signature method, key and {@link Mac} for every message it signs, the
+ * key is derived once and each thread reuses a single {@link Mac}, which is
+ * only reinitialized when the thread signs for another key, so signing
+ * costs little more than computing the signature base string and its HMAC.
+ * The parameters added and the signatures computed are the same as those of
+ * {@link OAuthMessage#addRequiredParameters}.
+ */
+final class OAuthSigner {
+
+  private static final String MAC_NAME = "HmacSHA1";
+
+  /**
+   * Each thread's {@link Mac} along with the key it was last initialized
+   * with; shared by all signers, so that signing on behalf of many different
+   * tokens doesn't create a Mac per token and thread.
+   */
+  private static final ThreadLocal<KeyedMac> MACS =
+    new ThreadLocal<KeyedMac>() {
+      @Override
+      protected KeyedMac initialValue() {
+        try {
+          return new KeyedMac(Mac.getInstance(MAC_NAME));
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException(MAC_NAME + " is not available: " +
+              e.getMessage());
+        }
+      }
+    };
+
+  private final String consumerKey;
+  private final String consumerSecret;
+  private final String token;
+  private final String tokenSecret;
+  private final SecretKeySpec key;
+
+  OAuthSigner(String consumerKey, String consumerSecret, String token,
+      String tokenSecret) {
+    this.consumerKey = consumerKey;
+    this.consumerSecret = consumerSecret;
+    this.token = token;
+    this.tokenSecret = tokenSecret;
+
+    String secret = OAuth.percentEncode(consumerSecret) + '&' +
+        OAuth.percentEncode(tokenSecret);
+    try {
+      key = new SecretKeySpec(secret.getBytes("UTF-8"), MAC_NAME);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  /**
+   * Returns true if this signer was created for the passed credentials, i.e.
+   * whether it can be reused to sign on their behalf.
+   */
+  boolean matches(String consumerKey, String consumerSecret, String token,
+      String tokenSecret) {
+    return equal(this.consumerKey, consumerKey) &&
+        equal(this.consumerSecret, consumerSecret) &&
+        equal(this.token, token) && equal(this.tokenSecret, tokenSecret);
+  }
+
+  /**
+   * Adds the OAuth protocol parameters which the passed message is missing,
+   * i.e. the token, consumer key, signature method, timestamp, nonce and
+   * version, followed by the HMAC-SHA1 signature of the message.
+   */
+  void sign(OAuthMessage message) throws IOException, OAuthException,
+      URISyntaxException {
+    Map<String, String> parameters = OAuth.newMap(message.getParameters());
+
+    if (parameters.get(OAuth.OAUTH_TOKEN) == null && token != null) {
+      message.addParameter(OAuth.OAUTH_TOKEN, token);
+    }
+    if (parameters.get(OAuth.OAUTH_CONSUMER_KEY) == null) {
+      message.addParameter(OAuth.OAUTH_CONSUMER_KEY, consumerKey);
+    }
+    if (parameters.get(OAuth.OAUTH_SIGNATURE_METHOD) == null) {
+      message.addParameter(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.HMAC_SHA1);
+    } else if (!OAuth.HMAC_SHA1.equals(
+        parameters.get(OAuth.OAUTH_SIGNATURE_METHOD))) {
+      throw new OAuthException("Unsupported signature method " +
+          parameters.get(OAuth.OAUTH_SIGNATURE_METHOD));
+    }
+    if (parameters.get(OAuth.OAUTH_TIMESTAMP) == null) {
+      message.addParameter(OAuth.OAUTH_TIMESTAMP,
+          String.valueOf(System.currentTimeMillis() / 1000));
+    }
+    if (parameters.get(OAuth.OAUTH_NONCE) == null) {
+      message.addParameter(OAuth.OAUTH_NONCE,
+          String.valueOf(System.nanoTime()));
+    }
+    if (parameters.get(OAuth.OAUTH_VERSION) == null) {
+      message.addParameter(OAuth.OAUTH_VERSION, OAuth.VERSION_1_0);
+    }
+
+    message.addParameter(OAuth.OAUTH_SIGNATURE,
+        getSignature(OAuthSignatureMethod.getBaseString(message)));
+  }
+
+  /**
+   * Returns the base64-encoded HMAC-SHA1 signature of the passed signature
+   * base string.
+   */
+  String getSignature(String baseString) {
+    try {
+      return OAuthSignatureMethod.base64Encode(
+          MACS.get().init(key).doFinal(baseString.getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage());
+    } catch (InvalidKeyException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private static class KeyedMac {
+
+    private final Mac mac;
+    private SecretKeySpec key;
+
+    KeyedMac(Mac mac) {
+      this.mac = mac;
+    }
+
+    /**
+     * Returns the Mac, initialized with the passed key unless it already
+     * was; doFinal resets the Mac, leaving it ready for the next signature
+     * with the same key.
+     */
+    Mac init(SecretKeySpec key) throws InvalidKeyException {
+      if (this.key != key) {
+        mac.init(key);
+        this.key = key;
+      }
+
+      return mac;
+    }
+  }
+}
@@ -15,9 +15,11 @@
 
 package org.opensocial.auth;
 
+import net.oauth.OAuth;
 import net.oauth.http.HttpMessage;
 
 import org.opensocial.RequestException;
+import org.opensocial.http.Payload;
 import org.opensocial.providers.Provider;
 
 import java.io.ByteArrayInputStream;
@@ -29,14 +31,15 @@ import java.util.Map;
 /**
  * Authentication class that uses a security token to authenticate requests by
  * appending ?st={token} to the request URL. Security tokens can be lifted from
- * running gadgets, but generally expire after a short time.
+ * running gadgets, but generally expire after a short time. Instances are
+ * immutable and can be shared by concurrent requests.
  *
  * @author Jason Cooper
  */
-public class SecurityTokenScheme implements AuthScheme {
+public class SecurityTokenScheme implements PayloadAuthScheme {
 
-  private String tokenName;
-  private String token;
+  private final String tokenName;
+  private final String token;
 
   public SecurityTokenScheme(String token) {
     this("st", token);
@@ -61,6 +64,24 @@ public class SecurityTokenScheme implements AuthScheme {
     return message;
   }
 
+  public HttpMessage getStreamingHttpMessage(Provider provider, String method,
+      String url, Map<String, String> headers, Payload body) throws
+      RequestException, IOException {
+    url = appendTokenToQueryString(url);
+
+    HttpMessage message = new HttpMessage(method, new URL(url),
+        body == null ? null : body.openStream());
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      message.headers.add(header);
+    }
+    if (body != null) {
+      message.headers.add(new OAuth.Parameter(HttpMessage.CONTENT_LENGTH,
+          String.valueOf(body.getLength())));
+    }
+
+    return message;
+  }
+
   private String appendTokenToQueryString(String url) {
     if (token == null) {
       return url;
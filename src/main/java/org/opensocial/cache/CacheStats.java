@@ -0,0 +1,105 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.cache;
+
+/**
+ * Immutable snapshot of cache statistics, shared by the profile caches and
+ * {@link org.opensocial.http.CachingHttpClient}.
+ */
+public class CacheStats {
+
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final int size;
+  private final long bytes;
+
+  CacheStats(long hits, long misses, long evictions, int size) {
+    this(hits, misses, evictions, size, -1);
+  }
+
+  /**
+   * Creates and returns a new snapshot of the passed counters.
+   *
+   * @param hits      number of lookups answered from the cache
+   * @param misses    number of lookups not answered from the cache
+   * @param evictions number of entries evicted to keep the cache bounded
+   * @param size      number of entries currently cached
+   * @param bytes     total size in bytes of the cached values, or -1 if the
+   *                  cache doesn't track it
+   */
+  public CacheStats(long hits, long misses, long evictions, int size,
+      long bytes) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.size = size;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Returns the number of lookups which found a live entry.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of lookups which found no entry or an expired one.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of entries evicted or rejected to keep the cache
+   * within its bound; expired entries are not counted.
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Returns the number of entries currently cached, including expired
+   * entries not yet removed.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the total size in bytes of the cached values, or -1 if the cache
+   * doesn't track it.
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the ratio of hits to lookups, or 0 if there were no lookups.
+   */
+  public double getHitRate() {
+    long lookups = hits + misses;
+
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + hits + ", misses=" + misses + ", evictions=" +
+        evictions + ", size=" + size + (bytes < 0 ? "" : ", bytes=" + bytes);
+  }
+}
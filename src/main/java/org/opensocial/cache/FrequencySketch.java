@@ -0,0 +1,116 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.cache;
+
+/**
+ * Count-min sketch estimating how often each key was accessed recently, used
+ * by {@link TinyLfuCache} to decide whether a new entry is worth evicting an
+ * existing one for. Counters are four bits wide, packed sixteen to a long,
+ * and every counter is halved once the number of recorded accesses reaches
+ * ten times the table width, so that old popularity fades. Not thread-safe.
+ */
+class FrequencySketch {
+
+  private static final long[] SEEDS = {
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+    0xcbf29ce484222325L
+  };
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * Creates and returns a new {@link FrequencySketch} sized for a cache
+   * holding the passed maximum number of entries.
+   */
+  FrequencySketch(int maxEntries) {
+    int width = 16;
+    while (width < maxEntries && width < (1 << 30)) {
+      width <<= 1;
+    }
+
+    table = new long[width];
+    tableMask = width - 1;
+    sampleSize = 10 * width;
+  }
+
+  /**
+   * Returns the estimated number of recent accesses of the passed key, at
+   * most 15.
+   */
+  int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+
+    return frequency;
+  }
+
+  /**
+   * Records an access of the passed key.
+   */
+  void increment(Object key) {
+    int hash = spread(key.hashCode());
+    int start = (hash & 3) << 2;
+    boolean added = false;
+
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int offset = (start + i) << 2;
+      long mask = 0xfL << offset;
+
+      if ((table[index] & mask) != mask) {
+        table[index] += 1L << offset;
+        added = true;
+      }
+    }
+
+    if (added && ++size == sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+
+    size /= 2;
+  }
+
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> 32;
+
+    return ((int) h) & tableMask;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+
+    return (x >>> 16) ^ x;
+  }
+}
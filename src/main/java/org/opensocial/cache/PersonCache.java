@@ -0,0 +1,218 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.cache;
+
+import org.opensocial.Request;
+import org.opensocial.Response;
+import org.opensocial.models.Model;
+import org.opensocial.models.Person;
+import org.opensocial.providers.Provider;
+
+import java.util.Map;
+
+/**
+ * In-memory cache of Person profiles keyed by provider name, user ID and
+ * requested fields. When a PersonCache is set on a {@link
+ * org.opensocial.Client}, requests for a single user's profile, e.g.
+ * PeopleService.getUser(guid), are answered from the cache while the
+ * profile is fresh, and every profile returned for such a request is added
+ * to it under the requested user ID. Profiles listed by getFriends requests
+ * are not cached: their IDs need not match the user IDs callers pass, e.g.
+ * on containers which prefix them. Typical usage:
+ * <pre>
+ *   PersonCache cache = new PersonCache(10000, 15 * 60 * 1000);
+ *   client.setPersonCache(cache);
+ * </pre>
+ * Only requests naming a user explicitly are cached, never those for "@me"
+ * or other relative IDs. Profiles visible to one viewer may differ from
+ * those visible to another, so a PersonCache should only be shared between
+ * clients whose viewers may see the same profile data. The cache holds at
+ * most the configured number of profiles and uses a frequency-aware
+ * eviction policy, see {@link TinyLfuCache}. Instances are safe for
+ * concurrent use.
+ */
+public class PersonCache {
+
+  private static final String PEOPLE_GET = "people.get";
+  private static final String SELF = "@self";
+
+  private final TinyLfuCache<String, Person> cache;
+
+  /**
+   * Creates and returns a new {@link PersonCache}.
+   *
+   * @param maxEntries maximum number of profiles held by the cache
+   * @param ttl        time in milliseconds for which a cached profile is
+   *                   used, or 0 to use cached profiles until evicted
+   */
+  public PersonCache(int maxEntries, long ttl) {
+    cache = new TinyLfuCache<String, Person>(maxEntries, ttl);
+  }
+
+  /**
+   * Returns the cached profile of the passed user, or null if it is not
+   * cached or has expired.
+   *
+   * @param providerName name of the provider the profile was fetched from
+   * @param guid         OpenSocial ID of the user
+   * @param fields       comma-separated list of requested fields, or null
+   *                     for the provider's default set of fields
+   */
+  public Person get(String providerName, String guid, String fields) {
+    return copy(cache.get(buildKey(providerName, guid, fields)),
+        Person.class);
+  }
+
+  /**
+   * Adds the passed profile to the cache, replacing any cached copy.
+   *
+   * @param providerName name of the provider the profile was fetched from
+   * @param guid         OpenSocial ID of the user
+   * @param fields       comma-separated list of requested fields, or null
+   *                     for the provider's default set of fields
+   * @param person       profile to cache
+   */
+  public void put(String providerName, String guid, String fields,
+      Person person) {
+    cache.put(buildKey(providerName, guid, fields), copy(person,
+        person.getClass()));
+  }
+
+  /**
+   * Removes the passed user's profile fetched with the passed fields from the
+   * cache.
+   *
+   * @param providerName name of the provider the profile was fetched from
+   * @param guid         OpenSocial ID of the user
+   * @param fields       comma-separated list of requested fields, or null
+   *                     for the provider's default set of fields
+   */
+  public void invalidate(String providerName, String guid, String fields) {
+    cache.invalidate(buildKey(providerName, guid, fields));
+  }
+
+  /**
+   * Removes all cached profiles.
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  /**
+   * Returns a snapshot of the cache statistics.
+   */
+  public CacheStats getStats() {
+    return cache.getStats();
+  }
+
+  /**
+   * Returns a {@link Response} holding the cached profile requested by the
+   * passed {@link Request}, or null if the request is not for a single
+   * user's profile or the profile is not cached; called by the Client before
+   * sending requests.
+   *
+   * @param provider Provider the request is sent to
+   * @param request  Request to look up
+   */
+  public Response lookup(Provider provider, Request request) {
+    if (!isCacheable(request)) {
+      return null;
+    }
+
+    // Parameters other than fields may change the representation returned
+    for (String name : request.getRestQueryStringParameters().keySet()) {
+      if (!name.equals("fields")) {
+        return null;
+      }
+    }
+
+    Person person = cache.get(buildKey(provider.getName(),
+        request.getComponent(Request.GUID), getFields(request)));
+    if (person == null) {
+      return null;
+    }
+
+    Response response = new Response();
+    response.getEntries().add(copy(person, request.getModelClass()));
+
+    return response;
+  }
+
+  /**
+   * Adds the profile held by the passed {@link Response} to the cache under
+   * the requested user ID if it was returned for a request for a single
+   * user's profile; called by the Client after receiving responses.
+   *
+   * @param provider Provider the request was sent to
+   * @param request  Request the response was returned for
+   * @param response Response returned by the container
+   */
+  public void store(Provider provider, Request request, Response response) {
+    if (response == null) {
+      return;
+    }
+
+    if (!isCacheable(request)) {
+      return;
+    }
+
+    Model entry = response.getEntry();
+    if (entry instanceof Person && response.getEntries().size() == 1) {
+      put(provider.getName(), request.getComponent(Request.GUID),
+          getFields(request), (Person) entry);
+    }
+  }
+
+  private static boolean isCacheable(Request request) {
+    String guid = request.getComponent(Request.GUID);
+
+    return PEOPLE_GET.equals(request.getRpcMethod()) &&
+        "GET".equals(request.getRestMethod()) &&
+        SELF.equals(request.getComponent(Request.SELECTOR)) &&
+        request.getComponent(Request.P_ID) == null &&
+        request.getCustomPayloadSource() == null &&
+        guid != null && !guid.startsWith("@");
+  }
+
+  private static String getFields(Request request) {
+    return request.getRestQueryStringParameters().get("fields");
+  }
+
+  private static String buildKey(String providerName, String guid,
+      String fields) {
+    return providerName + '\n' + guid + '\n' + (fields == null ? "" : fields);
+  }
+
+  private static <T extends Model> T copy(Model model,
+      Class<T> modelClass) {
+    if (model == null) {
+      return null;
+    }
+
+    T copy;
+    try {
+      copy = modelClass.newInstance();
+    } catch (InstantiationException e) {
+      return (T) model;
+    } catch (IllegalAccessException e) {
+      return (T) model;
+    }
+
+    copy.putAll((Map) model);
+
+    return copy;
+  }
+}
@@ -0,0 +1,191 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache with per-entry expiry, using the W-TinyLFU
+ * eviction policy. New entries enter a small LRU admission window holding
+ * 1% of the capacity; entries leaving the window only replace the least
+ * recently used entry of the main region if they have been accessed more
+ * often recently, as estimated by a {@link FrequencySketch}. Unlike a plain
+ * LRU cache, a scan over many keys which are never requested again
+ * therefore cannot flush the popular entries out of the cache. Instances
+ * are safe for concurrent use.
+ *
+ * @param <K> type of the cache keys
+ * @param <V> type of the cached values
+ */
+public class TinyLfuCache<K, V> {
+
+  private final int maxEntries;
+  private final long ttl;
+  private final int windowSize;
+
+  private final LinkedHashMap<K, Node<V>> window;
+  private final LinkedHashMap<K, Node<V>> main;
+  private final FrequencySketch sketch;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates and returns a new {@link TinyLfuCache}.
+   *
+   * @param maxEntries maximum number of entries held by the cache
+   * @param ttl        time in milliseconds after which entries expire, or 0
+   *                   if entries never expire
+   */
+  public TinyLfuCache(int maxEntries, long ttl) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+    this.windowSize = Math.max(1, maxEntries / 100);
+    this.window = new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+    this.main = new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+    this.sketch = new FrequencySketch(maxEntries);
+  }
+
+  /**
+   * Returns the value cached under the passed key, or null if there is no
+   * such value or it has expired.
+   *
+   * @param key key to look up
+   */
+  public synchronized V get(K key) {
+    sketch.increment(key);
+
+    Node<V> node = window.get(key);
+    if (node == null) {
+      node = main.get(key);
+    }
+
+    if (node == null) {
+      misses++;
+      return null;
+    } else if (node.isExpired(System.currentTimeMillis())) {
+      window.remove(key);
+      main.remove(key);
+      misses++;
+      return null;
+    }
+
+    hits++;
+    return node.value;
+  }
+
+  /**
+   * Caches the passed value under the passed key, replacing any value
+   * previously cached under it. The value may be rejected straight away if
+   * the cache is full of more frequently used entries.
+   *
+   * @param key   key to cache the value under
+   * @param value value to cache
+   */
+  public synchronized void put(K key, V value) {
+    sketch.increment(key);
+
+    long expiresAt = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+    Node<V> node = new Node<V>(value, expiresAt);
+
+    if (main.containsKey(key)) {
+      main.put(key, node);
+      return;
+    }
+
+    window.put(key, node);
+    if (window.size() <= windowSize) {
+      return;
+    }
+
+    // Move the window's least recently used entry into the main region if
+    // it is more popular than the main region's eviction victim
+    Iterator<Map.Entry<K, Node<V>>> candidates =
+      window.entrySet().iterator();
+    Map.Entry<K, Node<V>> candidate = candidates.next();
+    candidates.remove();
+
+    if (main.size() < maxEntries - windowSize) {
+      main.put(candidate.getKey(), candidate.getValue());
+      return;
+    }
+
+    if (main.isEmpty()) {
+      // The cache is too small to have a main region
+      evictions++;
+      return;
+    }
+
+    Iterator<Map.Entry<K, Node<V>>> victims = main.entrySet().iterator();
+    Map.Entry<K, Node<V>> victim = victims.next();
+
+    if (sketch.frequency(candidate.getKey()) >
+        sketch.frequency(victim.getKey())) {
+      victims.remove();
+      main.put(candidate.getKey(), candidate.getValue());
+    }
+
+    evictions++;
+  }
+
+  /**
+   * Removes the value cached under the passed key, if any.
+   *
+   * @param key key of the value to remove
+   */
+  public synchronized void invalidate(K key) {
+    window.remove(key);
+    main.remove(key);
+  }
+
+  /**
+   * Removes all cached values.
+   */
+  public synchronized void clear() {
+    window.clear();
+    main.clear();
+  }
+
+  /**
+   * Returns a snapshot of the cache statistics.
+   */
+  public synchronized CacheStats getStats() {
+    return new CacheStats(hits, misses, evictions, window.size() +
+        main.size());
+  }
+
+  private static class Node<V> {
+
+    private final V value;
+    private final long expiresAt;
+
+    Node(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(long now) {
+      return expiresAt != 0 && now >= expiresAt;
+    }
+  }
+}
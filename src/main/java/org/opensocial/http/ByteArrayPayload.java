@@ -0,0 +1,80 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * {@link Payload} held in memory as a byte array, which is not copied and
+ * must not be modified.
+ */
+public class ByteArrayPayload extends Payload {
+
+  private final byte[] bytes;
+  private final byte[] sha1;
+
+  public ByteArrayPayload(byte[] bytes) {
+    this(bytes, null);
+  }
+
+  /**
+   * Creates and returns a new {@link ByteArrayPayload} whose SHA-1 hash was
+   * computed while its bytes were written.
+   */
+  ByteArrayPayload(byte[] bytes, byte[] sha1) {
+    if (bytes == null) {
+      throw new IllegalArgumentException("bytes must not be null");
+    }
+
+    this.bytes = bytes;
+    this.sha1 = sha1;
+  }
+
+  @Override
+  public long getLength() {
+    return bytes.length;
+  }
+
+  @Override
+  public InputStream openStream() {
+    return new ByteArrayInputStream(bytes);
+  }
+
+  @Override
+  public byte[] getSha1() throws IOException {
+    if (sha1 != null) {
+      return sha1.clone();
+    }
+
+    return super.getSha1();
+  }
+
+  /**
+   * Returns the underlying byte array without copying it.
+   */
+  @Override
+  public byte[] toByteArray() {
+    return bytes;
+  }
+
+  @Override
+  protected void update(MessageDigest digest) {
+    digest.update(bytes);
+  }
+}
@@ -0,0 +1,348 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import net.oauth.OAuth;
+import net.oauth.http.HttpMessage;
+
+import org.opensocial.cache.CacheStats;
+import org.opensocial.providers.Provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link HttpClient} decorator which caches GET responses carrying an ETag or
+ * Last-Modified validator and revalidates them with conditional requests.
+ * When a cached URL is requested again, If-None-Match and If-Modified-Since
+ * headers are added to the request; if the container answers 304 Not
+ * Modified, the cached body is returned in a 200 response so callers never
+ * see the difference. Typical usage:
+ * <pre>
+ *   HttpClient httpClient = new CachingHttpClient(new PooledHttpClient());
+ *   Client client = new Client(provider, authScheme, httpClient);
+ * </pre>
+ * The cache is bounded by both the number of entries and the total size of
+ * the cached bodies, evicting the least recently used entries first. Cache
+ * keys ignore the OAuth nonce, timestamp and signature parameters, which
+ * change on every request, but include all other query parameters, such as
+ * the OAuth token and requestor ID, so users never see each other's data.
+ * Caching can be turned off for individual providers or URL prefixes.
+ * Instances are safe for concurrent use.
+ */
+public class CachingHttpClient implements HttpClient {
+
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+  public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+  private static final String[] VOLATILE_PARAMETERS = {
+    OAuth.OAUTH_NONCE, OAuth.OAUTH_TIMESTAMP, OAuth.OAUTH_SIGNATURE
+  };
+
+  private final HttpClient delegate;
+  private final int maxEntries;
+  private final long maxBytes;
+
+  private final LinkedHashMap<String, Entry> entries;
+  private final Map<String, Boolean> prefixes;
+  private volatile boolean enabledByDefault = true;
+
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates and returns a new {@link CachingHttpClient} which sends requests
+   * through the passed {@link HttpClient} and caches up to
+   * {@value #DEFAULT_MAX_ENTRIES} responses totalling at most 16 MB.
+   *
+   * @param delegate HttpClient to send requests through
+   */
+  public CachingHttpClient(HttpClient delegate) {
+    this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Creates and returns a new {@link CachingHttpClient} which sends requests
+   * through the passed {@link HttpClient} and caches responses within the
+   * passed bounds.
+   *
+   * @param delegate   HttpClient to send requests through
+   * @param maxEntries maximum number of cached responses
+   * @param maxBytes   maximum total size in bytes of the cached response
+   *                   bodies; larger responses are never cached
+   */
+  public CachingHttpClient(HttpClient delegate, int maxEntries,
+      long maxBytes) {
+    if (maxEntries < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException(
+          "maxEntries and maxBytes must be positive");
+    }
+
+    this.delegate = delegate;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    this.prefixes = new ConcurrentHashMap<String, Boolean>();
+  }
+
+  public HttpResponseMessage execute(HttpMessage message) throws IOException {
+    return execute(message, null);
+  }
+
+  public HttpResponseMessage execute(HttpMessage message,
+      Map<String, Object> parameters) throws IOException {
+    if (!"GET".equals(message.method) || !isEnabled(message.url.toString())) {
+      return send(message, parameters);
+    }
+
+    String key = buildKey(message);
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+
+    if (entry != null) {
+      if (entry.etag != null) {
+        message.headers.add(new OAuth.Parameter("If-None-Match",
+            entry.etag));
+      }
+      if (entry.lastModified != null) {
+        message.headers.add(new OAuth.Parameter("If-Modified-Since",
+            entry.lastModified));
+      }
+    }
+
+    HttpResponseMessage response = send(message, parameters);
+    int statusCode = response.getStatusCode();
+
+    if (statusCode == 304 && entry != null) {
+      synchronized (entries) {
+        hits++;
+      }
+
+      return entry.toResponse(message);
+    }
+
+    synchronized (entries) {
+      misses++;
+    }
+
+    if (statusCode == 200) {
+      store(key, response);
+    } else {
+      remove(key);
+    }
+
+    return response;
+  }
+
+  /**
+   * Enables or disables caching of responses from the passed
+   * {@link Provider}'s REST endpoint.
+   *
+   * @param provider Provider to enable or disable caching for
+   * @param enabled  true to cache responses from the provider
+   */
+  public void setEnabled(Provider provider, boolean enabled) {
+    if (provider.getRestEndpoint() != null) {
+      setEnabled(provider.getRestEndpoint(), enabled);
+    }
+  }
+
+  /**
+   * Enables or disables caching of responses for URLs starting with the
+   * passed prefix; if several prefixes match a URL, the longest one applies.
+   *
+   * @param urlPrefix URL prefix, e.g. http://api.myspace.com/v2/
+   * @param enabled   true to cache responses for matching URLs
+   */
+  public void setEnabled(String urlPrefix, boolean enabled) {
+    prefixes.put(urlPrefix, enabled);
+  }
+
+  /**
+   * Sets whether responses for URLs matching none of the prefixes passed to
+   * setEnabled are cached; defaults to true.
+   *
+   * @param enabledByDefault true to cache responses for unmatched URLs
+   */
+  public void setEnabledByDefault(boolean enabledByDefault) {
+    this.enabledByDefault = enabledByDefault;
+  }
+
+  /**
+   * Removes all cached responses.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * Returns a snapshot of the cache statistics: hits count the requests
+   * answered from the cache after the container confirmed the cached
+   * response was still valid, misses the cacheable requests for which it
+   * returned a full response, and bytes the size of the cached bodies.
+   */
+  public CacheStats getStats() {
+    synchronized (entries) {
+      return new CacheStats(hits, misses, evictions, entries.size(), bytes);
+    }
+  }
+
+  private HttpResponseMessage send(HttpMessage message,
+      Map<String, Object> parameters) throws IOException {
+    if (parameters == null) {
+      return delegate.execute(message);
+    }
+
+    return HttpResponseMessage.valueOf(delegate.execute(message,
+        parameters));
+  }
+
+  private boolean isEnabled(String url) {
+    String match = null;
+    for (String prefix : prefixes.keySet()) {
+      if (url.startsWith(prefix) &&
+          (match == null || prefix.length() > match.length())) {
+        match = prefix;
+      }
+    }
+
+    if (match == null) {
+      return enabledByDefault;
+    }
+
+    Boolean enabled = prefixes.get(match);
+    return enabled == null ? enabledByDefault : enabled;
+  }
+
+  private void store(String key, HttpResponseMessage response) {
+    String etag = response.getHeader("ETag");
+    String lastModified = response.getHeader("Last-Modified");
+    String cacheControl = response.getHeader("Cache-Control");
+
+    if ((etag == null && lastModified == null) || (cacheControl != null &&
+        cacheControl.toLowerCase().indexOf("no-store") != -1) ||
+        response.getResponseLength() > maxBytes) {
+      remove(key);
+      return;
+    }
+
+    Entry entry = new Entry(response.toByteArray(), etag, lastModified,
+        response.headers);
+
+    synchronized (entries) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        bytes -= previous.size();
+      }
+      bytes += entry.size();
+
+      Iterator<Entry> iterator = entries.values().iterator();
+      while ((entries.size() > maxEntries || bytes > maxBytes) &&
+          iterator.hasNext()) {
+        Entry eldest = iterator.next();
+        iterator.remove();
+        bytes -= eldest.size();
+        evictions++;
+      }
+    }
+  }
+
+  private void remove(String key) {
+    synchronized (entries) {
+      Entry previous = entries.remove(key);
+      if (previous != null) {
+        bytes -= previous.size();
+      }
+    }
+  }
+
+  private String buildKey(HttpMessage message) {
+    String url = message.url.toString();
+    StringBuilder key = new StringBuilder();
+
+    int queryStart = url.indexOf('?');
+    if (queryStart == -1) {
+      key.append(url);
+    } else {
+      key.append(url, 0, queryStart);
+
+      char separator = '?';
+      for (String parameter : url.substring(queryStart + 1).split("&")) {
+        if (!isVolatile(parameter)) {
+          key.append(separator).append(parameter);
+          separator = '&';
+        }
+      }
+    }
+
+    String authorization = message.getHeader("Authorization");
+    if (authorization != null) {
+      key.append(' ').append(authorization);
+    }
+
+    return key.toString();
+  }
+
+  private static boolean isVolatile(String parameter) {
+    for (String name : VOLATILE_PARAMETERS) {
+      if (parameter.startsWith(name + "=") || parameter.equals(name)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static class Entry {
+
+    private final byte[] body;
+    private final String etag;
+    private final String lastModified;
+    private final List<Map.Entry<String, String>> headers;
+
+    Entry(byte[] body, String etag, String lastModified,
+        List<Map.Entry<String, String>> headers) {
+      this.body = body;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.headers = new ArrayList<Map.Entry<String, String>>(headers);
+    }
+
+    long size() {
+      return body == null ? 0 : body.length;
+    }
+
+    HttpResponseMessage toResponse(HttpMessage request) {
+      HttpResponseMessage response = new HttpResponseMessage(request.method,
+          request.url, 200, body);
+      response.headers.addAll(headers);
+
+      return response;
+    }
+  }
+}
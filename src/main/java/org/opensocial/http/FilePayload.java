@@ -0,0 +1,81 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * {@link Payload} read from a file, e.g. an image or video to upload. The
+ * file is hashed and streamed in fixed-size chunks whenever the body is
+ * needed, without ever buffering the whole body, so memory use does not
+ * depend on the file size. The file must not change until the request has
+ * been sent.
+ */
+public class FilePayload extends Payload {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+
+  public FilePayload(File file) {
+    if (file == null) {
+      throw new IllegalArgumentException("file must not be null");
+    }
+
+    this.file = file;
+  }
+
+  /**
+   * Returns the file the body is read from.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public long getLength() {
+    return file.length();
+  }
+
+  @Override
+  public InputStream openStream() throws IOException {
+    return new FileInputStream(file);
+  }
+
+  @Override
+  protected void update(MessageDigest digest) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
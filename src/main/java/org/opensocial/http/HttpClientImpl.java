@@ -15,18 +15,51 @@
 
 package org.opensocial.http;
 
+import net.oauth.OAuth;
 import net.oauth.http.HttpMessage;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
 import java.net.HttpURLConnection;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+/**
+ * Default {@link HttpClient} implementation based on
+ * {@link HttpURLConnection}. Unless disabled, requests advertise gzip and
+ * deflate support through the Accept-Encoding header and compressed
+ * response bodies are decompressed as they are read from the connection;
+ * the number of bytes received compressed and their decompressed size are
+ * totalled for monitoring.
+ * <p>
+ * Connections are opened with a connect and a read timeout, so that a hung
+ * container can't block a thread forever. The {@link #CONNECT_TIMEOUT} and
+ * {@link #READ_TIMEOUT} parameters, Numbers in milliseconds, can shorten
+ * them for a single request, e.g. to honor a deadline. A connection which
+ * timed out is closed rather than reused.
+ */
 public class HttpClientImpl implements HttpClient, Serializable {
 
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+  private static final int CHUNK_SIZE = 8192;
+
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+  public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+  private volatile boolean compressionEnabled = true;
+  private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+
   public HttpResponseMessage execute(HttpMessage message) throws IOException {
     return execute(message, null);
   }
@@ -34,37 +67,142 @@ public class HttpClientImpl implements HttpClient, Serializable {
   public HttpResponseMessage execute(HttpMessage message,
       Map<String, Object> parameters) throws IOException {
     HttpURLConnection connection = null;
+    int statusCode;
+    InputStream in;
 
     try {
-      connection = getConnection(message);
-
-      if (message.getBody() != null) {
-        DataOutputStream out =
-          new DataOutputStream(connection.getOutputStream());
-        out.write(streamToByteArray(message.getBody()));
-        out.flush();
-        out.close();
+      connection = getConnection(message, parameters);
+
+      InputStream body = message.getBody();
+      if (body != null) {
+        try {
+          OutputStream out = connection.getOutputStream();
+          copy(body, out);
+          out.close();
+        } finally {
+          body.close();
+        }
       }
 
-      return new HttpResponseMessage(message.method, message.url,
-          connection.getResponseCode(), connection.getInputStream());
+      statusCode = connection.getResponseCode();
+      in = connection.getInputStream();
     } catch (IOException e) {
-      if (connection != null) {
-        return new HttpResponseMessage(message.method, message.url,
-            connection.getResponseCode());
+      if (connection != null && e instanceof InterruptedIOException) {
+        // Timed out or interrupted; asking for the status code would wait
+        // all over again, and the socket may still receive a late response
+        connection.disconnect();
+        throw e;
+      } else if (connection != null) {
+        statusCode = connection.getResponseCode();
+
+        // Error bodies must be consumed for the underlying socket to be
+        // returned to the keep-alive cache and reused
+        drain(connection.getErrorStream());
+
+        HttpResponseMessage response = new HttpResponseMessage(message.method,
+            message.url, statusCode);
+        addResponseHeaders(connection, response);
+
+        return response;
       } else {
+        // No connection took over the body, so it is closed here
+        closeBody(message);
         throw e;
       }
     }
+
+    // Failures while reading the body, e.g. a read timeout, a reset or a
+    // corrupt compressed stream, are not error responses and propagate
+    try {
+      return readResponse(message, connection, statusCode, in);
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  private HttpResponseMessage readResponse(HttpMessage message,
+      HttpURLConnection connection, int statusCode, InputStream in)
+      throws IOException {
+    long readStart = System.nanoTime();
+    String encoding = connection.getContentEncoding();
+    boolean hasBody = hasBody(message.method, statusCode,
+        connection.getContentLength());
+    if (!isCompressed(encoding) || !hasBody) {
+      HttpResponseMessage response = new HttpResponseMessage(message.method,
+          message.url, statusCode, in,
+          hasBody ? connection.getContentLength() : -1);
+      response.setReadTime(System.nanoTime() - readStart);
+      addResponseHeaders(connection, response);
+
+      return response;
+    }
+
+    // Content-Length is the compressed size, so it cannot be used to size
+    // the decompressed body
+    CountingInputStream counter = new CountingInputStream(in);
+    InputStream decoded;
+    try {
+      decoded = decode(counter, encoding);
+    } catch (IOException e) {
+      counter.close();
+      throw e;
+    }
+
+    HttpResponseMessage response = new HttpResponseMessage(message.method,
+        message.url, statusCode, decoded, -1);
+    response.setReadTime(System.nanoTime() - readStart);
+    addResponseHeaders(connection, response);
+
+    compressedBytes.addAndGet(counter.count);
+    uncompressedBytes.addAndGet(Math.max(response.getResponseLength(), 0));
+
+    return response;
   }
 
-  private HttpURLConnection getConnection(HttpMessage message) throws
+  protected HttpURLConnection getConnection(HttpMessage message) throws
       IOException {
+    return getConnection(message, null);
+  }
+
+  /**
+   * Opens and returns a connection for the passed message, applying the
+   * configured timeouts lowered by the timeout parameters, if any.
+   */
+  protected HttpURLConnection getConnection(HttpMessage message,
+      Map<String, Object> parameters) throws IOException {
     HttpURLConnection connection =
       (HttpURLConnection) message.url.openConnection();
 
+    connection.setConnectTimeout(getTimeout(connectTimeout, parameters,
+        CONNECT_TIMEOUT));
+    connection.setReadTimeout(getTimeout(readTimeout, parameters,
+        READ_TIMEOUT));
+
     for (Map.Entry<String, String> header : message.headers) {
-      connection.setRequestProperty(header.getKey(), header.getValue());
+      if (!HttpMessage.CONTENT_LENGTH.equalsIgnoreCase(header.getKey())) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+    }
+
+    // Stream bodies of known length rather than letting the connection
+    // buffer them in full to compute the Content-Length
+    String contentLength = message.getHeader(HttpMessage.CONTENT_LENGTH);
+    if (contentLength != null) {
+      try {
+        long length = Long.parseLong(contentLength);
+        if (length <= Integer.MAX_VALUE) {
+          connection.setFixedLengthStreamingMode((int) length);
+        } else {
+          connection.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+      } catch (NumberFormatException e) {
+        // Let the connection compute it
+      }
+    }
+
+    if (compressionEnabled && message.getHeader("Accept-Encoding") == null) {
+      connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
     }
 
     connection.setRequestMethod(message.method);
@@ -74,19 +212,256 @@ public class HttpClientImpl implements HttpClient, Serializable {
     return connection;
   }
 
-  private byte[] streamToByteArray(InputStream stream) throws IOException {
+  /**
+   * Returns true if requests advertise support for compressed responses;
+   * defaults to true.
+   */
+  public boolean isCompressionEnabled() {
+    return compressionEnabled;
+  }
+
+  /**
+   * Sets whether requests advertise support for gzip and deflate compressed
+   * responses; compressed responses are decoded regardless of this setting.
+   *
+   * @param compressionEnabled true to send Accept-Encoding: gzip, deflate
+   */
+  public void setCompressionEnabled(boolean compressionEnabled) {
+    this.compressionEnabled = compressionEnabled;
+  }
+
+  /**
+   * Returns the timeout in milliseconds for establishing connections, or 0
+   * if connecting never times out; defaults to
+   * {@value #DEFAULT_CONNECT_TIMEOUT}.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets the timeout in milliseconds for establishing connections.
+   *
+   * @param connectTimeout timeout in milliseconds, or 0 to wait indefinitely
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative");
+    }
+
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Returns the timeout in milliseconds for reading from connections, i.e.
+   * the longest time to wait for data, or 0 if reads never time out;
+   * defaults to {@value #DEFAULT_READ_TIMEOUT}.
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Sets the timeout in milliseconds for reading from connections.
+   *
+   * @param readTimeout timeout in milliseconds, or 0 to wait indefinitely
+   */
+  public void setReadTimeout(int readTimeout) {
+    if (readTimeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative");
+    }
+
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Returns the total number of body bytes received in compressed
+   * responses, as transferred over the network.
+   */
+  public long getCompressedBytes() {
+    return compressedBytes.get();
+  }
+
+  /**
+   * Returns the total size in bytes of the bodies of compressed responses
+   * after decompression; compared with {@link #getCompressedBytes()}, shows
+   * the bandwidth saved by compression.
+   */
+  public long getUncompressedBytes() {
+    return uncompressedBytes.get();
+  }
+
+  /**
+   * Copies the response headers received on the passed connection, e.g. ETag
+   * or Retry-After, into the passed response message.
+   */
+  protected void addResponseHeaders(HttpURLConnection connection,
+      HttpResponseMessage response) {
+    for (int i = 0; ; i++) {
+      String value = connection.getHeaderField(i);
+      if (value == null) {
+        break;
+      }
+
+      String name = connection.getHeaderFieldKey(i);
+      if (name != null) {
+        response.headers.add(new OAuth.Parameter(name, value));
+      }
+    }
+  }
+
+  /**
+   * Reads the passed stream to the end and closes it, discarding its
+   * content; does nothing if the stream is null.
+   */
+  protected void drain(InputStream stream) {
+    if (stream == null) {
+      return;
+    }
+
     byte[] buffer = new byte[1024];
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-    while(true) {
-      int read = stream.read(buffer);
-      if (read <= 0) {
+    try {
+      while (stream.read(buffer) >= 0) {
+        // Discard
+      }
+    } catch (IOException e) {
+      // Ignore; the connection simply won't be reused
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  private static void closeBody(HttpMessage message) {
+    try {
+      InputStream body = message.getBody();
+      if (body != null) {
+        body.close();
+      }
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  private static int getTimeout(int timeout, Map<String, Object> parameters,
+      String name) {
+    Object parameter = parameters == null ? null : parameters.get(name);
+    if (!(parameter instanceof Number)) {
+      return timeout;
+    }
+
+    // Never 0, which would disable the timeout
+    int requested = Math.max(1, ((Number) parameter).intValue());
+
+    return timeout == 0 ? requested : Math.min(timeout, requested);
+  }
+
+  /**
+   * Returns false for responses which never carry a body, even if they
+   * repeat the Content-Encoding and Content-Length of the representation:
+   * responses to HEAD requests, 1xx, 204 and 304 responses, and those with
+   * an explicit Content-Length of 0.
+   */
+  private static boolean hasBody(String method, int statusCode,
+      int contentLength) {
+    return !"HEAD".equals(method) && statusCode / 100 != 1 &&
+        statusCode != 204 && statusCode != 304 && contentLength != 0;
+  }
+
+  private static boolean isCompressed(String encoding) {
+    return "gzip".equalsIgnoreCase(encoding) ||
+        "x-gzip".equalsIgnoreCase(encoding) ||
+        "deflate".equalsIgnoreCase(encoding);
+  }
+
+  private static InputStream decode(InputStream in, String encoding)
+      throws IOException {
+    if (!"deflate".equalsIgnoreCase(encoding)) {
+      return new GZIPInputStream(in);
+    }
+
+    // Despite the specification, some servers send raw deflate data rather
+    // than the zlib format; tell them apart by the zlib header
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    byte[] header = new byte[2];
+    int read = 0;
+    while (read < 2) {
+      int count = pushback.read(header, read, 2 - read);
+      if (count < 0) {
+        break;
+      }
+      read += count;
+    }
+    pushback.unread(header, 0, read);
+
+    boolean zlib = read == 2 && (header[0] & 0x0f) == 8 &&
+        (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+
+    return new InflaterInputStream(pushback, new Inflater(!zlib)) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        inf.end();
+      }
+    };
+  }
+
+  private static void copy(InputStream in, OutputStream out)
+      throws IOException {
+    byte[] buffer = new byte[CHUNK_SIZE];
+
+    while (true) {
+      int read = in.read(buffer);
+      if (read < 0) {
         break;
       }
 
       out.write(buffer, 0, read);
     }
+  }
+
+  /**
+   * Counts the bytes read from the underlying stream.
+   */
+  private static class CountingInputStream extends FilterInputStream {
 
-    return out.toByteArray();
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+
+      return skipped;
+    }
   }
 }
@@ -15,29 +15,97 @@
 
 package org.opensocial.http;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 
+/**
+ * HTTP response returned by an {@link HttpClient}. The response body is kept
+ * as the raw bytes received from the container and only decoded as UTF-8
+ * when {@link #getResponse()} is first called; parsers should prefer
+ * {@link #getResponseReader()} or {@link #getResponseStream()}, which read
+ * the bytes directly without building a String copy of the whole body.
+ */
 public class HttpResponseMessage extends net.oauth.http.HttpResponseMessage {
 
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
+
   private int statusCode;
+  private byte[] body;
+  private int length;
   private String response;
+  private long readTime = -1;
 
   public HttpResponseMessage(String method, URL url, int statusCode) throws
       IOException {
-    this(method, url, statusCode, null);
+    this(method, url, statusCode, (InputStream) null);
   }
 
   public HttpResponseMessage(String method, URL url, int statusCode,
       InputStream responseStream) throws IOException {
+    this(method, url, statusCode, responseStream, -1);
+  }
+
+  /**
+   * Creates and returns a new {@link HttpResponseMessage}, reading the
+   * response body from the passed stream into a buffer sized from the passed
+   * content length.
+   *
+   * @param method         HTTP method of the request
+   * @param url            URL of the request
+   * @param statusCode     HTTP status code returned by the container
+   * @param responseStream stream to read the response body from, or null if
+   *                       the response has no body; closed once read
+   * @param contentLength  value of the Content-Length response header, or -1
+   *                       if unknown
+   * @throws IOException   if the body could not be read completely, e.g. it
+   *                       is shorter than the content length; the stream is
+   *                       closed regardless
+   */
+  public HttpResponseMessage(String method, URL url, int statusCode,
+      InputStream responseStream, int contentLength) throws IOException {
+    super(method, url);
+    this.statusCode = statusCode;
+    setResponse(responseStream, "HEAD".equals(method) ? -1 : contentLength);
+  }
+
+  /**
+   * Creates and returns a new {@link HttpResponseMessage} whose body is the
+   * passed byte array, which is not copied and must not be modified.
+   */
+  HttpResponseMessage(String method, URL url, int statusCode, byte[] body) {
     super(method, url);
     this.statusCode = statusCode;
-    setResponse(responseStream);
+    this.body = body;
+    this.length = body == null ? 0 : body.length;
+  }
+
+  /**
+   * Returns the passed response if it is an {@link HttpResponseMessage}
+   * already, or a copy of its status code, headers and body otherwise, e.g.
+   * for the responses returned by other {@link net.oauth.http.HttpClient}
+   * implementations through execute(HttpMessage, Map).
+   *
+   * @param  response    response to convert, or null
+   * @throws IOException if the body of the passed response could not be
+   *                     read
+   */
+  public static HttpResponseMessage valueOf(
+      net.oauth.http.HttpResponseMessage response) throws IOException {
+    if (response == null || response instanceof HttpResponseMessage) {
+      return (HttpResponseMessage) response;
+    }
+
+    HttpResponseMessage copy = new HttpResponseMessage(response.method,
+        response.url, response.getStatusCode(), response.getBody());
+    copy.headers.addAll(response.headers);
+
+    return copy;
   }
 
   @Override
@@ -45,10 +113,105 @@ public class HttpResponseMessage extends net.oauth.http.HttpResponseMessage {
     return statusCode;
   }
 
+  /**
+   * Returns the time in nanoseconds the {@link HttpClient} spent reading the
+   * response body after receiving the headers, or -1 if it wasn't measured.
+   */
+  public long getReadTime() {
+    return readTime;
+  }
+
+  void setReadTime(long readTime) {
+    this.readTime = readTime;
+  }
+
+  /**
+   * Returns the response body decoded as UTF-8, or null if the response has
+   * no body. The body is decoded on the first call only.
+   */
   public String getResponse() {
+    if (response == null && body != null) {
+      try {
+        response = new String(body, 0, length, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        // Ignore; UTF-8 is always supported
+      }
+    }
+
     return response;
   }
 
+  /**
+   * Returns the length of the response body in bytes, or -1 if the response
+   * has no body.
+   */
+  public int getResponseLength() {
+    return body == null ? -1 : length;
+  }
+
+  /**
+   * Returns a new stream over the raw response body bytes, or null if the
+   * response has no body.
+   */
+  public InputStream getResponseStream() {
+    if (body == null) {
+      return null;
+    }
+
+    return new ByteArrayInputStream(body, 0, length);
+  }
+
+  /**
+   * Returns a new reader decoding the response body as UTF-8, or null if the
+   * response has no body.
+   */
+  public Reader getResponseReader() {
+    InputStream stream = getResponseStream();
+    if (stream == null) {
+      return null;
+    }
+
+    try {
+      return new InputStreamReader(stream, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // Ignore; UTF-8 is always supported
+      return null;
+    }
+  }
+
+  /**
+   * Returns a copy of the response body bytes, or null if the response has
+   * no body.
+   */
+  byte[] toByteArray() {
+    if (body == null) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    System.arraycopy(body, 0, bytes, 0, length);
+
+    return bytes;
+  }
+
+  /**
+   * Returns the first character of the response body which is not
+   * whitespace, or -1 if the body is absent or blank; useful to detect the
+   * body's format without decoding it.
+   */
+  public int getFirstCharacter() {
+    if (body != null) {
+      for (int i = 0; i < length; i++) {
+        byte b = body[i];
+        if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+          return b & 0xff;
+        }
+      }
+    }
+
+    return -1;
+  }
+
   public String getMethod() {
     return method;
   }
@@ -62,33 +225,60 @@ public class HttpResponseMessage extends net.oauth.http.HttpResponseMessage {
    */
   @Override
   protected InputStream openBody() {
-    if (response != null) {
-      try {
-        return new ByteArrayInputStream(response.getBytes("UTF-8"));
-      } catch (UnsupportedEncodingException e) {
-        // Ignore
-      }
-    }
-
-    return null;
+    return getResponseStream();
   }
 
-  private void setResponse(InputStream in) {
-    if (in != null) {
-      try {
-        String line = null;
-        StringBuilder builder = new StringBuilder();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+  private void setResponse(InputStream in, int contentLength)
+      throws IOException {
+    if (in == null) {
+      return;
+    }
 
-        while ((line = reader.readLine()) != null) {
-          builder.append(line);
+    try {
+      byte[] buffer = new byte[contentLength >= 0 ? contentLength :
+          DEFAULT_BUFFER_SIZE];
+      int count = 0;
+
+      while (true) {
+        if (count == buffer.length) {
+          if (contentLength >= 0) {
+            // Body is longer than advertised; make sure we are at the end
+            int next = in.read();
+            if (next < 0) {
+              break;
+            }
+            buffer = grow(buffer, count);
+            buffer[count++] = (byte) next;
+            contentLength = -1;
+            continue;
+          }
+          buffer = grow(buffer, count);
         }
 
-        response = builder.toString();
-        in.close();
-      } catch(IOException e) {
-        response = null;
+        int read = in.read(buffer, count, buffer.length - count);
+        if (read < 0) {
+          // The JDK reports a connection closed early as a normal end of
+          // stream
+          if (contentLength >= 0) {
+            throw new EOFException("Response body ended after " + count +
+                " of " + contentLength + " bytes");
+          }
+          break;
+        }
+        count += read;
       }
+
+      body = buffer;
+      length = count;
+    } finally {
+      in.close();
     }
   }
+
+  private static byte[] grow(byte[] buffer, int count) {
+    byte[] grown = new byte[Math.max(buffer.length * 2, DEFAULT_BUFFER_SIZE)];
+    System.arraycopy(buffer, 0, grown, 0, count);
+
+    return grown;
+  }
 }
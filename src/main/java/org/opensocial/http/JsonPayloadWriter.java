@@ -0,0 +1,275 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import org.json.simple.JSONAware;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes JSON values, i.e. Maps, Lists, Strings, Numbers, Booleans and
+ * nulls as handled by json-simple, into {@link Payload}s. The UTF-8 bytes are
+ * written straight into a buffer which each thread reuses from one request
+ * to the next, and the SHA-1 body hash, if requested, is computed from the
+ * buffer as it fills up rather than in a separate pass. The output is
+ * identical to json-simple's toJSONString, encoded as UTF-8.
+ */
+public final class JsonPayloadWriter {
+
+  private static final int INITIAL_SIZE = 1024;
+  private static final int MAX_RETAINED_SIZE = 64 * 1024;
+  private static final int DIGEST_CHUNK_SIZE = 4096;
+
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+  private static final ThreadLocal<JsonPayloadWriter> WRITERS =
+    new ThreadLocal<JsonPayloadWriter>() {
+      @Override
+      protected JsonPayloadWriter initialValue() {
+        return new JsonPayloadWriter();
+      }
+    };
+
+  private byte[] buffer = new byte[INITIAL_SIZE];
+  private int count;
+  private int digested;
+  private MessageDigest digest;
+
+  private JsonPayloadWriter() {
+  }
+
+  /**
+   * Serializes the passed value and returns it as a {@link Payload}.
+   *
+   * @param value  JSON value to serialize, e.g. a Map of RPC parameters
+   * @param digest true to compute the payload's SHA-1 hash while writing it,
+   *               e.g. when the oauth_body_hash parameter will be signed
+   */
+  public static Payload write(Object value, boolean digest) {
+    return WRITERS.get().serialize(value, digest);
+  }
+
+  private Payload serialize(Object value, boolean hash) {
+    count = 0;
+    digested = 0;
+    digest = hash ? Payload.getSha1Digest() : null;
+
+    try {
+      writeValue(value);
+
+      byte[] sha1 = null;
+      if (digest != null) {
+        digest.update(buffer, digested, count - digested);
+        sha1 = digest.digest();
+      }
+
+      byte[] bytes = new byte[count];
+      System.arraycopy(buffer, 0, bytes, 0, count);
+
+      return new ByteArrayPayload(bytes, sha1);
+    } finally {
+      digest = null;
+
+      // Don't hold on to the buffer of an unusually large payload
+      if (buffer.length > MAX_RETAINED_SIZE) {
+        buffer = new byte[INITIAL_SIZE];
+      }
+    }
+  }
+
+  private void writeValue(Object value) {
+    if (value == null) {
+      writeAscii("null");
+    } else if (value instanceof String) {
+      writeString((String) value);
+    } else if (value instanceof Double && (((Double) value).isInfinite() ||
+        ((Double) value).isNaN())) {
+      writeAscii("null");
+    } else if (value instanceof Float && (((Float) value).isInfinite() ||
+        ((Float) value).isNaN())) {
+      writeAscii("null");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      writeAscii(value.toString());
+    } else if (value instanceof Map) {
+      writeMap((Map) value);
+    } else if (value instanceof List) {
+      writeList((List) value);
+    } else if (value instanceof JSONAware) {
+      writeUtf8(((JSONAware) value).toJSONString());
+    } else {
+      writeUtf8(value.toString());
+    }
+  }
+
+  private void writeMap(Map map) {
+    write('{');
+
+    boolean first = true;
+    for (Object object : map.entrySet()) {
+      Map.Entry entry = (Map.Entry) object;
+      if (!first) {
+        write(',');
+      }
+      first = false;
+
+      writeString(String.valueOf(entry.getKey()));
+      write(':');
+      writeValue(entry.getValue());
+    }
+
+    write('}');
+  }
+
+  private void writeList(List list) {
+    write('[');
+
+    boolean first = true;
+    for (Object value : list) {
+      if (!first) {
+        write(',');
+      }
+      first = false;
+
+      writeValue(value);
+    }
+
+    write(']');
+  }
+
+  private void writeString(String value) {
+    write('"');
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      switch (c) {
+        case '"':
+          writeEscape('"');
+          break;
+        case '\\':
+          writeEscape('\\');
+          break;
+        case '\b':
+          writeEscape('b');
+          break;
+        case '\f':
+          writeEscape('f');
+          break;
+        case '\n':
+          writeEscape('n');
+          break;
+        case '\r':
+          writeEscape('r');
+          break;
+        case '\t':
+          writeEscape('t');
+          break;
+        case '/':
+          writeEscape('/');
+          break;
+        default:
+          // Same ranges as JSONValue.escape
+          if (c <= '\u001F' || (c >= '\u007F' && c <= '\u009F') ||
+              (c >= '\u2000' && c <= '\u20FF')) {
+            ensureCapacity(6);
+            buffer[count++] = '\\';
+            buffer[count++] = 'u';
+            buffer[count++] = HEX[(c >> 12) & 0xf];
+            buffer[count++] = HEX[(c >> 8) & 0xf];
+            buffer[count++] = HEX[(c >> 4) & 0xf];
+            buffer[count++] = HEX[c & 0xf];
+          } else {
+            i = writeChar(value, i);
+          }
+      }
+    }
+
+    write('"');
+  }
+
+  private void writeEscape(char c) {
+    ensureCapacity(2);
+    buffer[count++] = '\\';
+    buffer[count++] = (byte) c;
+  }
+
+  private void writeAscii(String value) {
+    ensureCapacity(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      buffer[count++] = (byte) value.charAt(i);
+    }
+  }
+
+  private void writeUtf8(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      i = writeChar(value, i);
+    }
+  }
+
+  /**
+   * Writes the character at the passed index encoded as UTF-8 and returns
+   * the index of the last character consumed, which is the next one if both
+   * form a surrogate pair.
+   */
+  private int writeChar(String value, int i) {
+    char c = value.charAt(i);
+    ensureCapacity(4);
+
+    if (c < 0x80) {
+      buffer[count++] = (byte) c;
+    } else if (c < 0x800) {
+      buffer[count++] = (byte) (0xc0 | (c >> 6));
+      buffer[count++] = (byte) (0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c) && i + 1 < value.length() &&
+        Character.isLowSurrogate(value.charAt(i + 1))) {
+      int codePoint = Character.toCodePoint(c, value.charAt(++i));
+      buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+      buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+      buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else if (c >= '\uD800' && c <= '\uDFFF') {
+      // Unpaired surrogates are encoded as '?' by the UTF-8 encoder
+      buffer[count++] = '?';
+    } else {
+      buffer[count++] = (byte) (0xe0 | (c >> 12));
+      buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+      buffer[count++] = (byte) (0x80 | (c & 0x3f));
+    }
+
+    return i;
+  }
+
+  private void write(char c) {
+    ensureCapacity(1);
+    buffer[count++] = (byte) c;
+  }
+
+  private void ensureCapacity(int length) {
+    // Hash completed chunks while they are still in the CPU cache
+    if (digest != null && count - digested >= DIGEST_CHUNK_SIZE) {
+      digest.update(buffer, digested, count - digested);
+      digested = count;
+    }
+
+    if (count + length > buffer.length) {
+      byte[] grown = new byte[Math.max(buffer.length * 2, count + length)];
+      System.arraycopy(buffer, 0, grown, 0, count);
+      buffer = grown;
+    }
+  }
+}
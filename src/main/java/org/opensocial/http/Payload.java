@@ -0,0 +1,125 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Request body of known length which can be read as a stream, possibly more
+ * than once, e.g. once to compute its OAuth body hash and once to send it.
+ * Large bodies such as media uploads should be passed as a
+ * {@link FilePayload}, which is never loaded into memory as a whole.
+ */
+public abstract class Payload {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  // MessageDigest instances are costly to create but not thread-safe
+  private static final ThreadLocal<MessageDigest> SHA1 =
+    new ThreadLocal<MessageDigest>() {
+      @Override
+      protected MessageDigest initialValue() {
+        try {
+          return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException("SHA-1 is not supported");
+        }
+      }
+    };
+
+  /**
+   * Returns the length of the body in bytes.
+   */
+  public abstract long getLength();
+
+  /**
+   * Returns a new stream over the body, which the caller must close.
+   *
+   * @throws IOException if the body cannot be opened
+   */
+  public abstract InputStream openStream() throws IOException;
+
+  /**
+   * Returns the SHA-1 hash of the body, e.g. for the oauth_body_hash
+   * parameter.
+   *
+   * @throws IOException if the body cannot be read
+   */
+  public byte[] getSha1() throws IOException {
+    MessageDigest digest = getSha1Digest();
+    update(digest);
+
+    return digest.digest();
+  }
+
+  /**
+   * Returns the body as a byte array; only meant for small bodies which must
+   * be inspected as a whole, e.g. form-encoded parameters.
+   *
+   * @throws IOException if the body cannot be read
+   */
+  public byte[] toByteArray() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(
+        (int) Math.min(getLength(), Integer.MAX_VALUE));
+    InputStream in = openStream();
+
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the calling thread's SHA-1 digest, reset and ready for use.
+   */
+  static MessageDigest getSha1Digest() {
+    MessageDigest digest = SHA1.get();
+    digest.reset();
+
+    return digest;
+  }
+
+  /**
+   * Feeds the body into the passed digest in a single pass; the default
+   * implementation reads the body through {@link #openStream()}.
+   *
+   * @throws IOException if the body cannot be read
+   */
+  protected void update(MessageDigest digest) throws IOException {
+    InputStream in = openStream();
+
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
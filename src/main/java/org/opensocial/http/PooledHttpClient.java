@@ -0,0 +1,390 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import net.oauth.http.HttpMessage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link HttpClient} implementation which limits the number of requests
+ * executed concurrently against each host and keeps per-host request
+ * statistics. Despite its name, it is a per-host concurrency limiter rather
+ * than a connection pool: it never holds sockets itself. Sockets are reused
+ * through the JDK's HTTP keep-alive cache only, and every response body,
+ * including the error body of 4xx and 5xx responses, is consumed completely
+ * so that the underlying connection is returned to that cache rather than
+ * discarded. The JDK keeps at most {@code http.maxConnections} (5 by
+ * default) idle sockets per host, so with a higher per-host limit, e.g. the
+ * default of {@value #DEFAULT_MAX_CONNECTIONS_PER_HOST}, most connections
+ * are closed after their request unless this system property is raised to
+ * match the limit before the first request is made. The statistics count
+ * requests and permits, not sockets, and don't show whether a socket was
+ * reused.
+ *
+ * <p>Instances are safe for concurrent use and should be shared between
+ * {@link org.opensocial.Client}s talking to the same containers. Hosts which
+ * have seen no traffic for longer than the idle timeout are evicted, which
+ * only drops their limits and statistics: idle sockets are left to the JDK's
+ * keep-alive cache, which closes them on its own timeout.
+ */
+public class PooledHttpClient extends HttpClientImpl {
+
+  private static final long serialVersionUID = 2815634012851326474L;
+
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+  private final int maxConnectionsPerHost;
+  private final long idleTimeout;
+  private final long acquireTimeout;
+
+  private transient ConcurrentHashMap<String, Route> routes;
+  private transient AtomicLong evictedRoutes;
+  private transient volatile long lastEviction;
+
+  /**
+   * Creates and returns a new {@link PooledHttpClient} allowing up to
+   * {@value #DEFAULT_MAX_CONNECTIONS_PER_HOST} concurrent requests per host
+   * and evicting hosts idle for more than a minute.
+   */
+  public PooledHttpClient() {
+    this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT, 0);
+  }
+
+  /**
+   * Creates and returns a new {@link PooledHttpClient} configured with the
+   * passed limits.
+   *
+   * @param maxConnectionsPerHost maximum number of requests executed
+   *                              concurrently against a single host
+   * @param idleTimeout           time in milliseconds after which a host
+   *                              with no active or recent requests is evicted
+   * @param acquireTimeout        maximum time in milliseconds to wait for a
+   *                              free request slot before failing, or 0 to
+   *                              wait indefinitely
+   */
+  public PooledHttpClient(int maxConnectionsPerHost, long idleTimeout,
+      long acquireTimeout) {
+    if (maxConnectionsPerHost < 1) {
+      throw new IllegalArgumentException(
+          "maxConnectionsPerHost must be positive");
+    }
+
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.idleTimeout = idleTimeout;
+    this.acquireTimeout = acquireTimeout;
+
+    init();
+  }
+
+  private void init() {
+    routes = new ConcurrentHashMap<String, Route>();
+    evictedRoutes = new AtomicLong();
+    lastEviction = System.currentTimeMillis();
+  }
+
+  @Override
+  public HttpResponseMessage execute(HttpMessage message,
+      Map<String, Object> parameters) throws IOException {
+    evictIdleRoutes(false);
+
+    Route route = getRoute(message.url);
+    while (!route.enter()) {
+      // Evicted between the lookup and now, a new route replaces it
+      route = getRoute(message.url);
+    }
+    route.acquire();
+
+    boolean success = false;
+    try {
+      HttpResponseMessage response = super.execute(message, parameters);
+      success = true;
+
+      return response;
+    } finally {
+      route.release(success);
+    }
+  }
+
+  /**
+   * Returns the maximum number of requests executed concurrently per host.
+   */
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  /**
+   * Returns the time in milliseconds after which idle hosts are evicted.
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Returns a snapshot of the statistics aggregated over all hosts currently
+   * in the pool.
+   */
+  public PoolStats getStats() {
+    long requests = 0;
+    long failures = 0;
+    int leased = 0;
+    int pending = 0;
+
+    for (Route route : routes.values()) {
+      requests += route.requests.get();
+      failures += route.failures.get();
+      leased += route.leased.get();
+      pending += route.getPending();
+    }
+
+    return new PoolStats(requests, failures, leased, pending, routes.size(),
+        evictedRoutes.get());
+  }
+
+  /**
+   * Returns a snapshot of the statistics of each host currently in the pool,
+   * keyed by protocol, host name and port, e.g. http://www.orkut.com:80.
+   */
+  public Map<String, PoolStats> getRouteStats() {
+    Map<String, PoolStats> stats = new HashMap<String, PoolStats>();
+
+    for (Map.Entry<String, Route> entry : routes.entrySet()) {
+      Route route = entry.getValue();
+      stats.put(entry.getKey(), new PoolStats(route.requests.get(),
+          route.failures.get(), route.leased.get(), route.getPending(), 1, 0));
+    }
+
+    return stats;
+  }
+
+  /**
+   * Evicts all hosts which have no requests in flight and have been idle for
+   * longer than the idle timeout.
+   */
+  public void evictIdleRoutes() {
+    evictIdleRoutes(true);
+  }
+
+  private void evictIdleRoutes(boolean force) {
+    long now = System.currentTimeMillis();
+    if (!force && now - lastEviction < idleTimeout) {
+      return;
+    }
+    lastEviction = now;
+
+    for (Route route : routes.values()) {
+      if (route.retire(now - idleTimeout)) {
+        evictedRoutes.incrementAndGet();
+      }
+    }
+  }
+
+  private Route getRoute(URL url) {
+    int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+
+    Route route = routes.get(key);
+    if (route == null) {
+      route = new Route(key, maxConnectionsPerHost);
+
+      Route existing = routes.putIfAbsent(key, route);
+      if (existing != null) {
+        route = existing;
+      }
+    }
+
+    return route;
+  }
+
+  private Object readResolve() {
+    init();
+
+    return this;
+  }
+
+  private class Route {
+
+    private final String key;
+    private final Semaphore permits;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicInteger leased = new AtomicInteger();
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    // Requests holding or waiting for a permit, guarded by this route
+    private int users;
+    private boolean retired;
+
+    Route(String key, int maxConnections) {
+      this.key = key;
+      permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Registers a request about to acquire a permit, or returns false if the
+     * route was evicted and must no longer be used.
+     */
+    synchronized boolean enter() {
+      if (retired) {
+        return false;
+      }
+
+      users++;
+      return true;
+    }
+
+    private synchronized void leave() {
+      users--;
+      lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Removes this route from the pool if no request holds or waits for one
+     * of its permits and it was last used before the passed time; once
+     * retired, the route admits no more requests.
+     */
+    synchronized boolean retire(long threshold) {
+      if (retired || users > 0 || lastUsed >= threshold) {
+        return false;
+      }
+
+      retired = true;
+      return routes.remove(key, this);
+    }
+
+    void acquire() throws IOException {
+      boolean acquired = false;
+      try {
+        if (acquireTimeout <= 0) {
+          permits.acquire();
+        } else if (!permits.tryAcquire(acquireTimeout,
+            TimeUnit.MILLISECONDS)) {
+          throw new IOException("Timed out after " + acquireTimeout +
+              "ms waiting for a connection");
+        }
+        acquired = true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for a connection");
+      } finally {
+        if (!acquired) {
+          leave();
+        }
+      }
+
+      leased.incrementAndGet();
+      requests.incrementAndGet();
+    }
+
+    void release(boolean success) {
+      if (!success) {
+        failures.incrementAndGet();
+      }
+
+      leased.decrementAndGet();
+      permits.release();
+      leave();
+    }
+
+    int getPending() {
+      return permits.getQueueLength();
+    }
+  }
+
+  /**
+   * Immutable snapshot of per-host request statistics.
+   */
+  public static class PoolStats {
+
+    private final long requests;
+    private final long failures;
+    private final int leased;
+    private final int pending;
+    private final int routes;
+    private final long evictedRoutes;
+
+    PoolStats(long requests, long failures, int leased, int pending,
+        int routes, long evictedRoutes) {
+      this.requests = requests;
+      this.failures = failures;
+      this.leased = leased;
+      this.pending = pending;
+      this.routes = routes;
+      this.evictedRoutes = evictedRoutes;
+    }
+
+    /**
+     * Returns the number of requests executed, including failed ones.
+     */
+    public long getRequests() {
+      return requests;
+    }
+
+    /**
+     * Returns the number of requests which failed with an I/O error.
+     */
+    public long getFailures() {
+      return failures;
+    }
+
+    /**
+     * Returns the number of requests currently holding a permit, i.e. being
+     * executed.
+     */
+    public int getLeased() {
+      return leased;
+    }
+
+    /**
+     * Returns the number of threads waiting for a permit.
+     */
+    public int getPending() {
+      return pending;
+    }
+
+    /**
+     * Returns the number of hosts currently tracked by the pool.
+     */
+    public int getRoutes() {
+      return routes;
+    }
+
+    /**
+     * Returns the number of hosts evicted from the pool after going idle.
+     */
+    public long getEvictedRoutes() {
+      return evictedRoutes;
+    }
+
+    @Override
+    public String toString() {
+      return "requests=" + requests + ", failures=" + failures + ", leased=" +
+          leased + ", pending=" + pending + ", routes=" + routes +
+          ", evictedRoutes=" + evictedRoutes;
+    }
+  }
+}
@@ -23,15 +23,28 @@ import org.json.simple.parser.ParseException;
 import org.opensocial.Response;
 import org.opensocial.models.Model;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class JsonParser implements Parser {
+public class JsonParser implements StreamingParser {
 
   public Response getResponseObject(String json,
       final Class<? extends Model> modelClass, String version) {
+    return getResponseObject(new StringReader(json), modelClass, version);
+  }
+
+  public Map<String, Response> getResponseMap(String json,
+      Map<String, Class<? extends Model>> modelClasses, String version) {
+    return getResponseMap(new StringReader(json), modelClasses, version);
+  }
+
+  public Response getResponseObject(Reader json,
+      final Class<? extends Model> modelClass, String version) {
     if (version.equals("0.8")) {
       return getResponseObject0p8(json, modelClass);
     } else if (version.equals("0.9")) {
@@ -41,7 +54,7 @@ public class JsonParser implements Parser {
     return null;
   }
 
-  public Map<String, Response> getResponseMap(String json,
+  public Map<String, Response> getResponseMap(Reader json,
       Map<String, Class<? extends Model>> modelClasses, String version) {
     if (version.equals("0.8")) {
       return getResponseMap0p8(json, modelClasses);
@@ -52,7 +65,7 @@ public class JsonParser implements Parser {
     return null;
   }
 
-  private Response getResponseObject0p8(String json,
+  private Response getResponseObject0p8(Reader json,
       final Class<? extends Model> modelClass) {
     Response response = new Response();
 
@@ -80,12 +93,14 @@ public class JsonParser implements Parser {
       }
     } catch (ParseException e) {
       return null;
+    } catch (IOException e) {
+      return null;
     }
 
     return response;
   }
 
-  private Map<String, Response> getResponseMap0p8(String json,
+  private Map<String, Response> getResponseMap0p8(Reader json,
       Map<String, Class<? extends Model>> modelClasses) {
     Map<String, Response> responses = new HashMap<String, Response>();
 
@@ -136,78 +151,80 @@ public class JsonParser implements Parser {
       }
     } catch (ParseException e) {
       return null;
+    } catch (IOException e) {
+      return null;
     }
 
     return responses;
   }
 
-  private Response getResponseObject0p9(String json,
+  private Response getResponseObject0p9(Reader json,
       final Class<? extends Model> modelClass) {
     Response response = new Response();
 
     JSONParser parser = new JSONParser();
     ContainerFactory containerFactory = getContainerFactory(modelClass);
 
-    if (json.startsWith("{")) {
-      try {
-        Map rootObject = (Map) parser.parse(json, containerFactory);
+    Object root;
+    try {
+      root = parser.parse(json, containerFactory);
+    } catch (ParseException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
 
-        if (rootObject.containsKey("startIndex")) {
-          response.setStartIndex(rootObject.get("startIndex"));
-        }
-        if (rootObject.containsKey("totalResults")) {
-          response.setTotalResults(rootObject.get("totalResults"));
-        }
-        if (rootObject.containsKey("itemsPerPage")) {
-          response.setItemsPerPage(rootObject.get("itemsPerPage"));
-        }
-        if (rootObject.containsKey("statusLink")) {
-          response.setStatusLink(rootObject.get("statusLink"));
-        }
-        if (rootObject.containsKey("isFiltered")) {
-          response.setIsFiltered(rootObject.get("isFiltered"));
-        }
-        if (rootObject.containsKey("person")) {
-          response.getEntries().add((Model) rootObject.get("person"));
-        } else if (rootObject.containsKey("entry")) {
-          Object entry = rootObject.get("entry");
-          if (entry.getClass().equals(JSONArray.class)) {
-            for (int i = 0; i < ((List) entry).size(); i++) {
-              Map currentEntry = (Map) ((List) entry).get(i);
-              if (currentEntry.containsKey("person")) {
-                response.getEntries().add((Model) currentEntry.get("person"));
-              } else if (currentEntry.containsKey("activity")) {
-                response.getEntries().add(
-                    (Model) currentEntry.get("activity"));
-              } else if (currentEntry.containsKey("album")) {
-                response.getEntries().add((Model) currentEntry.get("album"));
-              } else if (currentEntry.containsKey("mediaItem")) {
-                response.getEntries().add(
-                    (Model) currentEntry.get("mediaItem"));
-              }
-              else {
-                response.getEntries().add((Model) currentEntry);
-              }
+    if (root instanceof Map) {
+      Map rootObject = (Map) root;
+
+      if (rootObject.containsKey("startIndex")) {
+        response.setStartIndex(rootObject.get("startIndex"));
+      }
+      if (rootObject.containsKey("totalResults")) {
+        response.setTotalResults(rootObject.get("totalResults"));
+      }
+      if (rootObject.containsKey("itemsPerPage")) {
+        response.setItemsPerPage(rootObject.get("itemsPerPage"));
+      }
+      if (rootObject.containsKey("statusLink")) {
+        response.setStatusLink(rootObject.get("statusLink"));
+      }
+      if (rootObject.containsKey("isFiltered")) {
+        response.setIsFiltered(rootObject.get("isFiltered"));
+      }
+      if (rootObject.containsKey("person")) {
+        response.getEntries().add((Model) rootObject.get("person"));
+      } else if (rootObject.containsKey("entry")) {
+        Object entry = rootObject.get("entry");
+        if (entry.getClass().equals(JSONArray.class)) {
+          for (int i = 0; i < ((List) entry).size(); i++) {
+            Map currentEntry = (Map) ((List) entry).get(i);
+            if (currentEntry.containsKey("person")) {
+              response.getEntries().add((Model) currentEntry.get("person"));
+            } else if (currentEntry.containsKey("activity")) {
+              response.getEntries().add(
+                  (Model) currentEntry.get("activity"));
+            } else if (currentEntry.containsKey("album")) {
+              response.getEntries().add((Model) currentEntry.get("album"));
+            } else if (currentEntry.containsKey("mediaItem")) {
+              response.getEntries().add(
+                  (Model) currentEntry.get("mediaItem"));
+            }
+            else {
+              response.getEntries().add((Model) currentEntry);
             }
           }
-        } else if (rootObject.containsKey("album")) {
-          response.getEntries().add((Model) rootObject.get("album"));
-        } else if (rootObject.containsKey("mediaItem")) {
-          response.getEntries().add((Model) rootObject.get("mediaItem"));
-        } else {
-          response.getEntries().add((Model) rootObject);
         }
-      } catch (ParseException e) {
-        return null;
+      } else if (rootObject.containsKey("album")) {
+        response.getEntries().add((Model) rootObject.get("album"));
+      } else if (rootObject.containsKey("mediaItem")) {
+        response.getEntries().add((Model) rootObject.get("mediaItem"));
+      } else {
+        response.getEntries().add((Model) rootObject);
       }
-    } else if (json.startsWith("[")) {
-      try {
-        List<Map> rootArray = (List<Map>) parser.parse(json, containerFactory);
-        for (Map responseObject : rootArray) {
-          response.getEntries().add((Model) responseObject);
-        }
-      } catch (ParseException e) {
-        return null;
+    } else if (root instanceof List) {
+      for (Map responseObject : (List<Map>) root) {
+        response.getEntries().add((Model) responseObject);
       }
     }
 
@@ -235,7 +252,7 @@ public class JsonParser implements Parser {
     return containerFactory;
   }
 
-  private static Model cloneModelObject(Model model,
+  static Model cloneModelObject(Model model,
       final Class<? extends Model> modelClass) {
     Model clone = null;
     try {
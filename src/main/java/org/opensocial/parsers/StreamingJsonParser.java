@@ -0,0 +1,480 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.parsers;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opensocial.Response;
+import org.opensocial.models.Model;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link StreamingParser} implementation which reads JSON responses as a
+ * stream of tokens rather than parsing the whole document into a tree first.
+ * Response envelope fields such as startIndex and totalResults are read as
+ * they are encountered and each entry is added to the {@link Response} as
+ * soon as its closing brace is read, so only one entry is under construction
+ * at a time and the envelope objects wrapping entries in 0.9 responses are
+ * never materialized. Produces the same {@link Response} objects as
+ * {@link JsonParser} for both 0.8 and 0.9 providers; unlike JsonParser, it
+ * also parses RPC responses from 0.9 providers, which use the same envelope
+ * as 0.8.
+ */
+public class StreamingJsonParser implements StreamingParser {
+
+  public Response getResponseObject(String json,
+      final Class<? extends Model> modelClass, String version) {
+    return getResponseObject(new StringReader(json), modelClass, version);
+  }
+
+  public Map<String, Response> getResponseMap(String json,
+      Map<String, Class<? extends Model>> modelClasses, String version) {
+    return getResponseMap(new StringReader(json), modelClasses, version);
+  }
+
+  public Response getResponseObject(Reader json,
+      final Class<? extends Model> modelClass, String version) {
+    if (!version.equals("0.8") && !version.equals("0.9")) {
+      return null;
+    }
+
+    RestHandler handler = new RestHandler(modelClass, version.equals("0.9"));
+    if (!parse(json, handler)) {
+      return null;
+    }
+
+    return handler.getResponse();
+  }
+
+  public Map<String, Response> getResponseMap(Reader json,
+      Map<String, Class<? extends Model>> modelClasses, String version) {
+    if (!version.equals("0.8") && !version.equals("0.9")) {
+      return null;
+    }
+
+    RpcHandler handler = new RpcHandler(modelClasses);
+    if (!parse(json, handler)) {
+      return null;
+    }
+
+    return handler.getResponses();
+  }
+
+  private static boolean parse(Reader json, ContentHandler handler) {
+    try {
+      new JSONParser().parse(json, handler);
+    } catch (ParseException e) {
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Base {@link ContentHandler} which tracks the structural position in the
+   * document and materializes the values subclasses are interested in.
+   * Containers the subclass descends into are never built; any other value
+   * is built in full, objects as instances of the current model classes, and
+   * passed to {@link #value(Object)} once complete.
+   */
+  private abstract static class Handler implements ContentHandler {
+
+    /** Number of containers descended into but not materialized. */
+    protected int depth;
+
+    /** Model class to create the value being materialized with. */
+    protected Class<? extends Model> topClass = Model.class;
+
+    /** Model class to create objects nested within that value with. */
+    protected Class<? extends Model> nestedClass = Model.class;
+
+    private final LinkedList<Object> containers = new LinkedList<Object>();
+    private final LinkedList<String> keys = new LinkedList<String>();
+
+    /**
+     * Called when a container starts at the current depth; returns true to
+     * descend into it or false to materialize it as a single value.
+     */
+    protected abstract boolean descend(boolean array);
+
+    /**
+     * Called when a container descended into ends; depth has already been
+     * decremented.
+     */
+    protected abstract void ascend();
+
+    /**
+     * Called when a key starts within an object descended into.
+     */
+    protected abstract void key(String key);
+
+    /**
+     * Called with each complete value materialized at the current depth.
+     */
+    protected abstract void value(Object value);
+
+    public void startJSON() {
+    }
+
+    public void endJSON() {
+    }
+
+    public boolean startObject() {
+      return start(false);
+    }
+
+    public boolean endObject() {
+      return end();
+    }
+
+    public boolean startArray() {
+      return start(true);
+    }
+
+    public boolean endArray() {
+      return end();
+    }
+
+    public boolean startObjectEntry(String key) {
+      if (containers.isEmpty()) {
+        key(key);
+      } else {
+        keys.addLast(key);
+      }
+
+      return true;
+    }
+
+    public boolean endObjectEntry() {
+      if (!containers.isEmpty()) {
+        keys.removeLast();
+      }
+
+      return true;
+    }
+
+    public boolean primitive(Object value) {
+      if (containers.isEmpty()) {
+        value(value);
+      } else {
+        add(value);
+      }
+
+      return true;
+    }
+
+    private boolean start(boolean array) {
+      if (containers.isEmpty()) {
+        if (descend(array)) {
+          depth++;
+        } else {
+          containers.addLast(array ? new JSONArray() : newModel(topClass));
+        }
+      } else {
+        Object container = array ? new JSONArray() : newModel(nestedClass);
+        add(container);
+        containers.addLast(container);
+      }
+
+      return true;
+    }
+
+    private boolean end() {
+      if (containers.isEmpty()) {
+        depth--;
+        ascend();
+      } else {
+        Object container = containers.removeLast();
+        if (containers.isEmpty()) {
+          value(container);
+        }
+      }
+
+      return true;
+    }
+
+    private void add(Object value) {
+      Object parent = containers.getLast();
+
+      if (parent instanceof List) {
+        ((List) parent).add(value);
+      } else {
+        ((Map) parent).put(keys.getLast(), value);
+      }
+    }
+  }
+
+  /**
+   * Handler for REST responses: a single object, possibly wrapping an
+   * "entry" array, or, for 0.9 providers, an array of objects.
+   */
+  private static class RestHandler extends Handler {
+
+    private final boolean version0p9;
+    private final Response response;
+    private final Model root;
+
+    private boolean rootIsObject;
+    private boolean hasEntry;
+    private String key;
+
+    RestHandler(Class<? extends Model> modelClass, boolean version0p9) {
+      this.version0p9 = version0p9;
+      this.response = new Response();
+      this.root = newModel(modelClass);
+
+      topClass = modelClass;
+      nestedClass = modelClass;
+    }
+
+    @Override
+    protected boolean descend(boolean array) {
+      if (depth == 0) {
+        rootIsObject = !array;
+        return true;
+      }
+
+      return depth == 1 && rootIsObject && array && "entry".equals(key);
+    }
+
+    @Override
+    protected void ascend() {
+    }
+
+    @Override
+    protected void key(String key) {
+      this.key = key;
+
+      if (depth == 1 && key.equals("entry")) {
+        hasEntry = true;
+      }
+    }
+
+    @Override
+    protected void value(Object value) {
+      if (depth == 1 && rootIsObject) {
+        if (!key.equals("entry")) {
+          root.put(key, value);
+        } else if (!version0p9 && value instanceof Model) {
+          response.getEntries().add((Model) value);
+        }
+      } else if (depth == 1) {
+        if (value instanceof Model) {
+          response.getEntries().add((Model) value);
+        }
+      } else if (depth == 2) {
+        if (version0p9 && value instanceof Map) {
+          value = unwrap((Map) value);
+        }
+        if (value instanceof Model) {
+          response.getEntries().add((Model) value);
+        }
+      }
+    }
+
+    Response getResponse() {
+      if (!rootIsObject) {
+        return response;
+      }
+
+      if (root.containsKey("startIndex")) {
+        response.setStartIndex(root.get("startIndex"));
+      }
+      if (root.containsKey("totalResults")) {
+        response.setTotalResults(root.get("totalResults"));
+      }
+
+      if (version0p9) {
+        if (root.containsKey("itemsPerPage")) {
+          response.setItemsPerPage(root.get("itemsPerPage"));
+        }
+        if (root.containsKey("statusLink")) {
+          response.setStatusLink(root.get("statusLink"));
+        }
+        if (root.containsKey("isFiltered")) {
+          response.setIsFiltered(root.get("isFiltered"));
+        }
+
+        if (root.containsKey("person")) {
+          // A top-level person takes precedence over any entries read
+          response.getEntries().clear();
+          response.getEntries().add((Model) root.get("person"));
+        } else if (hasEntry) {
+          // Entries were added as they were read
+        } else if (root.containsKey("album")) {
+          response.getEntries().add((Model) root.get("album"));
+        } else if (root.containsKey("mediaItem")) {
+          response.getEntries().add((Model) root.get("mediaItem"));
+        } else {
+          response.getEntries().add(root);
+        }
+      }
+
+      return response;
+    }
+
+    private Object unwrap(Map entry) {
+      if (entry.containsKey("person")) {
+        return entry.get("person");
+      } else if (entry.containsKey("activity")) {
+        return entry.get("activity");
+      } else if (entry.containsKey("album")) {
+        return entry.get("album");
+      } else if (entry.containsKey("mediaItem")) {
+        return entry.get("mediaItem");
+      }
+
+      return entry;
+    }
+  }
+
+  /**
+   * Handler for RPC responses: an array of objects, each holding the id of
+   * the original request and its data, optionally wrapping a "list" array.
+   */
+  private static class RpcHandler extends Handler {
+
+    private final Map<String, Class<? extends Model>> modelClasses;
+    private final Map<String, Response> responses;
+
+    private boolean rootIsArray;
+    private String key;
+
+    private Response response;
+    private String id;
+    private boolean hasId;
+    private Model data;
+    private boolean hasList;
+    private boolean needsClone;
+
+    RpcHandler(Map<String, Class<? extends Model>> modelClasses) {
+      this.modelClasses = modelClasses;
+      this.responses = new HashMap<String, Response>();
+    }
+
+    @Override
+    protected boolean descend(boolean array) {
+      topClass = Model.class;
+
+      if (depth == 0) {
+        rootIsArray = array;
+        return array;
+      } else if (depth == 1 && !array) {
+        response = new Response();
+        id = null;
+        hasId = false;
+        data = null;
+        hasList = false;
+        needsClone = false;
+        return true;
+      } else if (depth == 2 && !array && "data".equals(key)) {
+        data = new Model();
+        return true;
+      } else if (depth == 3 && array && "list".equals(key)) {
+        return true;
+      } else if (depth == 4 && hasId && modelClasses.get(id) != null) {
+        // Create entries as the requested model class right away
+        topClass = modelClasses.get(id);
+      }
+
+      return false;
+    }
+
+    @Override
+    protected void ascend() {
+      if (depth == 1) {
+        Class<? extends Model> modelClass = modelClasses.get(id);
+
+        if (data != null) {
+          if (data.containsKey("startIndex")) {
+            response.setStartIndex(data.get("startIndex"));
+          }
+          if (data.containsKey("totalResults")) {
+            response.setTotalResults(data.get("totalResults"));
+          }
+          if (!hasList) {
+            response.getEntries().add(modelClass == null ? data :
+                JsonParser.cloneModelObject(data, modelClass));
+          }
+        }
+
+        if (needsClone && modelClass != null) {
+          List<Model> entries = response.getEntries();
+          for (int i = 0; i < entries.size(); i++) {
+            entries.set(i, JsonParser.cloneModelObject(entries.get(i),
+                modelClass));
+          }
+        }
+
+        responses.put(id, response);
+      }
+    }
+
+    @Override
+    protected void key(String key) {
+      this.key = key;
+
+      if (depth == 3 && key.equals("list")) {
+        hasList = true;
+      }
+    }
+
+    @Override
+    protected void value(Object value) {
+      if (depth == 2 && key.equals("id")) {
+        id = value == null ? null : value.toString();
+        hasId = true;
+      } else if (depth == 3 && !key.equals("list")) {
+        data.put(key, value);
+      } else if (depth == 4 && value instanceof Model) {
+        if (!hasId || modelClasses.get(id) == null) {
+          needsClone = true;
+        }
+
+        response.getEntries().add((Model) value);
+      }
+    }
+
+    Map<String, Response> getResponses() {
+      if (!rootIsArray) {
+        return null;
+      }
+
+      return responses;
+    }
+  }
+
+  private static Model newModel(Class<? extends Model> modelClass) {
+    try {
+      return modelClass.newInstance();
+    } catch (InstantiationException e) {
+      return new Model();
+    } catch (IllegalAccessException e) {
+      return new Model();
+    }
+  }
+}
@@ -19,10 +19,144 @@ import org.opensocial.Request;
 import org.opensocial.Response;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-public class Provider implements Serializable {
+/**
+ * Describes an OpenSocial container: its endpoints, protocol version and
+ * the limits and options which {@link org.opensocial.Client} honours when
+ * sending requests to it. The subclasses in this package are preconfigured
+ * for popular containers.
+ * <p>
+ * A Provider is mutable until it is made immutable, either through
+ * {@link Builder#build()} or {@link #makeImmutable()}; afterwards each setter
+ * throws an {@link IllegalStateException}. Immutable Providers which have
+ * been safely published, see {@link #makeImmutable()}, can be shared by any
+ * number of threads and {@link org.opensocial.Client}s. Typical usage:
+ * <pre>
+ *   Provider provider = new Provider.Builder(new OrkutProvider())
+ *       .setMaxRpcBatchSize(20)
+ *       .build();
+ * </pre>
+ */
+public class Provider implements Serializable, Cloneable {
+
+  /**
+   * Configures a {@link Provider}, starting either from scratch or from a
+   * copy of another one, e.g. one of the preconfigured subclasses, and makes
+   * it immutable once built. The provider's preRequest and postRequest hooks
+   * are kept. A Builder is not thread-safe and can build a single Provider
+   * only.
+   */
+  public static class Builder {
+
+    private Provider provider;
+
+    /**
+     * Creates a new {@link Builder} for a {@link Provider} without any
+     * endpoints set.
+     */
+    public Builder() {
+      this(new Provider());
+    }
+
+    /**
+     * Creates a new {@link Builder} which configures and builds a copy of the
+     * passed {@link Provider}, e.g. a new {@link OrkutProvider}; the passed
+     * Provider itself is left unchanged.
+     *
+     * @param provider Provider to start from
+     */
+    public Builder(Provider provider) {
+      this.provider = provider.copy();
+    }
+
+    public Builder setName(String name) {
+      getProvider().setName(name);
+      return this;
+    }
+
+    public Builder setVersion(String version) {
+      getProvider().setVersion(version);
+      return this;
+    }
+
+    public Builder setContentType(String contentType) {
+      getProvider().setContentType(contentType);
+      return this;
+    }
+
+    public Builder setRpcEndpoint(String rpcEndpoint) {
+      getProvider().setRpcEndpoint(rpcEndpoint);
+      return this;
+    }
+
+    public Builder setRestEndpoint(String restEndpoint) {
+      getProvider().setRestEndpoint(restEndpoint);
+      return this;
+    }
+
+    public Builder setAuthorizeUrl(String authorizeUrl) {
+      getProvider().setAuthorizeUrl(authorizeUrl);
+      return this;
+    }
+
+    public Builder setAccessTokenUrl(String accessTokenUrl) {
+      getProvider().setAccessTokenUrl(accessTokenUrl);
+      return this;
+    }
+
+    public Builder setRequestTokenUrl(String requestTokenUrl) {
+      getProvider().setRequestTokenUrl(requestTokenUrl);
+      return this;
+    }
+
+    public Builder addRequestTokenParameter(String key, String value) {
+      getProvider().addRequestTokenParameter(key, value);
+      return this;
+    }
+
+    public Builder setSignBodyHash(boolean signBodyHash) {
+      getProvider().setSignBodyHash(signBodyHash);
+      return this;
+    }
+
+    /**
+     * @see Provider#setMaxRpcBatchSize(int)
+     */
+    public Builder setMaxRpcBatchSize(int maxRpcBatchSize) {
+      getProvider().setMaxRpcBatchSize(maxRpcBatchSize);
+      return this;
+    }
+
+    /**
+     * @see Provider#setMaxRpcPayloadSize(int)
+     */
+    public Builder setMaxRpcPayloadSize(int maxRpcPayloadSize) {
+      getProvider().setMaxRpcPayloadSize(maxRpcPayloadSize);
+      return this;
+    }
+
+    /**
+     * Returns the configured {@link Provider}, which is now immutable.
+     */
+    public Provider build() {
+      Provider built = getProvider();
+      built.makeImmutable();
+      provider = null;
+
+      return built;
+    }
+
+    private Provider getProvider() {
+      if (provider == null) {
+        throw new IllegalStateException("Provider has already been built");
+      }
+
+      return provider;
+    }
+  }
 
   private String name;
   private String version;
@@ -34,6 +168,9 @@ public class Provider implements Serializable {
   private String requestTokenUrl;
   private Map<String, String> requestTokenParameters;
   private boolean signBodyHash = true;
+  private int maxRpcBatchSize;
+  private int maxRpcPayloadSize;
+  private volatile boolean immutable;
 
   public String getName() {
     return name;
@@ -83,39 +220,64 @@ public class Provider implements Serializable {
     return signBodyHash;
   }
 
+  /**
+   * Returns the maximum number of requests sent in a single RPC batch, or 0
+   * if batches are not limited by request count.
+   */
+  public int getMaxRpcBatchSize() {
+    return maxRpcBatchSize;
+  }
+
+  /**
+   * Returns the maximum size in bytes of a single RPC batch payload, or 0 if
+   * batches are not limited by payload size.
+   */
+  public int getMaxRpcPayloadSize() {
+    return maxRpcPayloadSize;
+  }
+
   public void setName(String name) {
+    checkMutable();
     this.name = name;
   }
 
   public void setVersion(String version) {
+    checkMutable();
     this.version = version;
   }
 
   public void setContentType(String contentType) {
+    checkMutable();
     this.contentType = contentType;
   }
 
   public void setRpcEndpoint(String rpcEndpoint) {
+    checkMutable();
     this.rpcEndpoint = rpcEndpoint;
   }
 
   public void setRestEndpoint(String restEndpoint) {
+    checkMutable();
     this.restEndpoint = restEndpoint;
   }
 
   public void setAuthorizeUrl(String authorizeUrl) {
+    checkMutable();
     this.authorizeUrl = authorizeUrl;
   }
 
   public void setAccessTokenUrl(String accessTokenUrl) {
+    checkMutable();
     this.accessTokenUrl = accessTokenUrl;
   }
 
   public void setRequestTokenUrl(String requestTokenUrl) {
+    checkMutable();
     this.requestTokenUrl = requestTokenUrl;
   }
 
   public void addRequestTokenParameter(String key, String value) {
+    checkMutable();
     if (requestTokenParameters == null) {
       requestTokenParameters = new HashMap<String, String>();
     }
@@ -125,13 +287,91 @@ public class Provider implements Serializable {
 
   public void setRequestTokenParameters(
       Map<String, String> requestTokenParameters) {
+    checkMutable();
     this.requestTokenParameters = requestTokenParameters;
   }
 
   public void setSignBodyHash(boolean signBodyHash) {
+    checkMutable();
     this.signBodyHash = signBodyHash;
   }
 
+  /**
+   * Sets the maximum number of requests sent in a single RPC batch; larger
+   * request maps are split into several batches which are sent concurrently.
+   *
+   * @param maxRpcBatchSize maximum request count per batch, or 0 for no limit
+   */
+  public void setMaxRpcBatchSize(int maxRpcBatchSize) {
+    checkMutable();
+    this.maxRpcBatchSize = maxRpcBatchSize;
+  }
+
+  /**
+   * Sets the maximum size in bytes of a single RPC batch payload; larger
+   * request maps are split into several batches which are sent concurrently.
+   * A single request larger than this limit is still sent on its own.
+   *
+   * @param maxRpcPayloadSize maximum payload size per batch in bytes, or 0
+   *                          for no limit
+   */
+  public void setMaxRpcPayloadSize(int maxRpcPayloadSize) {
+    checkMutable();
+    this.maxRpcPayloadSize = maxRpcPayloadSize;
+  }
+
+  /**
+   * Returns true if this Provider's configuration can no longer be changed.
+   */
+  public boolean isImmutable() {
+    return immutable;
+  }
+
+  /**
+   * Makes this Provider immutable; afterwards each setter throws an
+   * {@link IllegalStateException} and the request token parameters can no
+   * longer be modified. This doesn't publish the configuration to other
+   * threads by itself: a Provider must still be handed to them safely, e.g.
+   * through a final or volatile field or a concurrent collection, as a
+   * {@link org.opensocial.Client} does with the copy it keeps in a final
+   * field.
+   */
+  public void makeImmutable() {
+    if (requestTokenParameters != null) {
+      requestTokenParameters = Collections.unmodifiableMap(
+          new HashMap<String, String>(requestTokenParameters));
+    }
+
+    immutable = true;
+  }
+
+  /**
+   * Returns a mutable copy of this Provider, of the same class and with its
+   * own request token parameters.
+   */
+  private Provider copy() {
+    Provider copy;
+    try {
+      copy = (Provider) clone();
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+
+    if (requestTokenParameters != null) {
+      copy.requestTokenParameters =
+        new HashMap<String, String>(requestTokenParameters);
+    }
+    copy.immutable = false;
+
+    return copy;
+  }
+
+  private void checkMutable() {
+    if (immutable) {
+      throw new IllegalStateException("Provider " + name + " is immutable");
+    }
+  }
+
   public void preRequest(Request request) {}
 
   public void postRequest(Request request, Response response) {}
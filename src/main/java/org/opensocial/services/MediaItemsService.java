@@ -19,11 +19,9 @@ import org.opensocial.Request;
 import org.opensocial.RequestException;
 import org.opensocial.models.MediaItem;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * OpenSocial API class for media item requests; contains static methods for
@@ -130,8 +128,8 @@ public class MediaItemsService extends Service {
    *
    * @throws RequestException if the passed MediaItem object does not have its
    *                          album_id or mime_type properties set
-   * @throws IOException      if an I/O error occurs while reading the passed
-   *                          file
+   * @throws IOException      if the passed file does not exist or cannot be
+   *                          read
    */
   public static Request uploadImage(MediaItem item, File content) throws
       RequestException, IOException {
@@ -159,8 +157,8 @@ public class MediaItemsService extends Service {
    *
    * @throws RequestException if the passed MediaItem object does not have its
    *                          album_id or mime_type properties set
-   * @throws IOException      if an I/O error occurs while reading the passed
-   *                          file
+   * @throws IOException      if the passed file does not exist or cannot be
+   *                          read
    */
   public static Request uploadVideo(MediaItem item, File content) throws
       RequestException, IOException {
@@ -203,41 +201,22 @@ public class MediaItemsService extends Service {
           "mime_type property set");
     }
 
+    if (!content.isFile() || !content.canRead()) {
+      throw new FileNotFoundException(content.getPath());
+    }
+
     Request request = new Request(restTemplate, "mediaItems.create", "POST");
     request.addComponent(Request.ALBUM_ID, item.getAlbumId());
     request.setGroupId(SELF);
     request.setGuid(ME);
 
-    byte[] bytes = getBytes(content);
-    if (bytes != null) {
-      request.setCustomPayload(bytes);
-      request.setContentType(item.getMimeType());
-    }
+    // Streamed from the file when the request is sent
+    request.setCustomPayload(content);
+    request.setContentType(item.getMimeType());
 
     return request;
   }
 
-  private static byte[] getBytes(File file) throws IOException {
-    byte[] buffer = new byte[1024];
-    InputStream in = new FileInputStream(file);
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    while(true) {
-      int read = in.read(buffer);
-      if (read <= 0) {
-        break;
-      }
-
-      out.write(buffer, 0, read);
-    }
-
-    byte[] bytes = out.toByteArray();
-    out.close();
-    in.close();
-
-    return bytes;
-  }
-
   /**
    * Returns a new Request instance which, when submitted, updates an existing
    * media item contained within the specified viewer album.
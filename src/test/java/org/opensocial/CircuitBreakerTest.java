@@ -0,0 +1,182 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.opensocial.CircuitBreaker.State;
+import org.opensocial.http.HttpResponseMessage;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CircuitBreakerTest {
+
+  private static final String RPC = "http://example.org/rpc";
+  private static final String REST = "http://example.org/rest/";
+
+  private static class RecordingListener implements CircuitBreaker.Listener {
+
+    final List<String> transitions = new ArrayList<String>();
+
+    public synchronized void onStateChange(String endpoint, State from,
+        State to) {
+      transitions.add(endpoint + " " + from + "->" + to);
+    }
+  }
+
+  private static HttpResponseMessage response(int statusCode)
+      throws IOException {
+    return new HttpResponseMessage("GET", new URL(RPC), statusCode);
+  }
+
+  private static void call(CircuitBreaker breaker, String endpoint,
+      HttpResponseMessage response, long elapsed) throws IOException {
+    long token = breaker.acquire(endpoint);
+    breaker.record(endpoint, token, response, elapsed);
+  }
+
+  @Test
+  public void rejectsInvalidArguments() {
+    double[] thresholds = { 0, -0.5, 1.5, Double.NaN };
+    for (double threshold : thresholds) {
+      try {
+        new CircuitBreaker(threshold, 1, 1000, 4, 4, 60000, 1);
+        fail("failure rate threshold " + threshold + " accepted");
+      } catch (IllegalArgumentException e) {
+      }
+      try {
+        new CircuitBreaker(0.5, threshold, 1000, 4, 4, 60000, 1);
+        fail("slow call rate threshold " + threshold + " accepted");
+      } catch (IllegalArgumentException e) {
+      }
+    }
+    try {
+      new CircuitBreaker(0.5, 1, -1, 4, 4, 60000, 1);
+      fail("negative slow call duration accepted");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      new CircuitBreaker(0.5, 1, 1000, 4, 4, -1, 1);
+      fail("negative open duration accepted");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void opensOnFailureRate() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1, 1000, 4, 4, 60000, 1);
+    RecordingListener listener = new RecordingListener();
+    breaker.addListener(listener);
+
+    call(breaker, RPC, response(200), 0);
+    call(breaker, RPC, null, 0);
+    call(breaker, RPC, response(200), 0);
+    assertEquals(State.CLOSED, breaker.getState(RPC));
+
+    call(breaker, RPC, response(503), 0);
+    assertEquals(State.OPEN, breaker.getState(RPC));
+    assertEquals(State.CLOSED, breaker.getState(REST));
+
+    try {
+      breaker.acquire(RPC);
+      fail();
+    } catch (CircuitOpenException e) {
+      assertEquals(RPC, e.getEndpoint());
+      assertTrue(e.getRetryAfter() > 0);
+    }
+
+    // Each endpoint has its own circuit
+    call(breaker, REST, response(200), 0);
+
+    assertEquals(1, listener.transitions.size());
+    assertEquals(RPC + " CLOSED->OPEN", listener.transitions.get(0));
+  }
+
+  @Test
+  public void opensOnSlowCallRate() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 0.5, 10, 4, 2, 60000, 1);
+
+    call(breaker, RPC, response(200), 5000000);
+    assertEquals(State.CLOSED, breaker.getState(RPC));
+
+    call(breaker, RPC, response(200), 20000000);
+    assertEquals(State.OPEN, breaker.getState(RPC));
+  }
+
+  @Test
+  public void windowForgetsOldCalls() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1, 1000, 4, 4, 60000, 1);
+
+    call(breaker, RPC, null, 0);
+    for (int i = 0; i < 10; i++) {
+      call(breaker, RPC, response(200), 0);
+    }
+    call(breaker, RPC, null, 0);
+    assertEquals(State.CLOSED, breaker.getState(RPC));
+  }
+
+  @Test
+  public void halfOpenProbes() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1, 1000, 2, 2, 0, 2);
+    RecordingListener listener = new RecordingListener();
+    breaker.addListener(listener);
+
+    call(breaker, RPC, null, 0);
+    call(breaker, RPC, null, 0);
+
+    // Failed probe opens the circuit again
+    call(breaker, RPC, response(502), 0);
+
+    long first = breaker.acquire(RPC);
+    long second = breaker.acquire(RPC);
+    try {
+      breaker.acquire(RPC);
+      fail();
+    } catch (CircuitOpenException e) {
+      assertEquals(0, e.getRetryAfter());
+    }
+
+    breaker.record(RPC, first, response(200), 0);
+    assertEquals(State.HALF_OPEN, breaker.getState(RPC));
+    breaker.record(RPC, second, response(200), 0);
+    assertEquals(State.CLOSED, breaker.getState(RPC));
+
+    assertEquals(Arrays.asList(RPC + " CLOSED->OPEN",
+        RPC + " OPEN->HALF_OPEN", RPC + " HALF_OPEN->OPEN",
+        RPC + " OPEN->HALF_OPEN", RPC + " HALF_OPEN->CLOSED"),
+        listener.transitions);
+  }
+
+  @Test
+  public void ignoresCallsFromEarlierStates() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1, 1000, 2, 2, 60000, 1);
+
+    long late = breaker.acquire(RPC);
+    call(breaker, RPC, null, 0);
+    call(breaker, RPC, null, 0);
+    assertEquals(State.OPEN, breaker.getState(RPC));
+
+    breaker.record(RPC, late, response(200), 0);
+    assertEquals(State.OPEN, breaker.getState(RPC));
+  }
+}
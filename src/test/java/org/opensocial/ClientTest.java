@@ -20,26 +20,58 @@ import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.or;
 import static org.junit.Assert.*;
 
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
 import net.oauth.http.HttpMessage;
+import net.oauth.signature.OAuthSignatureMethod;
+
+import org.apache.commons.codec.binary.Base64;
 
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 import org.easymock.IMocksControl;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.junit.Test;
 import org.opensocial.auth.AuthScheme;
 import org.opensocial.auth.OAuth2LeggedScheme;
+import org.opensocial.cache.PersonCache;
 import org.opensocial.http.HttpClient;
 import org.opensocial.http.HttpResponseMessage;
+import org.opensocial.models.Model;
+import org.opensocial.parsers.JsonParser;
+import org.opensocial.parsers.Parser;
+import org.opensocial.providers.MySpaceProvider;
 import org.opensocial.providers.OrkutProvider;
 import org.opensocial.providers.Provider;
 import org.opensocial.services.PeopleService;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ClientTest {
 
@@ -182,4 +214,1238 @@ public class ClientTest {
 
     mockControl.verify();
   }
+
+  @Test
+  public void testSendAsync() throws Exception {
+    IMocksControl mockControl = EasyMock.createControl();
+
+    HttpClient httpClient = mockControl.createMock(HttpClient.class);
+    AuthScheme authScheme = mockControl.createMock(AuthScheme.class);
+
+    OrkutProvider provider = new OrkutProvider();
+
+    Client client = new Client(provider, authScheme, httpClient);
+
+    HttpResponseMessage httpResponseMessage = new HttpResponseMessage("POST",
+        new URL(provider.getRpcEndpoint()), 200, stringToInputStream(
+            "[{\"id\":\"key\",\"data\":{\"id\":\"" + VIEWER_ID +
+            "\"}}]"));
+
+    EasyMock.expect(authScheme.getHttpMessage(eq(provider), eq("POST"),
+        isA(String.class), isA(Map.class), isA(byte[].class)))
+        .andReturn(null);
+    EasyMock.expect(httpClient.execute((HttpMessage) eq(null))).andReturn(
+        httpResponseMessage);
+
+    mockControl.replay();
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<Response> callbackResponse =
+      new AtomicReference<Response>();
+
+    RequestFuture<Response> future = client.sendAsync(
+        PeopleService.getViewer(), new RequestCallback<Response>() {
+          public void onSuccess(Response result) {
+            callbackResponse.set(result);
+            latch.countDown();
+          }
+
+          public void onFailure(Throwable cause) {
+            latch.countDown();
+          }
+        });
+
+    Response response = future.getResult();
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertSame(response, callbackResponse.get());
+    assertEquals(VIEWER_ID, response.getEntry().getField("id"));
+
+    mockControl.verify();
+  }
+
+  @Test
+  public void testSendAsyncFailure() throws Exception {
+    Client client = new Client(new Provider(), new OAuth2LeggedScheme(
+        CONSUMER_KEY, CONSUMER_SECRET, VIEWER_ID));
+    client.setExecutor(new Executor() {
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+
+    final AtomicReference<Throwable> failure =
+      new AtomicReference<Throwable>();
+
+    RequestFuture<Response> future = client.sendAsync(
+        PeopleService.getViewer(), new RequestCallback<Response>() {
+          public void onSuccess(Response result) {
+          }
+
+          public void onFailure(Throwable cause) {
+            failure.set(cause);
+          }
+        });
+
+    assertTrue(future.isDone());
+    assertTrue(failure.get() instanceof RequestException);
+
+    try {
+      future.getResult();
+      fail("Expected RequestException");
+    } catch (RequestException e) {
+      // Expected: provider has no endpoints set
+    }
+  }
+
+  @Test
+  public void testSendRestConcurrently() throws Exception {
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        int current = active.incrementAndGet();
+        synchronized (maxActive) {
+          maxActive.set(Math.max(maxActive.get(), current));
+        }
+
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted");
+        } finally {
+          active.decrementAndGet();
+        }
+
+        String path = message.url.getPath();
+        String guid = path.substring(path.lastIndexOf('/') + 1);
+
+        return new HttpResponseMessage(message.method, message.url, 200,
+            stringToInputStream("{\"person\":{\"id\":\"" + guid + "\"}}"));
+      }
+    };
+
+    Client client = new Client(new MySpaceProvider(), new StubAuthScheme(),
+        httpClient);
+    client.setRestParallelism(3);
+
+    Map<String, Request> requests = new HashMap<String, Request>();
+    for (int i = 0; i < 8; i++) {
+      Request request = PeopleService.getUser("@me");
+      request.setPId("user" + i);
+      requests.put("request" + i, request);
+    }
+
+    Map<String, Response> responses = client.send(requests);
+
+    assertEquals(8, responses.size());
+    for (int i = 0; i < 8; i++) {
+      assertEquals("user" + i,
+          responses.get("request" + i).getEntry().getField("id"));
+    }
+    assertTrue(maxActive.get() > 1);
+    assertTrue(maxActive.get() <= 3);
+  }
+
+  @Test(expected = IOException.class)
+  public void testSendRestConcurrentlyFailure() throws Exception {
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        if (message.url.getPath().endsWith("user3")) {
+          throw new IOException("Connection reset");
+        }
+
+        return new HttpResponseMessage(message.method, message.url, 200,
+            stringToInputStream("{}"));
+      }
+    };
+
+    Client client = new Client(new MySpaceProvider(), new StubAuthScheme(),
+        httpClient);
+    client.setRestParallelism(4);
+
+    Map<String, Request> requests = new HashMap<String, Request>();
+    for (int i = 0; i < 6; i++) {
+      Request request = PeopleService.getUser("@me");
+      request.setPId("user" + i);
+      requests.put("request" + i, request);
+    }
+
+    client.send(requests);
+  }
+
+  @Test
+  public void testSendRestConcurrentlyStopsAfterFailure() throws Exception {
+    final AtomicInteger executions = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        executions.incrementAndGet();
+        if (message.url.getPath().endsWith("user0")) {
+          throw new IOException("Connection reset");
+        }
+
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+
+        return new HttpResponseMessage(message.method, message.url, 200,
+            stringToInputStream("{}"));
+      }
+    };
+
+    Client client = new Client(new MySpaceProvider(), new StubAuthScheme(),
+        httpClient);
+    client.setRestParallelism(2);
+
+    Map<String, Request> requests = new LinkedHashMap<String, Request>();
+    for (int i = 0; i < 10; i++) {
+      Request request = PeopleService.getUser("@me");
+      request.setPId("user" + i);
+      requests.put("request" + i, request);
+    }
+
+    try {
+      client.send(requests);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Connection reset", e.getMessage());
+    }
+
+    // Only the requests started before the first one failed were sent
+    assertTrue(executions.get() <= 3);
+  }
+
+  @Test(timeout = 10000)
+  public void testSendRestConcurrentlyOnBusyExecutor() throws Exception {
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        String path = message.url.getPath();
+        String guid = path.substring(path.lastIndexOf('/') + 1);
+
+        return new HttpResponseMessage(message.method, message.url, 200,
+            stringToInputStream("{\"person\":{\"id\":\"" + guid + "\"}}"));
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      Client client = new Client(new MySpaceProvider(), new StubAuthScheme(),
+          httpClient);
+      client.setExecutor(executor);
+      client.setRestParallelism(4);
+
+      Map<String, Request> requests = new HashMap<String, Request>();
+      for (int i = 0; i < 6; i++) {
+        Request request = PeopleService.getUser("@me");
+        request.setPId("user" + i);
+        requests.put("request" + i, request);
+      }
+
+      // The only thread of the executor waits for the concurrent requests,
+      // so it has to send them itself
+      Map<String, Response> responses = client.sendAsync(requests).get();
+
+      assertEquals(6, responses.size());
+      for (int i = 0; i < 6; i++) {
+        assertEquals("user" + i,
+            responses.get("request" + i).getEntry().getField("id"));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  static class StubAuthScheme implements AuthScheme {
+    public HttpMessage getHttpMessage(Provider provider, String method,
+        String url, Map<String, String> headers, byte[] body)
+        throws RequestException, IOException {
+      HttpMessage message = new HttpMessage(method, new URL(url),
+          body == null ? null : new ByteArrayInputStream(body));
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        message.headers.add(header);
+      }
+
+      return message;
+    }
+  }
+
+  abstract static class StubHttpClient implements HttpClient {
+    public HttpResponseMessage execute(HttpMessage message,
+        Map<String, Object> parameters) throws IOException {
+      return execute(message);
+    }
+  }
+
+  @Test
+  public void testSplitRpcBatchByCount() throws Exception {
+    EchoRpcHttpClient httpClient = new EchoRpcHttpClient();
+    OrkutProvider provider = new OrkutProvider();
+    provider.setMaxRpcBatchSize(3);
+
+    Client client = new Client(provider, new StubAuthScheme(), httpClient);
+
+    Map<String, Request> requests = new HashMap<String, Request>();
+    for (int i = 0; i < 7; i++) {
+      requests.put("request" + i, PeopleService.getUser("user" + i));
+    }
+
+    Map<String, Response> responses = client.send(requests);
+
+    assertEquals(7, responses.size());
+    for (int i = 0; i < 7; i++) {
+      assertEquals("user" + i,
+          responses.get("request" + i).getEntry().getField("id"));
+    }
+    assertEquals(3, httpClient.executions.get());
+    for (int size : httpClient.batchSizes) {
+      assertTrue(size <= 3);
+    }
+  }
+
+  @Test
+  public void testSplitRpcBatchByPayloadSize() throws Exception {
+    OrkutProvider provider = new OrkutProvider();
+    Client client = new Client(provider, new StubAuthScheme(),
+        new EchoRpcHttpClient());
+
+    Map<String, Request> requests = new HashMap<String, Request>();
+    for (int i = 0; i < 20; i++) {
+      requests.put("request" + i, PeopleService.getUser("user" + i));
+    }
+
+    int total = client.buildRpcPayload(requests).length;
+    provider.setMaxRpcPayloadSize(total / 4);
+
+    List<Map<String, Request>> batches = client.splitRpcBatch(requests);
+    assertTrue(batches.size() >= 4);
+
+    int count = 0;
+    for (Map<String, Request> batch : batches) {
+      assertTrue(client.buildRpcPayload(batch).length <= total / 4);
+      count += batch.size();
+    }
+    assertEquals(20, count);
+  }
+
+  @Test
+  public void testFetchAllRpc() throws Exception {
+    PagedRpcHttpClient httpClient = new PagedRpcHttpClient(95);
+    Client client = new Client(new OrkutProvider(), new StubAuthScheme(),
+        httpClient);
+
+    Response response = client.fetchAll(PeopleService.getFriends(), 10);
+
+    assertEquals(95L, response.getTotalResults().longValue());
+    assertEquals(95, response.getEntries().size());
+    for (int i = 0; i < 95; i++) {
+      assertEquals("" + i, response.getEntries().get(i).getField("id"));
+    }
+    // First page, then all remaining pages in a single batch
+    assertEquals(2, httpClient.executions.get());
+    assertEquals(10, httpClient.startIndexes.size());
+  }
+
+  @Test
+  public void testFetchAllCappedPagesWithoutTotal() throws Exception {
+    PagedRpcHttpClient httpClient = new PagedRpcHttpClient(23);
+    httpClient.maxCount = 5;
+    httpClient.reportTotal = false;
+    Client client = new Client(new OrkutProvider(), new StubAuthScheme(),
+        httpClient);
+
+    Response response = client.fetchAll(PeopleService.getFriends(), 10);
+
+    assertNull(response.getTotalResults());
+    assertEquals(23, response.getEntries().size());
+    for (int i = 0; i < 23; i++) {
+      assertEquals("" + i, response.getEntries().get(i).getField("id"));
+    }
+    // Pages of 5 until the short one starting at 20
+    assertEquals(5, httpClient.executions.get());
+  }
+
+  @Test
+  public void testFetchAllRestConcurrently() throws Exception {
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        int current = active.incrementAndGet();
+        synchronized (maxActive) {
+          maxActive.set(Math.max(maxActive.get(), current));
+        }
+
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted");
+        } finally {
+          active.decrementAndGet();
+        }
+
+        int startIndex = 0;
+        int count = 0;
+        for (String pair : message.url.getQuery().split("&")) {
+          String[] parts = pair.split("=");
+          if (parts[0].equals("startIndex")) {
+            startIndex = Integer.parseInt(parts[1]);
+          } else if (parts[0].equals("count")) {
+            count = Integer.parseInt(parts[1]);
+          }
+        }
+
+        // The container caps pages at 5 entries
+        StringBuilder entries = new StringBuilder();
+        for (int i = startIndex; i < Math.min(startIndex + Math.min(count, 5),
+            42); i++) {
+          if (entries.length() > 0) {
+            entries.append(",");
+          }
+          entries.append("{\"person\":{\"id\":\"" + i + "\"}}");
+        }
+
+        return new HttpResponseMessage(message.method, message.url, 200,
+            stringToInputStream("{\"totalResults\":42,\"entry\":[" +
+            entries + "]}"));
+      }
+    };
+
+    Client client = new Client(new MySpaceProvider(), new StubAuthScheme(),
+        httpClient);
+
+    Response response = client.fetchAll(PeopleService.getFriends(), 10, 4);
+
+    assertEquals(42, response.getEntries().size());
+    for (int i = 0; i < 42; i++) {
+      assertEquals("" + i, response.getEntries().get(i).getField("id"));
+    }
+    assertTrue(maxActive.get() > 1);
+    assertTrue(maxActive.get() <= 4);
+  }
+
+  @Test
+  public void testStringParser() throws Exception {
+    final List<String> parsed = new ArrayList<String>();
+
+    Client client = new Client(new OrkutProvider(), new StubAuthScheme(),
+        new EchoRpcHttpClient());
+    client.setParser(new Parser() {
+      public Response getResponseObject(String in,
+          Class<? extends Model> modelClass, String version) {
+        parsed.add(in);
+        return new JsonParser().getResponseObject(in, modelClass, version);
+      }
+
+      public Map<String, Response> getResponseMap(String in,
+          Map<String, Class<? extends Model>> modelClasses, String version) {
+        parsed.add(in);
+        return new JsonParser().getResponseMap(in, modelClasses, version);
+      }
+    });
+
+    assertEquals("a", client.send(PeopleService.getUser("a")).getEntry()
+        .getField("id"));
+    assertEquals(1, parsed.size());
+  }
+
+  @Test
+  public void testPersonCache() throws Exception {
+    EchoRpcHttpClient httpClient = new EchoRpcHttpClient();
+    Client client = new Client(new OrkutProvider(), new StubAuthScheme(),
+        httpClient);
+    client.setPersonCache(new PersonCache(100, 0));
+
+    assertEquals("a", client.send(PeopleService.getUser("a")).getEntry()
+        .getField("id"));
+    assertEquals("a", client.send(PeopleService.getUser("a")).getEntry()
+        .getField("id"));
+    assertEquals(1, httpClient.executions.get());
+
+    // Relative IDs depend on the viewer and are never cached
+    client.send(PeopleService.getViewer());
+    client.send(PeopleService.getViewer());
+    assertEquals(3, httpClient.executions.get());
+
+    // Different fields are cached separately
+    Request request = PeopleService.getUser("a");
+    request.setFieldsParameter(new String[] {"id", "name"});
+    client.send(request);
+    assertEquals(4, httpClient.executions.get());
+
+    Map<String, Request> requests = new HashMap<String, Request>();
+    requests.put("cached", PeopleService.getUser("a"));
+    requests.put("fetched", PeopleService.getUser("b"));
+    Map<String, Response> responses = client.send(requests);
+
+    assertEquals("a", responses.get("cached").getEntry().getField("id"));
+    assertEquals("b", responses.get("fetched").getEntry().getField("id"));
+    assertEquals(5, httpClient.executions.get());
+    assertEquals(Integer.valueOf(1), httpClient.batchSizes.get(4));
+    assertEquals(2, client.getPersonCache().getStats().getHits());
+
+    // Friends' IDs may not match the IDs callers pass, so they aren't cached
+    Client friendsClient = new Client(new OrkutProvider(),
+        new StubAuthScheme(), new PagedRpcHttpClient(3));
+    friendsClient.setPersonCache(new PersonCache(100, 0));
+    Request friends = PeopleService.getFriends("a");
+    friends.setStartIndexParameter(0);
+    friends.setCountParameter(3);
+    assertEquals(3, friendsClient.send(friends).getEntries().size());
+    assertEquals(0, friendsClient.getPersonCache().getStats().getSize());
+  }
+
+  @Test
+  public void testSendDeduplicatesConcurrentGets() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final EchoRpcHttpClient echo = new EchoRpcHttpClient();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted");
+        }
+
+        return echo.execute(message);
+      }
+    };
+
+    final Client client = new Client(new OrkutProvider(),
+        new StubAuthScheme(), httpClient);
+    final Response[] responses = new Response[5];
+
+    Thread[] threads = new Thread[responses.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            responses[index] = client.send(PeopleService.getUser("a"));
+          } catch (Exception e) {
+            // Leaves the response null, failing the assertions below
+          }
+        }
+      };
+    }
+
+    threads[0].start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    for (int i = 1; i < threads.length; i++) {
+      threads[i].start();
+    }
+
+    // Wait until the other threads are blocked on the pending request
+    for (int i = 1; i < threads.length; i++) {
+      while (threads[i].getState() != Thread.State.WAITING) {
+        Thread.sleep(5);
+      }
+    }
+
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+
+    assertEquals(1, echo.executions.get());
+    for (Response response : responses) {
+      assertSame(responses[0], response);
+    }
+    assertEquals("a", responses[0].getEntry().getField("id"));
+
+    // Requests for different users or fields are not shared
+    Request other = PeopleService.getUser("a");
+    other.setFieldsParameter(new String[] {"id"});
+    assertFalse(client.buildRequestKey(PeopleService.getUser("a")).equals(
+        client.buildRequestKey(other)));
+    assertFalse(client.buildRequestKey(PeopleService.getUser("a")).equals(
+        client.buildRequestKey(PeopleService.getUser("b"))));
+  }
+
+  @Test
+  public void testBuilderIsImmutable() throws Exception {
+    Provider original = new OrkutProvider();
+    original.addRequestTokenParameter("scope", "people");
+    Client client = new Client.Builder(original,
+        new OAuth2LeggedScheme(CONSUMER_KEY, CONSUMER_SECRET, VIEWER_ID))
+        .setRpcParallelism(2)
+        .build();
+
+    assertTrue(client.isImmutable());
+    assertTrue(client.getProvider().isImmutable());
+    assertTrue(client.getProvider() instanceof OrkutProvider);
+    assertEquals("people",
+        client.getProvider().getRequestTokenParameters().get("scope"));
+
+    // The caller's Provider is copied, not frozen
+    assertFalse(original.isImmutable());
+    original.setMaxRpcBatchSize(10);
+    original.addRequestTokenParameter("scope", "activities");
+    assertEquals("people",
+        client.getProvider().getRequestTokenParameters().get("scope"));
+    assertEquals(2, client.getRpcParallelism());
+
+    try {
+      client.setRpcParallelism(3);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    try {
+      client.getProvider().setMaxRpcBatchSize(10);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    try {
+      client.getProvider().getRequestTokenParameters().put("a", "b");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+
+    Provider provider = new Provider.Builder(new OrkutProvider())
+        .setMaxRpcBatchSize(10)
+        .build();
+    assertEquals(10, provider.getMaxRpcBatchSize());
+    assertTrue(provider instanceof OrkutProvider);
+    assertTrue(provider.isImmutable());
+
+    Client shared = new Client.Builder(provider, new StubAuthScheme()).build();
+    assertSame(provider, shared.getProvider());
+  }
+
+  @Test
+  public void testWithAuthScheme() throws Exception {
+    EchoRpcHttpClient httpClient = new EchoRpcHttpClient();
+    PersonCache personCache = new PersonCache(10, 0);
+    Client client = new Client(new OrkutProvider(), new StubAuthScheme(),
+        httpClient);
+    client.setPersonCache(personCache);
+
+    AuthScheme userScheme = new StubAuthScheme();
+    Client view = client.withAuthScheme(userScheme);
+
+    assertSame(userScheme, view.getAuthScheme());
+    assertSame(client.getProvider(), view.getProvider());
+    assertSame(personCache, view.getPersonCache());
+    assertTrue(view.isImmutable());
+    assertFalse(client.isImmutable());
+
+    assertEquals("a", view.send(PeopleService.getUser("a")).getEntry()
+        .getField("id"));
+    assertEquals(1, httpClient.executions.get());
+  }
+
+  @Test
+  public void testRateLimiter() throws Exception {
+    EchoRpcHttpClient httpClient = new EchoRpcHttpClient();
+    Client client = new Client.Builder(new OrkutProvider(),
+        new StubAuthScheme())
+        .setHttpClient(httpClient)
+        .setRateLimiter(new RateLimiter(1, 1, false))
+        .build();
+
+    client.send(PeopleService.getUser("a"));
+    try {
+      client.send(PeopleService.getUser("b"));
+      fail();
+    } catch (RateLimitException e) {
+      assertTrue(e.getRetryAfter() > 0);
+    }
+
+    assertEquals(1, httpClient.executions.get());
+  }
+
+  @Test
+  public void testRetryPolicy() throws Exception {
+    final EchoRpcHttpClient echo = new EchoRpcHttpClient();
+    final AtomicInteger executions = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        if (executions.incrementAndGet() % 2 == 1) {
+          throw new IOException("Connection reset");
+        }
+
+        return echo.execute(message);
+      }
+    };
+
+    Client client = new Client.Builder(new OrkutProvider(),
+        new StubAuthScheme())
+        .setHttpClient(httpClient)
+        .setRetryPolicy(new RetryPolicy(3, 1, 5, 0.2, 10))
+        .build();
+
+    assertEquals("a", client.send(PeopleService.getUser("a")).getEntry()
+        .getField("id"));
+    assertEquals(2, executions.get());
+
+    // Requests which aren't idempotent are never repeated
+    try {
+      client.send(new Request(null, "activities.create", "POST"));
+      fail();
+    } catch (IOException e) {
+      assertEquals("Connection reset", e.getMessage());
+    }
+    assertEquals(3, executions.get());
+    assertEquals(1, client.getRetryPolicy().getStats().getRetries());
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    final AtomicInteger executions = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        executions.incrementAndGet();
+        throw new SocketTimeoutException("Read timed out");
+      }
+    };
+
+    Provider provider = new OrkutProvider();
+    Client client = new Client.Builder(provider, new StubAuthScheme())
+        .setHttpClient(httpClient)
+        .setRetryPolicy(new RetryPolicy(3, 1, 5, 0.2, 10))
+        .setCircuitBreaker(new CircuitBreaker(0.5, 1, 1000, 2, 2, 60000, 1))
+        .build();
+
+    // The circuit opens after two attempts and rejects the third one
+    try {
+      client.send(PeopleService.getUser("a"));
+      fail();
+    } catch (CircuitOpenException e) {
+    }
+    assertEquals(2, executions.get());
+    assertEquals(CircuitBreaker.State.OPEN,
+        client.getCircuitBreaker().getState(provider.getRpcEndpoint()));
+
+    try {
+      client.send(PeopleService.getUser("b"));
+      fail();
+    } catch (CircuitOpenException e) {
+      assertEquals(provider.getRpcEndpoint(), e.getEndpoint());
+    }
+    assertEquals(2, executions.get());
+  }
+
+  @Test
+  public void testCircuitBreakerIgnoresExpiredDeadlines() throws Exception {
+    final AtomicInteger executions = new AtomicInteger();
+    final AtomicInteger completions = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        executions.incrementAndGet();
+
+        // Times out after the caller's deadline, as a socket would
+        try {
+          long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+          while (System.nanoTime() < end) {
+            Thread.interrupted();
+          }
+          Thread.interrupted();
+          throw new SocketTimeoutException("Read timed out");
+        } finally {
+          completions.incrementAndGet();
+        }
+      }
+    };
+
+    Provider provider = new OrkutProvider();
+    Client client = new Client.Builder(provider, new StubAuthScheme())
+        .setHttpClient(httpClient)
+        .setCircuitBreaker(new CircuitBreaker(0.5, 1, 1000, 2, 2, 60000, 1))
+        .build();
+
+    // Requests may also expire before they are sent, which isn't counted
+    for (int i = 0; i < 20 && executions.get() < 3; i++) {
+      try {
+        client.send(PeopleService.getUser("a"), 10, TimeUnit.MILLISECONDS);
+        fail();
+      } catch (DeadlineExceededException e) {
+      }
+    }
+    assertEquals(3, executions.get());
+
+    // The outcomes are reported once the abandoned requests time out
+    for (int i = 0; i < 500 && completions.get() < executions.get(); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(executions.get(), completions.get());
+    Thread.sleep(50);
+
+    assertEquals(CircuitBreaker.State.CLOSED,
+        client.getCircuitBreaker().getState(provider.getRpcEndpoint()));
+  }
+
+  @Test
+  public void testRejectedRequestClosesBody() throws Exception {
+    final List<AtomicBoolean> closed = new ArrayList<AtomicBoolean>();
+
+    AuthScheme authScheme = new AuthScheme() {
+      public HttpMessage getHttpMessage(Provider provider, String method,
+          String url, Map<String, String> headers, byte[] body)
+          throws RequestException, IOException {
+        final AtomicBoolean bodyClosed = new AtomicBoolean();
+        closed.add(bodyClosed);
+
+        return new HttpMessage(method, new URL(url),
+            new ByteArrayInputStream(body) {
+              @Override
+              public void close() {
+                bodyClosed.set(true);
+              }
+            });
+      }
+    };
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        throw new SocketTimeoutException("Read timed out");
+      }
+    };
+
+    Client client = new Client.Builder(new OrkutProvider(), authScheme)
+        .setHttpClient(httpClient)
+        .setCircuitBreaker(new CircuitBreaker(0.5, 1, 1000, 2, 2, 60000, 1))
+        .build();
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        client.send(PeopleService.getUser("a"));
+        fail();
+      } catch (IOException e) {
+      }
+    }
+
+    // The third request is rejected by the open circuit and never sent
+    assertEquals(3, closed.size());
+    assertTrue(closed.get(2).get());
+  }
+
+  @Test
+  public void testHedgingPolicy() throws Exception {
+    final EchoRpcHttpClient echo = new EchoRpcHttpClient();
+    final AtomicInteger executions = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        if (executions.incrementAndGet() == 1) {
+          try {
+            Thread.sleep(10000);
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+
+        return echo.execute(message);
+      }
+    };
+
+    Client client = new Client.Builder(new OrkutProvider(),
+        new StubAuthScheme())
+        .setHttpClient(httpClient)
+        .setHedgingPolicy(new HedgingPolicy(10, 1))
+        .build();
+
+    assertEquals("a", client.send(PeopleService.getUser("a")).getEntry()
+        .getField("id"));
+    assertEquals(2, executions.get());
+    assertEquals(1, client.getHedgingPolicy().getHedgeWins());
+
+    // Requests which aren't idempotent are never hedged
+    client.send(new Request(null, "activities.create", "POST"));
+    assertEquals(3, executions.get());
+    assertEquals(1, client.getHedgingPolicy().getHedges());
+  }
+
+  @Test
+  public void testSendWithTimeoutThroughOtherResponseType() throws Exception {
+    final EchoRpcHttpClient echo = new EchoRpcHttpClient();
+
+    HttpClient httpClient = new HttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        return echo.execute(message);
+      }
+
+      public net.oauth.http.HttpResponseMessage execute(HttpMessage message,
+          Map<String, Object> parameters) throws IOException {
+        final HttpResponseMessage response = echo.execute(message);
+
+        // Any response type net.oauth.http.HttpClient allows
+        return new net.oauth.http.HttpResponseMessage(message.method,
+            message.url) {
+          {
+            body = response.getResponseStream();
+          }
+
+          @Override
+          public int getStatusCode() {
+            return response.getStatusCode();
+          }
+        };
+      }
+    };
+
+    Client client = new Client(new OrkutProvider(), new StubAuthScheme(),
+        httpClient);
+
+    assertEquals("a", client.send(PeopleService.getUser("a"), 5,
+        TimeUnit.SECONDS).getEntry().getField("id"));
+  }
+
+  @Test
+  public void testSendWithTimeout() throws Exception {
+    final EchoRpcHttpClient echo = new EchoRpcHttpClient();
+    final AtomicReference<Object> readTimeout = new AtomicReference<Object>();
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final AtomicInteger executions = new AtomicInteger();
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message,
+          Map<String, Object> parameters) throws IOException {
+        readTimeout.set(parameters.get(HttpClient.READ_TIMEOUT));
+        return execute(message);
+      }
+
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        // All but the first request hang
+        if (executions.incrementAndGet() > 1) {
+          try {
+            Thread.sleep(10000);
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+            throw new InterruptedIOException();
+          }
+        }
+
+        return echo.execute(message);
+      }
+    };
+
+    Client client = new Client(new OrkutProvider(), new StubAuthScheme(),
+        httpClient);
+
+    assertEquals("a", client.send(PeopleService.getUser("a"), 5,
+        TimeUnit.SECONDS).getEntry().getField("id"));
+    int timeout = (Integer) readTimeout.get();
+    assertTrue(timeout > 0 && timeout <= 5000);
+
+    long start = System.currentTimeMillis();
+    try {
+      client.send(PeopleService.getUser("b"), 100, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (DeadlineExceededException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testStageListener() throws Exception {
+    final List<StageEvent> events = new ArrayList<StageEvent>();
+    Client client = new Client.Builder(new OrkutProvider(),
+        new StubAuthScheme())
+        .setHttpClient(new EchoRpcHttpClient())
+        .setStageListener(new StageListener() {
+          public void onStage(StageEvent event) {
+            events.add(event);
+          }
+        })
+        .build();
+
+    client.send(PeopleService.getUser("a"));
+
+    assertEquals(4, events.size());
+    assertEquals(StageEvent.Stage.BUILD_PAYLOAD, events.get(0).getStage());
+    assertEquals(StageEvent.Stage.SIGN, events.get(1).getStage());
+    assertEquals(StageEvent.Stage.EXECUTE, events.get(2).getStage());
+    assertEquals(StageEvent.Stage.PARSE, events.get(3).getStage());
+
+    for (StageEvent event : events) {
+      assertSame(client.getProvider(), event.getProvider());
+      assertEquals("people.get", event.getMethod());
+      assertTrue(event.getDuration() >= 0);
+    }
+    assertTrue(events.get(0).getRequestBytes() > 0);
+    assertEquals(-1, events.get(0).getStatusCode());
+    assertEquals(200, events.get(2).getStatusCode());
+    assertTrue(events.get(2).getResponseBytes() > 0);
+  }
+
+  @Test
+  public void testDeadlineDoesNotFailDeduplicatedRequests() throws Exception {
+    final EchoRpcHttpClient echo = new EchoRpcHttpClient();
+    final AtomicInteger executions = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        // The first request hangs until cancelled
+        if (executions.incrementAndGet() == 1) {
+          started.countDown();
+          try {
+            Thread.sleep(10000);
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+
+        return echo.execute(message);
+      }
+    };
+
+    final Client client = new Client(new OrkutProvider(),
+        new StubAuthScheme(), httpClient);
+
+    final AtomicReference<Throwable> bounded =
+      new AtomicReference<Throwable>();
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          client.send(PeopleService.getUser("a"), 300, TimeUnit.MILLISECONDS);
+        } catch (Throwable t) {
+          bounded.set(t);
+        }
+      }
+    });
+    thread.start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    // Sent on its own rather than sharing the bounded request's failure
+    assertEquals("a", client.send(PeopleService.getUser("a")).getEntry()
+        .getField("id"));
+    assertEquals(2, executions.get());
+
+    thread.join(5000);
+    assertTrue(bounded.get() instanceof DeadlineExceededException);
+  }
+
+  @Test
+  public void testSharedClientStress() throws Exception {
+    final EchoRpcHttpClient echo = new EchoRpcHttpClient();
+    final AtomicInteger invalid = new AtomicInteger();
+
+    // Verifies the body hash and signature of every request before echoing
+    // it, so that signing or serialization state leaking between threads
+    // would be detected
+    HttpClient httpClient = new StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = message.getBody();
+        byte[] buffer = new byte[1024];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+          body.write(buffer, 0, n);
+        }
+        in.close();
+
+        String url = message.url.toString();
+        List<OAuth.Parameter> parameters =
+          OAuth.decodeForm(url.substring(url.indexOf('?') + 1));
+        OAuthMessage oauthMessage = new OAuthMessage(message.method,
+            url.substring(0, url.indexOf('?')), parameters);
+
+        OAuthConsumer consumer = new OAuthConsumer(null, CONSUMER_KEY,
+            CONSUMER_SECRET, null);
+        try {
+          OAuthSignatureMethod.newMethod(OAuth.HMAC_SHA1,
+              new OAuthAccessor(consumer)).validate(oauthMessage);
+
+          String bodyHash = new String(new Base64().encode(
+              MessageDigest.getInstance("SHA-1").digest(body.toByteArray())),
+              "UTF-8");
+          if (!bodyHash.equals(oauthMessage.getParameter("oauth_body_hash"))) {
+            invalid.incrementAndGet();
+          }
+        } catch (Exception e) {
+          invalid.incrementAndGet();
+        }
+
+        return echo.execute(new HttpMessage(message.method, message.url,
+            new ByteArrayInputStream(body.toByteArray())));
+      }
+    };
+
+    final Client client = new Client.Builder(new OrkutProvider(),
+        new OAuth2LeggedScheme(CONSUMER_KEY, CONSUMER_SECRET, VIEWER_ID))
+        .setHttpClient(httpClient)
+        .build();
+    final AtomicInteger mismatches = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final String prefix = "t" + t + "-";
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 100; i++) {
+              Map<String, Request> requests =
+                new HashMap<String, Request>();
+              for (int k = 0; k < 3; k++) {
+                requests.put("r" + k,
+                    PeopleService.getUser(prefix + i + "-" + k));
+              }
+
+              Map<String, Response> responses = client.send(requests);
+              for (int k = 0; k < 3; k++) {
+                if (!(prefix + i + "-" + k).equals(responses.get("r" + k)
+                    .getEntry().getField("id"))) {
+                  mismatches.incrementAndGet();
+                }
+              }
+
+              Response response =
+                client.send(PeopleService.getUser(prefix + i));
+              if (!(prefix + i).equals(response.getEntry().getField("id"))) {
+                mismatches.incrementAndGet();
+              }
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(0, failures.get());
+    assertEquals(0, mismatches.get());
+    assertEquals(0, invalid.get());
+    assertEquals(8 * 100 * 2, echo.executions.get());
+  }
+
+  /**
+   * Echoes each RPC request in the batch back with its userId as the id of
+   * the returned person.
+   */
+  static class EchoRpcHttpClient extends StubHttpClient {
+
+    final AtomicInteger executions = new AtomicInteger();
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+
+    public HttpResponseMessage execute(HttpMessage message)
+        throws IOException {
+      executions.incrementAndGet();
+
+      try {
+        List<Map> requests = (List<Map>) new JSONParser().parse(
+            new InputStreamReader(message.getBody(), "UTF-8"));
+        synchronized (batchSizes) {
+          batchSizes.add(requests.size());
+        }
+
+        JSONArray responses = new JSONArray();
+        for (Map request : requests) {
+          JSONObject data = new JSONObject();
+          data.put("id", ((Map) request.get("params")).get("userId"));
+
+          JSONObject response = new JSONObject();
+          response.put("id", request.get("id"));
+          response.put("data", data);
+          responses.add(response);
+        }
+
+        return new HttpResponseMessage(message.method, message.url, 200,
+            new ByteArrayInputStream(responses.toJSONString().getBytes(
+                "UTF-8")));
+      } catch (ParseException e) {
+        throw new IOException(e.toString());
+      }
+    }
+  }
+
+  /**
+   * Serves pages of a collection of people with ids "0" up to the passed
+   * total, honouring the startIndex and count parameters of each RPC request
+   * in the batch and reporting the total number of results. Pages can be
+   * capped and the total left out, as some containers do.
+   */
+  static class PagedRpcHttpClient extends StubHttpClient {
+
+    final int total;
+    int maxCount = Integer.MAX_VALUE;
+    boolean reportTotal = true;
+    final AtomicInteger executions = new AtomicInteger();
+    final List<Integer> startIndexes = new ArrayList<Integer>();
+
+    PagedRpcHttpClient(int total) {
+      this.total = total;
+    }
+
+    public HttpResponseMessage execute(HttpMessage message)
+        throws IOException {
+      executions.incrementAndGet();
+
+      try {
+        List<Map> requests = (List<Map>) new JSONParser().parse(
+            new InputStreamReader(message.getBody(), "UTF-8"));
+
+        JSONArray responses = new JSONArray();
+        for (Map request : requests) {
+          Map params = (Map) request.get("params");
+          int startIndex = Integer.parseInt((String) params.get("startIndex"));
+          int count = Math.min(maxCount,
+              Integer.parseInt((String) params.get("count")));
+          synchronized (startIndexes) {
+            startIndexes.add(startIndex);
+          }
+
+          JSONArray list = new JSONArray();
+          for (int i = startIndex; i < Math.min(startIndex + count, total);
+              i++) {
+            JSONObject person = new JSONObject();
+            person.put("id", "" + i);
+            list.add(person);
+          }
+
+          JSONObject data = new JSONObject();
+          data.put("startIndex", new Long(startIndex));
+          if (reportTotal) {
+            data.put("totalResults", new Long(total));
+          }
+          data.put("list", list);
+
+          JSONObject response = new JSONObject();
+          response.put("id", request.get("id"));
+          response.put("data", data);
+          responses.add(response);
+        }
+
+        return new HttpResponseMessage(message.method, message.url, 200,
+            new ByteArrayInputStream(responses.toJSONString().getBytes(
+                "UTF-8")));
+      } catch (ParseException e) {
+        throw new IOException(e.toString());
+      }
+    }
+  }
 }
@@ -0,0 +1,197 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opensocial.http.HttpResponseMessage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HedgingPolicyTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /**
+   * Answers the first execution after ten seconds, unless interrupted, and
+   * all later executions immediately.
+   */
+  private static class SlowFirstExchange implements Client.Exchange {
+
+    final AtomicInteger executions = new AtomicInteger();
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final HttpResponseMessage slow;
+    final HttpResponseMessage fast;
+
+    SlowFirstExchange() throws IOException {
+      slow = response(200);
+      fast = response(200);
+    }
+
+    public HttpResponseMessage execute() throws IOException {
+      if (executions.incrementAndGet() > 1) {
+        return fast;
+      }
+
+      try {
+        Thread.sleep(10000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        throw new InterruptedIOException();
+      }
+
+      return slow;
+    }
+  }
+
+  private static HttpResponseMessage response(int statusCode)
+      throws IOException {
+    return new HttpResponseMessage("GET", new URL("http://example.org/"),
+        statusCode);
+  }
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void fastRequestsAreNotHedged() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(5000, 1);
+    final HttpResponseMessage ok = response(200);
+
+    HttpResponseMessage response = policy.execute("people.get",
+        new Client.Exchange() {
+          public HttpResponseMessage execute() {
+            return ok;
+          }
+        }, executor);
+
+    assertSame(ok, response);
+    assertEquals(1, policy.getRequests());
+    assertEquals(0, policy.getHedges());
+  }
+
+  @Test
+  public void slowRequestIsHedgedAndCancelled() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(10, 1);
+    SlowFirstExchange exchange = new SlowFirstExchange();
+
+    assertSame(exchange.fast, policy.execute("people.get", exchange,
+        executor));
+    assertEquals(2, exchange.executions.get());
+    assertEquals(1, policy.getHedges());
+    assertEquals(1, policy.getHedgeWins());
+    assertTrue(exchange.interrupted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void extraLoadIsCapped() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(1, 0.5);
+
+    // Half a hedge per request; the first request can't be hedged yet
+    final AtomicInteger executions = new AtomicInteger();
+    Client.Exchange exchange = new Client.Exchange() {
+      public HttpResponseMessage execute() throws IOException {
+        executions.incrementAndGet();
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+
+        return response(200);
+      }
+    };
+
+    policy.execute("people.get", exchange, executor);
+    assertEquals(0, policy.getHedges());
+    policy.execute("people.get", exchange, executor);
+    assertEquals(1, policy.getHedges());
+    policy.execute("people.get", exchange, executor);
+    assertEquals(1, policy.getHedges());
+    assertEquals(3, policy.getRequests());
+  }
+
+  @Test
+  public void failureWaitsForHedge() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(10, 1);
+    final HttpResponseMessage ok = response(200);
+    final AtomicInteger executions = new AtomicInteger();
+
+    // The first request fails after the hedge was sent
+    Client.Exchange exchange = new Client.Exchange() {
+      public HttpResponseMessage execute() throws IOException {
+        if (executions.incrementAndGet() > 1) {
+          return ok;
+        }
+
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        throw new IOException("Connection reset");
+      }
+    };
+    assertSame(ok, policy.execute("people.get", exchange, executor));
+
+    // If both fail, the last failure is thrown
+    Client.Exchange failing = new Client.Exchange() {
+      public HttpResponseMessage execute() throws IOException {
+        throw new IOException("Connection refused");
+      }
+    };
+    try {
+      policy.execute("people.get", failing, executor);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Connection refused", e.getMessage());
+    }
+  }
+
+  @Test
+  public void delayFollowsPercentile() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(0.5, 5000, 0);
+    final HttpResponseMessage ok = response(200);
+    Client.Exchange exchange = new Client.Exchange() {
+      public HttpResponseMessage execute() {
+        return ok;
+      }
+    };
+
+    assertEquals(5000, policy.getDelay("people.get"));
+    for (int i = 0; i < 16; i++) {
+      policy.execute("people.get", exchange, executor);
+    }
+
+    assertTrue(policy.getDelay("people.get") < 5000);
+    assertEquals(5000, policy.getDelay("activities.get"));
+    assertEquals(5000, new HedgingPolicy(5000, 1).getDelay("people.get"));
+  }
+}
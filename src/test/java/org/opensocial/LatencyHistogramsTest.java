@@ -0,0 +1,80 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.opensocial.StageEvent.Stage;
+import org.opensocial.providers.OrkutProvider;
+import org.opensocial.providers.Provider;
+
+public class LatencyHistogramsTest {
+
+  private static StageEvent event(Provider provider, String method,
+      Stage stage, long micros) {
+    return new StageEvent(stage, provider, method, micros * 1000, 10, 20,
+        200);
+  }
+
+  @Test
+  public void buckets() {
+    assertEquals(0, LatencyHistogram.getBucket(0, 32));
+    assertEquals(0, LatencyHistogram.getBucket(1999, 32));
+    assertEquals(1, LatencyHistogram.getBucket(2000, 32));
+    assertEquals(1, LatencyHistogram.getBucket(3999, 32));
+    assertEquals(10, LatencyHistogram.getBucket(1024000, 32));
+    assertEquals(31, LatencyHistogram.getBucket(Long.MAX_VALUE, 32));
+    assertEquals(4000, LatencyHistogram.getUpperBound(1));
+  }
+
+  @Test
+  public void aggregatesPerProviderMethodAndStage() {
+    Provider provider = new OrkutProvider();
+    LatencyHistograms histograms = new LatencyHistograms();
+
+    for (int i = 1; i <= 100; i++) {
+      histograms.onStage(event(provider, "people.get", Stage.EXECUTE,
+          i * 100));
+    }
+    histograms.onStage(event(provider, "people.get", Stage.PARSE, 50));
+    histograms.onStage(event(provider, "activities.get", Stage.EXECUTE,
+        70));
+
+    LatencyHistogram execute = histograms.getHistogram(provider.getName(),
+        "people.get", Stage.EXECUTE);
+    assertEquals(100, execute.getCount());
+    assertEquals(5050 * 100 * 1000L, execute.getTotalTime());
+    assertEquals(5050 * 1000L, execute.getMeanTime());
+    assertEquals(10000 * 1000L, execute.getMaxTime());
+    assertEquals(1000, execute.getRequestBytes());
+    assertEquals(2000, execute.getResponseBytes());
+
+    // Percentiles are bucket upper bounds: 5ms falls into [4.096, 8.192)
+    assertEquals(8192000, execute.getPercentile(0.5));
+    assertEquals(10000000, execute.getPercentile(0.99));
+
+    assertEquals(1, histograms.getHistogram(provider.getName(), "people.get",
+        Stage.PARSE).getCount());
+    assertNull(histograms.getHistogram(provider.getName(), "people.get",
+        Stage.SIGN));
+    assertEquals(3, histograms.getHistograms().size());
+
+    histograms.reset();
+    assertEquals(0, histograms.getHistograms().size());
+  }
+}
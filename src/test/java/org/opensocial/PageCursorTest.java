@@ -0,0 +1,111 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.opensocial.models.Person;
+import org.opensocial.providers.OrkutProvider;
+import org.opensocial.services.PeopleService;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+public class PageCursorTest {
+
+  @Test
+  public void iteratesOverAllPages() throws Exception {
+    ClientTest.PagedRpcHttpClient httpClient =
+      new ClientTest.PagedRpcHttpClient(25);
+    Client client = new Client(new OrkutProvider(),
+        new ClientTest.StubAuthScheme(), httpClient);
+
+    Request request = PeopleService.getFriends();
+    PageCursor<Person> cursor = client.openCursor(request, 10);
+    assertNull(cursor.getTotalResults());
+
+    int count = 0;
+    while (cursor.hasNext()) {
+      Person person = cursor.next();
+      assertEquals("" + count, person.getId());
+      count++;
+    }
+
+    assertEquals(25, count);
+    assertEquals(25L, cursor.getTotalResults().longValue());
+    assertEquals(Arrays.asList(0, 10, 20), httpClient.startIndexes);
+    assertFalse(request.getRestQueryStringParameters().containsKey(
+        "startIndex"));
+  }
+
+  @Test
+  public void prefetchesNextPage() throws Exception {
+    ClientTest.PagedRpcHttpClient httpClient =
+      new ClientTest.PagedRpcHttpClient(25);
+    Client client = new Client(new OrkutProvider(),
+        new ClientTest.StubAuthScheme(), httpClient);
+
+    PageCursor<Person> cursor = client.openCursor(
+        PeopleService.getFriends(), 10);
+    assertEquals("0", cursor.next().getId());
+
+    // The second page is requested before the first one is consumed
+    long deadline = System.currentTimeMillis() + 5000;
+    while (System.currentTimeMillis() < deadline) {
+      synchronized (httpClient.startIndexes) {
+        if (httpClient.startIndexes.size() == 2) {
+          break;
+        }
+      }
+      Thread.sleep(5);
+    }
+    assertEquals(Arrays.asList(0, 10), httpClient.startIndexes);
+
+    cursor.close();
+    assertFalse(cursor.hasNext());
+  }
+
+  @Test
+  public void startsAtRequestStartIndex() throws Exception {
+    ClientTest.PagedRpcHttpClient httpClient =
+      new ClientTest.PagedRpcHttpClient(25);
+    Client client = new Client(new OrkutProvider(),
+        new ClientTest.StubAuthScheme(), httpClient);
+
+    Request request = PeopleService.getFriends();
+    request.setStartIndexParameter(20);
+    PageCursor<Person> cursor = client.openCursor(request, 10);
+
+    assertTrue(cursor.hasNext());
+    assertEquals("20", cursor.next().getId());
+    for (int i = 21; i < 25; i++) {
+      assertEquals("" + i, cursor.next().getId());
+    }
+    assertFalse(cursor.hasNext());
+
+    try {
+      cursor.next();
+      fail("Expected NoSuchElementException");
+    } catch (NoSuchElementException e) {
+      // Expected
+    }
+  }
+}
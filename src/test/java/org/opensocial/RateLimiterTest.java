@@ -0,0 +1,138 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.oauth.OAuth;
+
+import org.junit.Test;
+import org.opensocial.http.HttpResponseMessage;
+import org.opensocial.providers.MySpaceProvider;
+import org.opensocial.providers.OrkutProvider;
+import org.opensocial.providers.Provider;
+
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+public class RateLimiterTest {
+
+  private static HttpResponseMessage response(int statusCode, String header,
+      String value) throws Exception {
+    HttpResponseMessage response = new HttpResponseMessage("GET",
+        new URL("http://example.org/"), statusCode);
+    if (header != null) {
+      response.headers.add(new OAuth.Parameter(header, value));
+    }
+
+    return response;
+  }
+
+  @Test
+  public void failsFastOnceBurstIsUsed() throws Exception {
+    RateLimiter limiter = new RateLimiter(10, 3, false);
+    Provider provider = new OrkutProvider();
+
+    for (int i = 0; i < 3; i++) {
+      limiter.acquire(provider);
+    }
+
+    try {
+      limiter.acquire(provider);
+      fail();
+    } catch (RateLimitException e) {
+      assertTrue(e.getRetryAfter() > 0);
+      assertTrue(e.getRetryAfter() <= 100);
+    }
+
+    // Other providers have their own bucket
+    assertTrue(limiter.tryAcquire(new MySpaceProvider()));
+  }
+
+  @Test
+  public void waitsForPermits() throws Exception {
+    RateLimiter limiter = new RateLimiter(50, 1, true);
+    Provider provider = new OrkutProvider();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 6; i++) {
+      limiter.acquire(provider);
+    }
+    long elapsed = (System.nanoTime() - start) / 1000000;
+
+    // The first permit is free, the other five are 20ms apart
+    assertTrue("elapsed " + elapsed, elapsed >= 90);
+  }
+
+  @Test
+  public void halvesRateWhenThrottledAndRecovers() throws Exception {
+    RateLimiter limiter = new RateLimiter(100, 10, false, 200);
+    Provider provider = new OrkutProvider();
+
+    limiter.update(provider, response(200, null, null));
+    assertEquals(100, limiter.getRate(provider), 0.001);
+
+    limiter.update(provider, response(429, null, null));
+    assertTrue(limiter.getRate(provider) <= 51);
+
+    // Further throttling within a second doesn't compound
+    limiter.update(provider, response(503, null, null));
+    limiter.update(provider, response(200, "X-RateLimit-Remaining", "0"));
+    assertTrue(limiter.getRate(provider) > 49);
+
+    Thread.sleep(250);
+    assertEquals(100, limiter.getRate(provider), 0.001);
+  }
+
+  @Test
+  public void honoursRetryAfter() throws Exception {
+    RateLimiter limiter = new RateLimiter(100, 10, false);
+    Provider provider = new OrkutProvider();
+
+    assertTrue(limiter.tryAcquire(provider));
+    limiter.update(provider, response(503, "Retry-After", "2"));
+
+    assertFalse(limiter.tryAcquire(provider));
+    try {
+      limiter.acquire(provider);
+      fail();
+    } catch (RateLimitException e) {
+      assertTrue(e.getRetryAfter() > 1500);
+    }
+  }
+
+  @Test
+  public void parsesRetryAfter() {
+    long now = System.currentTimeMillis();
+    SimpleDateFormat format = new SimpleDateFormat(
+        "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    assertEquals(120000, RateLimiter.parseRetryAfter(" 120 ", now));
+    assertEquals(-1, RateLimiter.parseRetryAfter(null, now));
+    assertEquals(-1, RateLimiter.parseRetryAfter("soon", now));
+
+    long delay = RateLimiter.parseRetryAfter(
+        format.format(new Date(now + 60000)), now);
+    assertTrue(delay > 58000 && delay <= 60000);
+  }
+}
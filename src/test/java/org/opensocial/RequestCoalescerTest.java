@@ -0,0 +1,131 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.oauth.http.HttpMessage;
+
+import org.junit.Test;
+import org.opensocial.http.HttpClient;
+import org.opensocial.http.HttpResponseMessage;
+import org.opensocial.providers.OrkutProvider;
+import org.opensocial.services.PeopleService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RequestCoalescerTest {
+
+  @Test
+  public void coalescesConcurrentSends() throws Exception {
+    ClientTest.EchoRpcHttpClient httpClient =
+      new ClientTest.EchoRpcHttpClient();
+    Client client = new Client(new OrkutProvider(),
+        new ClientTest.StubAuthScheme(), httpClient);
+    RequestCoalescer coalescer = new RequestCoalescer(client, 10000, 5);
+
+    List<RequestFuture<Response>> futures =
+      new ArrayList<RequestFuture<Response>>();
+    for (int i = 0; i < 10; i++) {
+      futures.add(coalescer.sendAsync(PeopleService.getUser("user" + i)));
+    }
+
+    for (int i = 0; i < 10; i++) {
+      Response response = futures.get(i).getResult();
+      assertEquals("user" + i, response.getEntry().getField("id"));
+    }
+
+    assertEquals(2, httpClient.executions.get());
+    assertEquals(5, httpClient.batchSizes.get(0).intValue());
+    assertEquals(5, httpClient.batchSizes.get(1).intValue());
+  }
+
+  @Test
+  public void flushesAfterWindow() throws Exception {
+    ClientTest.EchoRpcHttpClient httpClient =
+      new ClientTest.EchoRpcHttpClient();
+    Client client = new Client(new OrkutProvider(),
+        new ClientTest.StubAuthScheme(), httpClient);
+    RequestCoalescer coalescer = new RequestCoalescer(client, 20, 100);
+
+    RequestFuture<Response> first =
+      coalescer.sendAsync(PeopleService.getUser("a"));
+    RequestFuture<Response> second =
+      coalescer.sendAsync(PeopleService.getUser("b"));
+
+    assertEquals("a", first.getResult().getEntry().getField("id"));
+    assertEquals("b", second.getResult().getEntry().getField("id"));
+    assertEquals(1, httpClient.executions.get());
+  }
+
+  @Test
+  public void separatesBatchesByAuthScheme() throws Exception {
+    ClientTest.EchoRpcHttpClient httpClient =
+      new ClientTest.EchoRpcHttpClient();
+    OrkutProvider provider = new OrkutProvider();
+    Client first = new Client(provider, new ClientTest.StubAuthScheme(),
+        httpClient);
+    Client second = new Client(provider, new ClientTest.StubAuthScheme(),
+        httpClient);
+    RequestCoalescer coalescer = new RequestCoalescer(first, 10000, 100);
+
+    RequestFuture<Response> a = coalescer.sendAsync(first,
+        PeopleService.getUser("a"));
+    RequestFuture<Response> b = coalescer.sendAsync(second,
+        PeopleService.getUser("b"));
+    RequestFuture<Response> c = coalescer.sendAsync(first,
+        PeopleService.getUser("c"));
+    coalescer.flush();
+
+    assertEquals("a", a.getResult().getEntry().getField("id"));
+    assertEquals("b", b.getResult().getEntry().getField("id"));
+    assertEquals("c", c.getResult().getEntry().getField("id"));
+    assertEquals(2, httpClient.executions.get());
+    assertTrue(httpClient.batchSizes.contains(2));
+    assertTrue(httpClient.batchSizes.contains(1));
+  }
+
+  @Test
+  public void propagatesBatchFailure() throws Exception {
+    HttpClient httpClient = new ClientTest.StubHttpClient() {
+      public HttpResponseMessage execute(HttpMessage message)
+          throws IOException {
+        throw new IOException("Connection reset");
+      }
+    };
+    Client client = new Client(new OrkutProvider(),
+        new ClientTest.StubAuthScheme(), httpClient);
+    RequestCoalescer coalescer = new RequestCoalescer(client, 10000, 2);
+
+    RequestFuture<Response> a = coalescer.sendAsync(
+        PeopleService.getUser("a"));
+    RequestFuture<Response> b = coalescer.sendAsync(
+        PeopleService.getUser("b"));
+
+    for (RequestFuture<Response> future : new RequestFuture[] {a, b}) {
+      try {
+        future.getResult();
+        fail("Expected IOException");
+      } catch (IOException e) {
+        assertEquals("Connection reset", e.getMessage());
+      }
+    }
+  }
+}
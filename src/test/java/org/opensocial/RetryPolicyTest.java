@@ -0,0 +1,175 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.oauth.OAuth;
+
+import org.junit.Test;
+import org.opensocial.http.HttpResponseMessage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class RetryPolicyTest {
+
+  /**
+   * Returns, or throws, the scripted outcomes in order and repeats the last
+   * one once the script is used up.
+   */
+  private static class ScriptedExchange implements Client.Exchange {
+
+    private final LinkedList<Object> outcomes = new LinkedList<Object>();
+    int executions;
+
+    ScriptedExchange(Object... outcomes) {
+      this.outcomes.addAll(Arrays.asList(outcomes));
+    }
+
+    public HttpResponseMessage execute() throws IOException {
+      executions++;
+
+      Object outcome = outcomes.size() > 1 ? outcomes.removeFirst() :
+          outcomes.getFirst();
+      if (outcome instanceof IOException) {
+        throw (IOException) outcome;
+      }
+
+      return (HttpResponseMessage) outcome;
+    }
+  }
+
+  private static HttpResponseMessage response(int statusCode)
+      throws IOException {
+    return new HttpResponseMessage("GET", new URL("http://example.org/"),
+        statusCode);
+  }
+
+  @Test
+  public void retriesTransientFailures() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 1, 5, 0.2, 10);
+    HttpResponseMessage ok = response(200);
+    ScriptedExchange exchange = new ScriptedExchange(response(503),
+        new IOException("Connection reset"), ok);
+
+    assertSame(ok, policy.execute(exchange));
+    assertEquals(3, exchange.executions);
+
+    RetryStats stats = policy.getStats();
+    assertEquals(1, stats.getRequests());
+    assertEquals(2, stats.getRetries());
+    assertEquals(1, stats.getAttempts(1));
+    assertEquals(1, stats.getAttempts(3));
+    assertEquals(1, stats.getFailures(2));
+    assertEquals(0, stats.getFailures(3));
+    assertEquals(0, stats.getExhausted());
+  }
+
+  @Test
+  public void givesUpAfterMaxAttempts() throws Exception {
+    RetryPolicy policy = new RetryPolicy(2, 1, 5, 0.2, 10);
+    IOException failure = new IOException("Connection reset");
+    ScriptedExchange exchange = new ScriptedExchange(failure);
+
+    try {
+      policy.execute(exchange);
+      fail();
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(2, exchange.executions);
+    assertEquals(1, policy.getStats().getExhausted());
+
+    // Failed responses are returned once attempts run out
+    HttpResponseMessage unavailable = response(503);
+    assertSame(unavailable,
+        policy.execute(new ScriptedExchange(unavailable)));
+  }
+
+  @Test
+  public void doesNotRetryPermanentFailures() throws Exception {
+    RetryPolicy policy = new RetryPolicy();
+
+    ScriptedExchange exchange = new ScriptedExchange(response(404));
+    assertEquals(404, policy.execute(exchange).getStatusCode());
+    assertEquals(1, exchange.executions);
+
+    exchange = new ScriptedExchange(new InterruptedIOException());
+    try {
+      policy.execute(exchange);
+      fail();
+    } catch (InterruptedIOException e) {
+      // Expected
+    }
+    assertEquals(1, exchange.executions);
+    assertEquals(0, policy.getStats().getRetries());
+  }
+
+  @Test
+  public void limitsRetriesToBudget() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 0, 0, 0, 2);
+
+    ScriptedExchange first = new ScriptedExchange(response(503));
+    policy.execute(first);
+    assertEquals(3, first.executions);
+
+    ScriptedExchange second = new ScriptedExchange(response(503));
+    policy.execute(second);
+    assertEquals(1, second.executions);
+
+    assertEquals(2, policy.getStats().getRetries());
+    assertEquals(1, policy.getStats().getBudgetRejections());
+  }
+
+  @Test
+  public void honoursRetryAfterUpToMaxDelay() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 1, 1000, 0.2, 10);
+
+    HttpResponseMessage throttled = response(429);
+    throttled.headers.add(new OAuth.Parameter("Retry-After", "60"));
+    ScriptedExchange exchange = new ScriptedExchange(throttled);
+
+    assertSame(throttled, policy.execute(exchange));
+    assertEquals(1, exchange.executions);
+    assertEquals(1, policy.getStats().getExhausted());
+  }
+
+  @Test
+  public void usesDecorrelatedJitter() {
+    RetryPolicy policy = new RetryPolicy(3, 100, 1000, 0.2, 10);
+
+    List<Long> delays = new LinkedList<Long>();
+    long delay = 100;
+    for (int i = 0; i < 1000; i++) {
+      long next = policy.nextDelay(delay);
+      assertTrue(next >= 100);
+      assertTrue(next <= Math.min(1000, delay * 3));
+      delays.add(next);
+      delay = next;
+    }
+
+    // Delays are spread rather than fixed
+    assertTrue(new java.util.HashSet<Long>(delays).size() > 100);
+  }
+}
@@ -0,0 +1,68 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+
+public class UrlTemplateTest {
+
+  @Test
+  public void expandsComponents() {
+    Request request = new Request("people/{guid}/{selector}/{pid}",
+        "people.get", "GET");
+    request.setGuid("@me");
+    request.setSelector("@friends");
+
+    StringBuilder builder = new StringBuilder("http://example.com/");
+    UrlTemplate.compile(request.getRestUrlTemplate()).expand(request,
+        builder);
+    assertEquals("http://example.com/people/@me/@friends",
+        builder.toString());
+
+    request.setPId("123");
+    builder = new StringBuilder("http://example.com/");
+    UrlTemplate.compile(request.getRestUrlTemplate()).expand(request,
+        builder);
+    assertEquals("http://example.com/people/@me/@friends/123",
+        builder.toString());
+  }
+
+  @Test
+  public void cachesCompiledTemplates() {
+    assertSame(UrlTemplate.compile("activities/{guid}/{groupId}"),
+        UrlTemplate.compile("activities/{guid}/{groupId}"));
+  }
+
+  @Test
+  public void encodesLikeUrlEncoder() throws Exception {
+    String[] values = {
+      "", "plain", "with space", "a+b=c&d", "~!@#$%^()[]{}|\\:;\"'<>,/?",
+      "caf\u00e9", "\u65e5\u672c", "\ud83d\ude00", "bad\ud800surrogate"
+    };
+
+    for (String value : values) {
+      StringBuilder builder = new StringBuilder();
+      UrlTemplate.appendEncoded(builder, value);
+
+      assertEquals(URLEncoder.encode(value, "UTF-8"), builder.toString());
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.opensocial.auth;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import net.oauth.OAuth;
@@ -9,6 +10,7 @@ import net.oauth.http.HttpMessage;
 
 import org.junit.Test;
 import org.opensocial.RequestException;
+import org.opensocial.http.FilePayload;
 import org.opensocial.http.HttpClient;
 import org.opensocial.http.HttpResponseMessage;
 import org.opensocial.providers.MySpaceProvider;
@@ -16,8 +18,11 @@ import org.opensocial.providers.Provider;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -236,4 +241,87 @@ public class OAuth3LeggedSchemeTest {
     assertEquals("{a:\"test\"}", new BufferedReader(
         new InputStreamReader(message.getBody())).readLine());
   }
+
+  @Test
+  public void testGetStreamingHttpMessageSignBodyHash() throws Exception {
+    Provider provider = new MySpaceProvider() {
+      @Override
+      public boolean getSignBodyHash() {
+        return true;
+      }
+    };
+    OAuth3LeggedScheme authScheme = new OAuth3LeggedScheme(provider,
+        consumerKey, consumerSecret);
+    authScheme.setAccessToken(new OAuth3LeggedScheme.Token("ACCESS_TOKEN",
+        "ACCESS_TOKEN_SECRET"));
+
+    File file = File.createTempFile("payload", ".json");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    out.write("{a:\"test\"}".getBytes("UTF-8"));
+    out.close();
+
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put(HttpMessage.CONTENT_TYPE, "application/json");
+
+    List<Map.Entry<String, String>> parameters =
+      new ArrayList<Map.Entry<String, String>>();
+    parameters.add(new OAuth.Parameter(OAuth.OAUTH_NONCE, "987654321"));
+    parameters.add(new OAuth.Parameter(OAuth.OAUTH_TIMESTAMP, "123456789"));
+
+    HttpMessage message = authScheme.getStreamingHttpMessage(provider, "POST",
+        "http://example.org/test?arg=value", headers, new FilePayload(file),
+        parameters);
+
+    // Same signature as for the equivalent byte array body
+    assertEquals("http://example.org/test?arg=value" +
+        "&oauth_nonce=987654321&oauth_timestamp=123456789" +
+        "&oauth_body_hash=PkyA2Pf44ldLEq%2BZYMo7g6uH3UE%3D&" +
+        "oauth_token=ACCESS_TOKEN&oauth_consumer_key=consumerKey&" +
+        "oauth_signature_method=HMAC-SHA1&oauth_version=1.0&" +
+        "oauth_signature=zdRixuj4wcLHvY6%2BT8u6%2FWGNuZI%3D",
+        message.url.toString());
+    assertEquals("10", message.getHeader(HttpMessage.CONTENT_LENGTH));
+    assertEquals("{a:\"test\"}", new BufferedReader(
+        new InputStreamReader(message.getBody())).readLine());
+    message.getBody().close();
+  }
+
+  @Test
+  public void testForToken() throws RequestException, IOException {
+    Provider provider = new MySpaceProvider();
+    OAuth3LeggedScheme authScheme = new OAuth3LeggedScheme(provider,
+        consumerKey, consumerSecret);
+
+    OAuth3LeggedScheme first = authScheme.forToken(
+        new OAuth3LeggedScheme.Token("ACCESS_TOKEN", "ACCESS_TOKEN_SECRET"));
+    OAuth3LeggedScheme second = authScheme.forToken(
+        new OAuth3LeggedScheme.Token("OTHER_TOKEN", "OTHER_TOKEN_SECRET"));
+
+    assertEquals(null, authScheme.getAccessToken());
+    assertEquals("OTHER_TOKEN", second.getAccessToken().token);
+    assertSame(provider, first.getProvider());
+
+    List<Map.Entry<String, String>> parameters =
+      new ArrayList<Map.Entry<String, String>>();
+    parameters.add(new OAuth.Parameter(OAuth.OAUTH_NONCE, "987654321"));
+    parameters.add(new OAuth.Parameter(OAuth.OAUTH_TIMESTAMP, "123456789"));
+
+    // Signing alternately with both tokens gives each token's signature
+    for (int i = 0; i < 2; i++) {
+      assertTrue(second.getHttpMessage(provider, "GET",
+          "http://example.org/test?arg=value",
+          new HashMap<String, String>(), null, parameters).url.toString()
+          .contains("oauth_token=OTHER_TOKEN&"));
+      assertEquals("http://example.org/test?arg=value" +
+          "&oauth_nonce=987654321&oauth_timestamp=123456789" +
+          "&oauth_token=ACCESS_TOKEN&oauth_consumer_key=consumerKey&" +
+          "oauth_signature_method=HMAC-SHA1&oauth_version=1.0&" +
+          "oauth_signature=uiz7qEAnFsKWTSgfBXppS%2Br%2BmQg%3D",
+          first.getHttpMessage(provider, "GET",
+              "http://example.org/test?arg=value",
+              new HashMap<String, String>(), null, parameters)
+              .url.toString());
+    }
+  }
 }
@@ -0,0 +1,138 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OAuthSignerTest {
+
+  private static OAuthMessage newMessage(int i) {
+    List<Map.Entry<String, String>> parameters =
+      new ArrayList<Map.Entry<String, String>>();
+    parameters.add(new OAuth.Parameter(OAuth.OAUTH_NONCE, "nonce" + i));
+    parameters.add(new OAuth.Parameter(OAuth.OAUTH_TIMESTAMP, "123456789"));
+
+    return new OAuthMessage("POST", "http://example.org/rpc?q=a+b&n=" + i,
+        parameters);
+  }
+
+  private static String signWithAccessor(OAuthMessage message,
+      String consumerSecret, String token, String tokenSecret)
+      throws Exception {
+    OAuthConsumer consumer =
+      new OAuthConsumer(null, "consumerKey", consumerSecret, null);
+    consumer.setProperty(OAuth.OAUTH_SIGNATURE_METHOD, OAuth.HMAC_SHA1);
+
+    OAuthAccessor accessor = new OAuthAccessor(consumer);
+    accessor.accessToken = token;
+    accessor.tokenSecret = tokenSecret;
+
+    message.addRequiredParameters(accessor);
+    return OAuth.formEncode(message.getParameters());
+  }
+
+  @Test
+  public void signsLikeNetOAuth() throws Exception {
+    String[][] credentials = {
+        {"consumerSecret", null, null},
+        {"consumerSecret", "token", "tokenSecret"},
+        {"s&cr=t +/\u00e9", "t0k en", "~sec%ret"},
+    };
+
+    for (String[] credential : credentials) {
+      OAuthSigner signer = new OAuthSigner("consumerKey", credential[0],
+          credential[1], credential[2]);
+
+      for (int i = 0; i < 3; i++) {
+        OAuthMessage message = newMessage(i);
+        signer.sign(message);
+
+        assertEquals(signWithAccessor(newMessage(i), credential[0],
+            credential[1], credential[2]),
+            OAuth.formEncode(message.getParameters()));
+      }
+    }
+  }
+
+  @Test
+  public void signsConcurrently() throws Exception {
+    final OAuthSigner signer =
+      new OAuthSigner("consumerKey", "consumerSecret", "token", "secret");
+    final String[] expected = new String[50];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = signWithAccessor(newMessage(i), "consumerSecret",
+          "token", "secret");
+    }
+
+    final AtomicInteger failures = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < 20; round++) {
+              for (int i = 0; i < expected.length; i++) {
+                OAuthMessage message = newMessage(i);
+                signer.sign(message);
+                if (!expected[i].equals(
+                    OAuth.formEncode(message.getParameters()))) {
+                  failures.incrementAndGet();
+                }
+              }
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(0, failures.get());
+  }
+
+  @Test
+  public void reusesSignerUntilCredentialsChange() {
+    OAuth2LeggedScheme scheme = new OAuth2LeggedScheme("key", "secret");
+
+    OAuthSigner signer = scheme.getSigner(null, null);
+    assertSame(signer, scheme.getSigner(null, null));
+    assertTrue(signer.matches("key", "secret", null, null));
+
+    OAuthSigner tokenSigner = scheme.getSigner("token", "tokenSecret");
+    assertFalse(signer == tokenSigner);
+    assertSame(tokenSigner, scheme.getSigner("token", "tokenSecret"));
+  }
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TinyLfuCacheTest {
+
+  @Test
+  public void keepsPopularEntriesDuringScan() {
+    TinyLfuCache<String, String> cache =
+      new TinyLfuCache<String, String>(100, 0);
+
+    for (int i = 0; i < 100; i++) {
+      cache.put("hot" + i, "value" + i);
+    }
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 100; i++) {
+        cache.get("hot" + i);
+      }
+    }
+
+    // One-off keys which are never requested again, interleaved with
+    // requests for the popular keys; an LRU cache would lose every popular
+    // entry since each is only touched once per hundred insertions
+    for (int i = 0; i < 10000; i++) {
+      cache.put("scan" + i, "value" + i);
+      cache.get("hot" + i % 100);
+    }
+
+    int retained = 0;
+    for (int i = 0; i < 100; i++) {
+      if (cache.get("hot" + i) != null) {
+        retained++;
+      }
+    }
+
+    assertTrue("retained " + retained, retained >= 90);
+    assertTrue(cache.getStats().getSize() <= 100);
+    assertTrue(cache.getStats().getEvictions() >= 9900);
+  }
+
+  @Test
+  public void expiresEntries() throws Exception {
+    TinyLfuCache<String, String> cache =
+      new TinyLfuCache<String, String>(10, 20);
+
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+
+    Thread.sleep(40);
+    assertNull(cache.get("a"));
+
+    assertEquals(1, cache.getStats().getHits());
+    assertEquals(1, cache.getStats().getMisses());
+    assertEquals(0, cache.getStats().getSize());
+  }
+
+  @Test
+  public void countsHitsAndMisses() {
+    TinyLfuCache<String, String> cache =
+      new TinyLfuCache<String, String>(1, 0);
+
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+    assertNull(cache.get("b"));
+
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+
+    assertEquals(1, cache.getStats().getHits());
+    assertEquals(2, cache.getStats().getMisses());
+    assertEquals(0.5, new CacheStats(1, 1, 0, 0).getHitRate(), 0.001);
+    assertEquals(-1, cache.getStats().getBytes());
+  }
+}
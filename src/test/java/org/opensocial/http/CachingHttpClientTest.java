@@ -0,0 +1,127 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import net.oauth.http.HttpMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensocial.providers.Provider;
+
+import java.net.URL;
+
+public class CachingHttpClientTest {
+
+  private HttpTestServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new HttpTestServer(new HttpTestServer.Handler() {
+      public void handle(HttpTestServer.Exchange exchange) throws Exception {
+        String path = exchange.path.split("\\?")[0];
+        String etag = "\"" + path.hashCode() + "\"";
+
+        if (etag.equals(exchange.headers.get("if-none-match"))) {
+          exchange.status = 304;
+        } else {
+          exchange.responseHeaders.put("ETag", etag);
+          exchange.responseBody = ("{\"path\":\"" + path +
+              "\"}").getBytes("UTF-8");
+        }
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  @Test
+  public void servesNotModifiedResponsesFromCache() throws Exception {
+    CachingHttpClient client = new CachingHttpClient(new HttpClientImpl());
+
+    HttpResponseMessage first = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/people/1?oauth_token=a&oauth_nonce=1"))));
+    HttpResponseMessage second = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/people/1?oauth_token=a&oauth_nonce=2"))));
+
+    assertEquals(200, first.getStatusCode());
+    assertEquals(200, second.getStatusCode());
+    assertEquals(first.getResponse(), second.getResponse());
+    assertNull(server.getExchanges().get(0).headers.get("if-none-match"));
+    assertEquals(first.getHeader("ETag"),
+        server.getExchanges().get(1).headers.get("if-none-match"));
+
+    assertEquals(1, client.getStats().getHits());
+    assertEquals(1, client.getStats().getMisses());
+    assertEquals(1, client.getStats().getSize());
+    assertEquals(first.getResponse().getBytes("UTF-8").length,
+        client.getStats().getBytes());
+  }
+
+  @Test
+  public void separatesEntriesByToken() throws Exception {
+    CachingHttpClient client = new CachingHttpClient(new HttpClientImpl());
+
+    client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/people/1?oauth_token=a"))));
+    client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/people/1?oauth_token=b"))));
+
+    assertNull(server.getExchanges().get(1).headers.get("if-none-match"));
+    assertEquals(2, client.getStats().getSize());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws Exception {
+    CachingHttpClient client = new CachingHttpClient(new HttpClientImpl(), 2,
+        1024);
+
+    for (int i = 0; i < 3; i++) {
+      client.execute(new HttpMessage("GET",
+          new URL(server.getUrl("/people/" + i))));
+    }
+
+    assertEquals(2, client.getStats().getSize());
+    assertEquals(1, client.getStats().getEvictions());
+
+    client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/people/0"))));
+    assertNull(server.getExchanges().get(3).headers.get("if-none-match"));
+  }
+
+  @Test
+  public void skipsDisabledProviders() throws Exception {
+    Provider provider = new Provider();
+    provider.setRestEndpoint(server.getUrl("/social/rest/"));
+
+    CachingHttpClient client = new CachingHttpClient(new HttpClientImpl());
+    client.setEnabled(provider, false);
+
+    for (int i = 0; i < 2; i++) {
+      client.execute(new HttpMessage("GET",
+          new URL(server.getUrl("/social/rest/people/1"))));
+    }
+
+    assertNull(server.getExchanges().get(1).headers.get("if-none-match"));
+    assertEquals(0, client.getStats().getSize());
+  }
+}
@@ -0,0 +1,278 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.oauth.OAuth;
+import net.oauth.http.HttpMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class HttpClientImplTest {
+
+  private static final String BODY;
+  static {
+    StringBuilder builder = new StringBuilder("{\"list\":[");
+    for (int i = 0; i < 200; i++) {
+      if (i > 0) {
+        builder.append(",");
+      }
+      builder.append("{\"id\":\"").append(i).append("\"}");
+    }
+    BODY = builder.append("]}").toString();
+  }
+
+  private HttpTestServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new HttpTestServer(new HttpTestServer.Handler() {
+      public void handle(HttpTestServer.Exchange exchange) throws Exception {
+        if (exchange.path.startsWith("/slow")) {
+          Thread.sleep(2000);
+        }
+
+        byte[] body = BODY.getBytes("UTF-8");
+        if (exchange.path.startsWith("/truncated")) {
+          exchange.truncateAfter = 100;
+        } else if (exchange.path.startsWith("/stalled")) {
+          exchange.truncateAfter = 100;
+          exchange.stallMillis = 2000;
+        }
+
+        String accepted = exchange.headers.get("accept-encoding");
+
+        if (exchange.path.startsWith("/not-modified")) {
+          // Some servers repeat Content-Encoding on responses without a body
+          exchange.status = 304;
+          exchange.responseHeaders.put("Content-Encoding", "gzip");
+          return;
+        } else if (accepted == null) {
+          exchange.responseBody = body;
+          return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out;
+        if (exchange.path.startsWith("/raw")) {
+          exchange.responseHeaders.put("Content-Encoding", "deflate");
+          out = new DeflaterOutputStream(bytes,
+              new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        } else if (exchange.path.startsWith("/zlib")) {
+          exchange.responseHeaders.put("Content-Encoding", "deflate");
+          out = new DeflaterOutputStream(bytes);
+        } else {
+          exchange.responseHeaders.put("Content-Encoding", "gzip");
+          out = new GZIPOutputStream(bytes);
+        }
+        out.write(body);
+        out.close();
+
+        exchange.responseBody = bytes.toByteArray();
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  @Test
+  public void decodesGzipResponses() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+
+    HttpResponseMessage response = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/gzip"))));
+
+    assertEquals(200, response.getStatusCode());
+    assertEquals(BODY, response.getResponse());
+    assertTrue(response.getReadTime() >= 0);
+    assertEquals("gzip, deflate",
+        server.getExchanges().get(0).headers.get("accept-encoding"));
+    assertEquals(BODY.length(), client.getUncompressedBytes());
+    assertTrue(client.getCompressedBytes() > 0);
+    assertTrue(client.getCompressedBytes() < BODY.length() / 2);
+  }
+
+  @Test
+  public void skipsDecodingResponsesWithoutBody() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+
+    HttpResponseMessage response = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/not-modified"))));
+    assertEquals(304, response.getStatusCode());
+    assertEquals("", response.getResponse());
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+
+    response = client.execute(new HttpMessage("HEAD",
+        new URL(server.getUrl("/gzip"))));
+    assertEquals(200, response.getStatusCode());
+    assertEquals("", response.getResponse());
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+    assertEquals(0, client.getUncompressedBytes());
+  }
+
+  @Test
+  public void decodesZlibAndRawDeflateResponses() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+
+    assertEquals(BODY, client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/zlib")))).getResponse());
+    assertEquals(BODY, client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/raw")))).getResponse());
+    assertEquals(2 * BODY.length(), client.getUncompressedBytes());
+  }
+
+  @Test
+  public void omitsAcceptEncodingWhenDisabled() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+    client.setCompressionEnabled(false);
+
+    HttpResponseMessage response = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/gzip"))));
+
+    assertEquals(BODY, response.getResponse());
+    assertNull(server.getExchanges().get(0).headers.get("accept-encoding"));
+    assertEquals(0, client.getCompressedBytes());
+  }
+
+  @Test
+  public void streamsFilePayloadWithFixedLength() throws Exception {
+    File file = File.createTempFile("upload", ".bin");
+    file.deleteOnExit();
+    byte[] content = new byte[100000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    OutputStream out = new FileOutputStream(file);
+    out.write(content);
+    out.close();
+
+    FilePayload payload = new FilePayload(file);
+    HttpMessage message = new HttpMessage("POST",
+        new URL(server.getUrl("/upload")), payload.openStream());
+    message.headers.add(new OAuth.Parameter(HttpMessage.CONTENT_LENGTH,
+        String.valueOf(payload.getLength())));
+
+    assertEquals(200, new HttpClientImpl().execute(message).getStatusCode());
+
+    HttpTestServer.Exchange exchange = server.getExchanges().get(0);
+    assertEquals("100000", exchange.headers.get("content-length"));
+    assertNull(exchange.headers.get("transfer-encoding"));
+    assertTrue(Arrays.equals(content, exchange.body));
+    assertTrue(Arrays.equals(new ByteArrayPayload(content).getSha1(),
+        payload.getSha1()));
+  }
+
+  @Test
+  public void readTimeout() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+    assertEquals(HttpClientImpl.DEFAULT_READ_TIMEOUT, client.getReadTimeout());
+    client.setReadTimeout(100);
+
+    long start = System.currentTimeMillis();
+    try {
+      client.execute(new HttpMessage("GET", new URL(server.getUrl("/slow"))));
+      fail();
+    } catch (SocketTimeoutException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 1500);
+
+    // The timed out connection is closed rather than reused
+    client.setReadTimeout(0);
+    assertEquals(BODY, client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/gzip")))).getResponse());
+    assertEquals(2, server.getConnectionCount());
+  }
+
+  @Test
+  public void timeoutParametersLowerConfiguredTimeouts() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+
+    Map<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put(HttpClient.READ_TIMEOUT, 100);
+    parameters.put(HttpClient.CONNECT_TIMEOUT, 100);
+
+    long start = System.currentTimeMillis();
+    try {
+      client.execute(new HttpMessage("GET", new URL(server.getUrl("/slow"))),
+          parameters);
+      fail();
+    } catch (SocketTimeoutException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 1500);
+  }
+
+  @Test
+  public void failsWhenBodyIsCutOff() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+    client.setCompressionEnabled(false);
+
+    try {
+      client.execute(new HttpMessage("GET",
+          new URL(server.getUrl("/truncated"))));
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void failsWhenCompressedBodyIsCutOff() throws Exception {
+    try {
+      new HttpClientImpl().execute(new HttpMessage("GET",
+          new URL(server.getUrl("/truncated"))));
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void failsWhenBodyStalls() throws Exception {
+    HttpClientImpl client = new HttpClientImpl();
+    client.setCompressionEnabled(false);
+    client.setReadTimeout(100);
+
+    long start = System.currentTimeMillis();
+    try {
+      client.execute(new HttpMessage("GET",
+          new URL(server.getUrl("/stalled"))));
+      fail();
+    } catch (SocketTimeoutException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 1500);
+  }
+}
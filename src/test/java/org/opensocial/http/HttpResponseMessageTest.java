@@ -0,0 +1,82 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+
+public class HttpResponseMessageTest {
+
+  private static final String BODY = "{\"name\":\"Jürgen\",\n" +
+      "\"aboutMe\":\"line one\\nline two\"}\n";
+
+  @Test
+  public void keepsRawBodyBytes() throws Exception {
+    byte[] bytes = BODY.getBytes("UTF-8");
+    HttpResponseMessage message = new HttpResponseMessage("GET",
+        new URL("http://example.com/"), 200, new ByteArrayInputStream(bytes),
+        bytes.length);
+
+    assertEquals(bytes.length, message.getResponseLength());
+    assertEquals(BODY, message.getResponse());
+    assertEquals('{', message.getFirstCharacter());
+
+    InputStream body = message.getBody();
+    for (int i = 0; i < bytes.length; i++) {
+      assertEquals(bytes[i] & 0xff, body.read());
+    }
+    assertEquals(-1, body.read());
+  }
+
+  @Test
+  public void readsBodyWithUnknownOrWrongLength() throws Exception {
+    StringBuilder builder = new StringBuilder(" [");
+    for (int i = 0; i < 5000; i++) {
+      builder.append("{\"id\":\"").append(i).append("\"},");
+    }
+    builder.append("{}]");
+    String json = builder.toString();
+    byte[] bytes = json.getBytes("UTF-8");
+
+    HttpResponseMessage unknown = new HttpResponseMessage("GET",
+        new URL("http://example.com/"), 200, new ByteArrayInputStream(bytes),
+        -1);
+    assertEquals(json, unknown.getResponse());
+    assertEquals('[', unknown.getFirstCharacter());
+
+    HttpResponseMessage tooShort = new HttpResponseMessage("GET",
+        new URL("http://example.com/"), 200, new ByteArrayInputStream(bytes),
+        10);
+    assertEquals(json, tooShort.getResponse());
+  }
+
+  @Test
+  public void handlesMissingBody() throws Exception {
+    HttpResponseMessage message = new HttpResponseMessage("GET",
+        new URL("http://example.com/"), 404);
+
+    assertNull(message.getResponse());
+    assertNull(message.getResponseReader());
+    assertEquals(-1, message.getResponseLength());
+    assertEquals(-1, message.getFirstCharacter());
+  }
+}
@@ -0,0 +1,252 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server used to exercise the HTTP transports over real
+ * sockets; supports keep-alive and Content-Length delimited bodies only.
+ */
+public class HttpTestServer {
+
+  /**
+   * Request received by the server.
+   */
+  public static class Exchange {
+    public String method;
+    public String path;
+    public Map<String, String> headers = new HashMap<String, String>();
+    public byte[] body;
+
+    public int status = 200;
+    public Map<String, String> responseHeaders =
+      new HashMap<String, String>();
+    public byte[] responseBody = new byte[0];
+
+    /**
+     * If not negative, only this many bytes of the response body are sent,
+     * after which the server waits for stallMillis and closes the
+     * connection.
+     */
+    public int truncateAfter = -1;
+    public long stallMillis;
+  }
+
+  /**
+   * Callback filling in the response for each received request.
+   */
+  public interface Handler {
+    void handle(Exchange exchange) throws Exception;
+  }
+
+  private final ServerSocket serverSocket;
+  private final Handler handler;
+  private final AtomicInteger connections = new AtomicInteger();
+  private final List<Exchange> exchanges =
+    Collections.synchronizedList(new ArrayList<Exchange>());
+  private final List<Socket> sockets =
+    Collections.synchronizedList(new ArrayList<Socket>());
+
+  public HttpTestServer(Handler handler) throws IOException {
+    this.handler = handler;
+    this.serverSocket = new ServerSocket(0, 50,
+        InetAddress.getByName("127.0.0.1"));
+
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        accept();
+      }
+    }, "test-http-server");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public String getUrl(String path) {
+    return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+  }
+
+  public int getConnectionCount() {
+    return connections.get();
+  }
+
+  public List<Exchange> getExchanges() {
+    synchronized (exchanges) {
+      return new ArrayList<Exchange>(exchanges);
+    }
+  }
+
+  public void stop() throws IOException {
+    serverSocket.close();
+
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        sockets.add(socket);
+
+        Thread worker = new Thread(new Runnable() {
+          public void run() {
+            serve(socket);
+          }
+        }, "test-http-connection");
+        worker.setDaemon(true);
+        worker.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+
+      while (true) {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+          break;
+        }
+
+        Exchange exchange = new Exchange();
+        String[] parts = requestLine.split(" ");
+        exchange.method = parts[0];
+        exchange.path = parts[1];
+
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+          int colon = line.indexOf(':');
+          exchange.headers.put(line.substring(0, colon).trim().toLowerCase(),
+              line.substring(colon + 1).trim());
+        }
+
+        exchange.body = readBody(in, exchange.headers);
+        exchanges.add(exchange);
+
+        try {
+          handler.handle(exchange);
+        } catch (Exception e) {
+          exchange.status = 500;
+          exchange.responseBody = e.toString().getBytes("UTF-8");
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(exchange.status).append(" Status\r\n");
+        head.append("Content-Length: ").append(exchange.responseBody.length);
+        head.append("\r\n");
+        for (Map.Entry<String, String> header :
+            exchange.responseHeaders.entrySet()) {
+          head.append(header.getKey()).append(": ").append(header.getValue());
+          head.append("\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes("UTF-8"));
+        if ("HEAD".equals(exchange.method)) {
+          // Content-Length describes the body a GET would have returned
+          out.flush();
+          continue;
+        }
+        if (exchange.truncateAfter >= 0) {
+          out.write(exchange.responseBody, 0, exchange.truncateAfter);
+          out.flush();
+          Thread.sleep(exchange.stallMillis);
+          break;
+        }
+        out.write(exchange.responseBody);
+        out.flush();
+      }
+    } catch (InterruptedException e) {
+      // Server stopped
+    } catch (IOException e) {
+      // Connection closed by client
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  private byte[] readBody(InputStream in, Map<String, String> headers)
+      throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    if (headers.containsKey("content-length")) {
+      int length = Integer.parseInt(headers.get("content-length"));
+      for (int i = 0; i < length; i++) {
+        int b = in.read();
+        if (b < 0) {
+          break;
+        }
+        body.write(b);
+      }
+    } else if ("chunked".equals(headers.get("transfer-encoding"))) {
+      while (true) {
+        int length = Integer.parseInt(readLine(in).trim(), 16);
+        for (int i = 0; i < length; i++) {
+          body.write(in.read());
+        }
+        readLine(in);
+        if (length == 0) {
+          break;
+        }
+      }
+    }
+
+    return body.toByteArray();
+  }
+
+  private String readLine(InputStream in) throws IOException {
+    StringBuilder builder = new StringBuilder();
+
+    while (true) {
+      int c = in.read();
+      if (c < 0) {
+        return builder.length() == 0 ? null : builder.toString();
+      } else if (c == '\n') {
+        break;
+      } else if (c != '\r') {
+        builder.append((char) c);
+      }
+    }
+
+    return builder.toString();
+  }
+}
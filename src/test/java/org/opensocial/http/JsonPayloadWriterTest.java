@@ -0,0 +1,90 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class JsonPayloadWriterTest {
+
+  @Test
+  public void matchesJsonSimple() throws Exception {
+    Map<String, Object> params = new LinkedHashMap<String, Object>();
+    params.put("userId", "@me");
+    params.put("escaped", "\"quoted\"\\/\b\f\n\r\t\u0001\u007f\u2028");
+    params.put("unicode", "caf\u00e9 \u65e5\u672c \ud83d\ude00 \u2028 \ud800");
+    params.put("count", Integer.valueOf(20));
+    params.put("ratio", Double.valueOf(0.5));
+    params.put("nan", Double.valueOf(Double.NaN));
+    params.put("flag", Boolean.TRUE);
+    params.put("missing", null);
+
+    List<Object> list = new ArrayList<Object>();
+    list.add("a");
+    list.add(Long.valueOf(1));
+    list.add(new LinkedHashMap<String, Object>());
+    params.put("list", list);
+
+    Map<String, Object> request = new LinkedHashMap<String, Object>();
+    request.put("id", "key");
+    request.put("method", "people.get");
+    request.put("params", params);
+
+    List<Object> batch = new ArrayList<Object>();
+    batch.add(request);
+    batch.add(request);
+
+    Payload payload = JsonPayloadWriter.write(batch, false);
+
+    byte[] expected = JSONValue.toJSONString(batch).getBytes("UTF-8");
+    assertEquals(new String(expected, "UTF-8"),
+        new String(payload.toByteArray(), "UTF-8"));
+    assertTrue(Arrays.equals(expected, payload.toByteArray()));
+    assertEquals(expected.length, payload.getLength());
+  }
+
+  @Test
+  public void digestsLargePayloads() throws Exception {
+    List<Object> list = new ArrayList<Object>();
+    for (int i = 0; i < 20000; i++) {
+      list.add("value" + i);
+    }
+
+    // Larger than both the digest chunk and the retained buffer
+    Payload payload = JsonPayloadWriter.write(list, true);
+    byte[] bytes = payload.toByteArray();
+
+    assertTrue(bytes.length > 64 * 1024);
+    assertTrue(Arrays.equals(
+        MessageDigest.getInstance("SHA-1").digest(bytes), payload.getSha1()));
+
+    // The next payload written on this thread starts from a clean buffer
+    Payload small = JsonPayloadWriter.write("small", true);
+    assertEquals("\"small\"", new String(small.toByteArray(), "UTF-8"));
+    assertTrue(Arrays.equals(new ByteArrayPayload(small.toByteArray())
+        .getSha1(), small.getSha1()));
+  }
+}
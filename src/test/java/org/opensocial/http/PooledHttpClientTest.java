@@ -0,0 +1,181 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.oauth.http.HttpMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledHttpClientTest {
+
+  private HttpTestServer server;
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger maxActive = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    server = new HttpTestServer(new HttpTestServer.Handler() {
+      public void handle(HttpTestServer.Exchange exchange) throws Exception {
+        if (exchange.path.startsWith("/missing")) {
+          exchange.status = 404;
+          exchange.responseBody = "{\"error\":\"not found\"}".getBytes();
+        } else if (exchange.path.startsWith("/counted")) {
+          int current = active.incrementAndGet();
+          synchronized (maxActive) {
+            maxActive.set(Math.max(maxActive.get(), current));
+          }
+          Thread.sleep(1);
+          active.decrementAndGet();
+          exchange.responseBody = "{}".getBytes();
+        } else if (exchange.path.startsWith("/slow")) {
+          Thread.sleep(200);
+          exchange.responseBody = "{}".getBytes();
+        } else {
+          exchange.responseBody = "{\"id\":\"1\"}".getBytes();
+        }
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  @Test
+  public void reusesConnectionAfterErrorResponse() throws Exception {
+    PooledHttpClient client = new PooledHttpClient();
+
+    HttpResponseMessage response = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/ok"))));
+    assertEquals(200, response.getStatusCode());
+    assertEquals("{\"id\":\"1\"}", response.getResponse());
+
+    response = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/missing"))));
+    assertEquals(404, response.getStatusCode());
+
+    response = client.execute(new HttpMessage("GET",
+        new URL(server.getUrl("/ok"))));
+    assertEquals(200, response.getStatusCode());
+
+    assertEquals(1, server.getConnectionCount());
+    assertEquals(3, client.getStats().getRequests());
+    assertEquals(0, client.getStats().getLeased());
+  }
+
+  @Test
+  public void limitsConcurrentConnectionsPerHost() throws Exception {
+    final PooledHttpClient client = new PooledHttpClient(2, 60000, 0);
+    final AtomicInteger maxLeased = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(6);
+    final List<Throwable> failures = new ArrayList<Throwable>();
+
+    for (int i = 0; i < 6; i++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            client.execute(new HttpMessage("GET",
+                new URL(server.getUrl("/slow"))));
+          } catch (Throwable t) {
+            synchronized (failures) {
+              failures.add(t);
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    while (done.getCount() > 0) {
+      int leased = client.getStats().getLeased();
+      if (leased > maxLeased.get()) {
+        maxLeased.set(leased);
+      }
+      done.await(10, TimeUnit.MILLISECONDS);
+    }
+
+    assertTrue(failures.isEmpty());
+    assertTrue(maxLeased.get() <= 2);
+    assertEquals(6, client.getStats().getRequests());
+    assertTrue(server.getConnectionCount() <= 2);
+  }
+
+  @Test
+  public void evictsIdleRoutes() throws Exception {
+    PooledHttpClient client = new PooledHttpClient(2, 0, 0);
+
+    client.execute(new HttpMessage("GET", new URL(server.getUrl("/ok"))));
+    assertEquals(1, client.getRouteStats().size());
+
+    Thread.sleep(5);
+    client.evictIdleRoutes();
+
+    assertEquals(0, client.getStats().getRoutes());
+    assertEquals(1, client.getStats().getEvictedRoutes());
+  }
+
+  @Test
+  public void keepsLimitWhileEvictingRoutes() throws Exception {
+    // Evicts idle routes on every request while others are being dispatched
+    final PooledHttpClient client = new PooledHttpClient(1, 0, 0);
+    final CyclicBarrier start = new CyclicBarrier(8);
+    final CountDownLatch done = new CountDownLatch(8);
+    final List<Throwable> failures = new ArrayList<Throwable>();
+
+    for (int i = 0; i < 8; i++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int j = 0; j < 20; j++) {
+              // Lets the route go idle, then looks it up from all threads
+              // at once so that some of them evict it from under the others
+              start.await();
+              client.execute(new HttpMessage("GET",
+                  new URL(server.getUrl("/counted"))));
+              Thread.sleep(2);
+            }
+          } catch (Throwable t) {
+            synchronized (failures) {
+              failures.add(t);
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertTrue(failures.isEmpty());
+    assertEquals(1, maxActive.get());
+    assertEquals(0, client.getStats().getLeased());
+  }
+}
@@ -0,0 +1,153 @@
+/* Copyright (c) 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensocial.parsers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.opensocial.Response;
+import org.opensocial.models.Activity;
+import org.opensocial.models.Model;
+import org.opensocial.models.Person;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class StreamingJsonParserTest {
+
+  private static final String[] REST_0P8 = {
+    "{\"startIndex\":0,\"totalResults\":2,\"entry\":[" +
+        "{\"id\":\"1\",\"name\":{\"givenName\":\"A\"}},{\"id\":\"2\"}]}",
+    "{\"entry\":{\"id\":\"1\",\"displayName\":\"A\"}}",
+    "{\"entry\":{\"id\":\"1\"},\"totalResults\":\"1\"}",
+    "{\"id\":\"1\",\"displayName\":\"A\"}",
+  };
+
+  private static final String[] REST_0P9 = {
+    "{\"person\":{\"id\":\"1\",\"name\":{\"givenName\":\"A\"}}}",
+    "{\"startIndex\":0,\"totalResults\":2,\"itemsPerPage\":2," +
+        "\"isFiltered\":\"true\",\"statusLink\":\"http://x/\",\"entry\":[" +
+        "{\"person\":{\"id\":\"1\"}},{\"activity\":{\"id\":\"2\"}}," +
+        "{\"album\":{\"id\":\"3\"}},{\"mediaItem\":{\"id\":\"4\"}}," +
+        "{\"id\":\"5\",\"tags\":[\"a\",\"b\"]}]}",
+    "{\"entry\":[{\"person\":{\"id\":\"1\"}}],\"person\":{\"id\":\"2\"}}",
+    "{\"album\":{\"id\":\"3\"}}",
+    "{\"mediaItem\":{\"id\":\"4\"}}",
+    "{\"id\":\"5\",\"displayName\":\"E\",\"totalResults\":1}",
+    " [{\"id\":\"1\"},{\"id\":\"2\",\"urls\":[{\"value\":\"x\"}]}]",
+  };
+
+  private static final String[] RPC = {
+    "[{\"id\":\"a\",\"data\":{\"startIndex\":0,\"totalResults\":2," +
+        "\"list\":[{\"id\":\"1\",\"name\":{\"givenName\":\"A\"}}," +
+        "{\"id\":\"2\"}]}},{\"id\":\"b\",\"data\":{\"id\":\"3\"," +
+        "\"displayName\":\"C\"}}]",
+    "[{\"data\":{\"list\":[{\"id\":\"1\"}],\"totalResults\":1}," +
+        "\"id\":\"a\"},{\"data\":{\"title\":\"t\"},\"id\":\"b\"}]",
+    "[{\"id\":\"a\",\"error\":{\"code\":401,\"message\":\"denied\"}}," +
+        "{\"id\":\"b\",\"data\":{\"list\":[]}}]",
+  };
+
+  @Test
+  public void restResponsesMatchTreeParser() {
+    for (String json : REST_0P8) {
+      assertSameResponse(json, new JsonParser().getResponseObject(json,
+          Person.class, "0.8"), new StreamingJsonParser().getResponseObject(
+          json, Person.class, "0.8"));
+    }
+    for (String json : REST_0P9) {
+      assertSameResponse(json, new JsonParser().getResponseObject(json,
+          Person.class, "0.9"), new StreamingJsonParser().getResponseObject(
+          json, Person.class, "0.9"));
+    }
+  }
+
+  @Test
+  public void rpcResponsesMatchTreeParser() {
+    Map<String, Class<? extends Model>> modelClasses =
+      new HashMap<String, Class<? extends Model>>();
+    modelClasses.put("a", Person.class);
+    modelClasses.put("b", Activity.class);
+
+    for (String json : RPC) {
+      Map<String, Response> expected = new JsonParser().getResponseMap(json,
+          modelClasses, "0.8");
+      Map<String, Response> actual = new StreamingJsonParser().getResponseMap(
+          json, modelClasses, "0.8");
+
+      assertEquals(json, expected.keySet(), actual.keySet());
+      for (String id : expected.keySet()) {
+        assertSameResponse(json, expected.get(id), actual.get(id));
+      }
+    }
+  }
+
+  @Test
+  public void parsesRpcResponsesFrom0p9Providers() {
+    Map<String, Class<? extends Model>> modelClasses =
+      new HashMap<String, Class<? extends Model>>();
+    modelClasses.put("a", Person.class);
+
+    Map<String, Response> responses = new StreamingJsonParser().getResponseMap(
+        RPC[0], modelClasses, "0.9");
+
+    assertEquals(2, responses.get("a").getEntries().size());
+    assertEquals(Person.class, responses.get("a").getEntry().getClass());
+  }
+
+  @Test
+  public void returnsNullForMalformedJson() {
+    assertNull(new StreamingJsonParser().getResponseObject("{\"entry\":[",
+        Person.class, "0.8"));
+    assertNull(new StreamingJsonParser().getResponseMap("[{\"id\":",
+        new HashMap<String, Class<? extends Model>>(), "0.8"));
+  }
+
+  private static void assertSameResponse(String json, Response expected,
+      Response actual) {
+    assertEquals(json, expected.getStartIndex(), actual.getStartIndex());
+    assertEquals(json, expected.getTotalResults(), actual.getTotalResults());
+    assertEquals(json, expected.getItemsPerPage(), actual.getItemsPerPage());
+    assertEquals(json, expected.getStatusLink(), actual.getStatusLink());
+    assertEquals(json, expected.isFiltered(), actual.isFiltered());
+
+    List<Model> expectedEntries = expected.getEntries();
+    List<Model> actualEntries = actual.getEntries();
+    assertEquals(json, expectedEntries, actualEntries);
+    for (int i = 0; i < expectedEntries.size(); i++) {
+      assertSameClasses(json, expectedEntries.get(i), actualEntries.get(i));
+    }
+  }
+
+  private static void assertSameClasses(String json, Object expected,
+      Object actual) {
+    assertEquals(json, expected.getClass(), actual.getClass());
+
+    if (expected instanceof Map) {
+      for (Object key : ((Map) expected).keySet()) {
+        assertSameClasses(json, ((Map) expected).get(key),
+            ((Map) actual).get(key));
+      }
+    } else if (expected instanceof List) {
+      for (int i = 0; i < ((List) expected).size(); i++) {
+        assertSameClasses(json, ((List) expected).get(i),
+            ((List) actual).get(i));
+      }
+    }
+  }
+}